@@ -30,9 +30,9 @@ package edu.umd.marbl.mhap.align;
 
 public class AlignElementString implements AlignElement<AlignElementString>
 {
-	private final double EXACT_MATCH_SCORE = 1.0;
+	final static double EXACT_MATCH_SCORE = 1.0;
 	
-	private final double MISMATCH_SCORE = -1.0;
+	final static double MISMATCH_SCORE = -1.0;
 	private final char[] s;
 	
 	public AlignElementString(String s)
@@ -40,6 +40,11 @@ public class AlignElementString implements AlignElement<AlignElementString>
 		this.s = s.toCharArray();
 	}
 	
+	char[] getChars()
+	{
+		return this.s;
+	}
+	
 	@Override
 	public int length()
 	{
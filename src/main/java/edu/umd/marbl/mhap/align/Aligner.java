@@ -30,20 +30,39 @@ package edu.umd.marbl.mhap.align;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 
 import edu.umd.marbl.mhap.align.Alignment.Operation;
+import edu.umd.marbl.mhap.impl.OverlapInfo;
 
 public final class Aligner<S extends AlignElement<S>>
 {
 	private final float gapOpen;
 	private final float gapExtend;
+	private final float gapContinue;
 	private final boolean storePath;
 	private final float scoreOffset;
 	
+	private final static float NEG_INF = Float.NEGATIVE_INFINITY;
+	
+	/**
+	 * End and start of the best path of the linear memory forward pass.
+	 */
+	final static class ForwardResult
+	{
+		float maxValue = 0.0f;
+		int maxI = 0;
+		int maxJ = 0;
+		int origin = 0;
+	}
+	
 	public Aligner(boolean storePath, double gapOpen, double gapExtend, double scoreOffset)
 	{
 		this.gapOpen = (float)gapOpen;
 		this.gapExtend = (float)gapExtend;
+		
+		//a gap can also be continued by opening it again, when that scores better
+		this.gapContinue = Math.max(this.gapOpen, this.gapExtend);
 		this.storePath = storePath;
 		this.scoreOffset = (float)scoreOffset;
 	}
@@ -134,6 +153,13 @@ public final class Aligner<S extends AlignElement<S>>
 	
 	public Alignment<S> localAlignSmithWaterGotoh(S a, S b)
 	{		
+		if (!this.storePath)
+		{
+			ForwardResult forward = forwardStrings(a, b);
+			if (forward!=null)
+				return new Alignment<S>(a, b, 0, Math.max(0, forward.maxI-1), 0, Math.max(0, forward.maxJ-1), forward.maxValue, this.gapOpen, null);
+		}
+		
 		float[][] D = new float[a.length()+1][b.length()+1];
 		float[][] P = new float[a.length()+1][b.length()+1];
 		float[][] Q = new float[a.length()+1][b.length()+1];
@@ -338,4 +364,370 @@ public final class Aligner<S extends AlignElement<S>>
 		}
 		
 	}
+	
+	/**
+	 * Same recurrence and result as localAlignSmithWaterGotoh(), but in memory linear in the length of b. The start of
+	 * the alignment is carried through the rows with the same traceback rules, so a1 and b1 are also set when the path
+	 * is not stored. If storePath is set, the path between the start and the end is recomputed in linear memory with
+	 * the divide and conquer method of Myers and Miller, which gives a path with the same score, but not necessarily
+	 * the same path when there are ties.
+	 */
+	public Alignment<S> localAlignSmithWaterGotohLinear(S a, S b)
+	{
+		return localAlignGotohInBand(a, b, -a.length()-1, b.length()+1);
+	}
+	
+	/**
+	 * Same as localAlignSmithWaterGotohLinear(), restricted to the cells within bandWidth diagonals of the given
+	 * diagonal, j-i, where i and j are the positions in a and b. The cost is linear in the length of a times the band
+	 * size.
+	 */
+	public Alignment<S> localAlignSmithWaterGotohBanded(S a, S b, int diagonal, int bandWidth)
+	{
+		return localAlignGotohInBand(a, b, diagonal-bandWidth, diagonal+bandWidth);
+	}
+	
+	/**
+	 * Same as localAlignSmithWaterGotohBanded(), with the band around the diagonals of the start and the end of the
+	 * overlap, as estimated by the second stage filter for the same a and b.
+	 */
+	public Alignment<S> localAlignSmithWaterGotohBanded(S a, S b, OverlapInfo overlap, int bandWidth)
+	{
+		int diagonal1 = overlap.b1-overlap.a1;
+		int diagonal2 = overlap.b2-overlap.a2;
+		
+		return localAlignGotohInBand(a, b, Math.min(diagonal1, diagonal2)-bandWidth, Math.max(diagonal1, diagonal2)+bandWidth);
+	}
+	
+	private Alignment<S> localAlignGotohInBand(S a, S b, int lowDiagonal, int highDiagonal)
+	{
+		ForwardResult forward = null;
+		if (lowDiagonal<=-a.length() && highDiagonal>=b.length())
+			forward = forwardStrings(a, b);
+		if (forward==null)
+			forward = forwardGotoh(a, b, lowDiagonal, highDiagonal);
+		
+		int a1 = forward.origin >= 0 ? forward.origin : 0;
+		int b1 = forward.origin >= 0 ? 0 : -forward.origin;
+		int a2 = Math.max(0, forward.maxI-1);
+		int b2 = Math.max(0, forward.maxJ-1);
+		
+		if (this.storePath)
+		{
+			ArrayList<Alignment.Operation> operations = new ArrayList<>(forward.maxI+forward.maxJ);
+			for (int i=0; i<a1; i++)
+				operations.add(Operation.DELETE);
+			
+			int size = forward.maxJ-b1+1;
+			float[] CC = new float[size];
+			float[] DD = new float[size];
+			float[] RR = new float[size];
+			float[] SS = new float[size];
+			
+			alignLinear(a, a1, forward.maxI, b, b1, forward.maxJ, this.gapOpen, this.gapOpen, lowDiagonal, highDiagonal, CC, DD, RR, SS, operations);
+			
+			return new Alignment<S>(a, b, a1, a2, b1, b2, forward.maxValue, this.gapOpen, operations);
+		}
+		
+		return new Alignment<S>(a, b, a1, a2, b1, b2, forward.maxValue, this.gapOpen, null);
+	}
+	
+	/**
+	 * The recurrence of localAlignSmithWaterGotoh(), one row at a time. The origin of each cell is the first row or
+	 * column cell where its traceback would end, i for (i,0) and -j for (0,j).
+	 */
+	private ForwardResult forwardGotoh(S a, S b, int lowDiagonal, int highDiagonal)
+	{
+		final int n = a.length();
+		final int m = b.length();
+		
+		float[] D = new float[m+1];
+		float[] P = new float[m+1];
+		int[] origin = new int[m+1];
+		
+		for (int j=0; j<=m; j++)
+		{
+			D[j] = j>=lowDiagonal && j<=highDiagonal ? 0.0f : NEG_INF;
+			P[j] = NEG_INF;
+			origin[j] = -j;
+		}
+		
+		ForwardResult result = new ForwardResult();
+		for (int i=1; i<=n; i++)
+		{
+			int jLow = Math.max(1, i+lowDiagonal);
+			int jHigh = Math.min(m, i+highDiagonal);
+			if (jHigh<0 || jLow>m)
+				continue;
+			
+			// the previous row, previous column
+			float s = D[jLow-1];
+			int sOrigin = origin[jLow-1];
+			
+			// the current row, previous column
+			float left;
+			int leftOrigin;
+			if (jLow==1)
+			{
+				left = inBand(i, 0, lowDiagonal, highDiagonal) ? 0.0f : NEG_INF;
+				leftOrigin = i;
+				D[0] = left;
+				origin[0] = i;
+			}
+			else
+			{
+				// the column leaves the band
+				left = NEG_INF;
+				leftOrigin = 0;
+				D[jLow-1] = NEG_INF;
+				P[jLow-1] = NEG_INF;
+			}
+			
+			float q = NEG_INF;
+			for (int j=jLow; j<=jHigh; j++)
+			{
+				float p = Math.max(D[j]+this.gapOpen, P[j]+this.gapExtend);
+				q = Math.max(left+this.gapOpen, q+this.gapExtend);
+				
+				float score = s+(float)a.similarityScore(b, i-1, j-1)+this.scoreOffset;
+				float value = Math.max(score, Math.max(p, q));
+				
+				// same order as the traceback
+				int o;
+				if (p>=q && p==value)
+					o = origin[j];
+				else
+				if (q==value)
+					o = leftOrigin;
+				else
+					o = sOrigin;
+				
+				s = D[j];
+				sOrigin = origin[j];
+				D[j] = value;
+				P[j] = p;
+				origin[j] = o;
+				left = value;
+				leftOrigin = o;
+				
+				if (value > result.maxValue)
+				{
+					result.maxValue = value;
+					result.maxI = i;
+					result.maxJ = j;
+					result.origin = o;
+				}
+			}
+			
+			// the column enters the band in the next row
+			if (jHigh<m)
+			{
+				D[jHigh+1] = NEG_INF;
+				P[jHigh+1] = NEG_INF;
+			}
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Same as forwardGotoh() without a band, computed by the specialized nucleotide string aligner, or null if a and b
+	 * are not plain strings.
+	 */
+	private ForwardResult forwardStrings(S a, S b)
+	{
+		if (a.getClass()!=AlignElementString.class || b.getClass()!=AlignElementString.class)
+			return null;
+		
+		ForwardResult result = new ForwardResult();
+		StringAligner.forward(((AlignElementString)a).getChars(), ((AlignElementString)b).getChars(), (float)AlignElementString.EXACT_MATCH_SCORE,
+				(float)AlignElementString.MISMATCH_SCORE, this.gapOpen, this.gapExtend, this.scoreOffset, result);
+		
+		return result;
+	}
+	
+	private float gapScore(int length)
+	{
+		if (length<=0)
+			return 0.0f;
+		
+		return this.gapOpen+(float)(length-1)*this.gapContinue;
+	}
+	
+	private boolean inBand(int i, int j, int lowDiagonal, int highDiagonal)
+	{
+		return j-i>=lowDiagonal && j-i<=highDiagonal;
+	}
+	
+	/**
+	 * Global affine alignment of a[i0,i1) and b[j0,j1) in linear memory (Myers and Miller). The first deleted element
+	 * of a scores startGap at the start and endGap at the end, gapOpen for a new gap, or gapExtend if the gap continues
+	 * outside of the range.
+	 */
+	private void alignLinear(S a, int i0, int i1, S b, int j0, int j1, float startGap, float endGap, int lowDiagonal, int highDiagonal, 
+			float[] CC, float[] DD, float[] RR, float[] SS, List<Operation> operations)
+	{
+		final int M = i1-i0;
+		final int N = j1-j0;
+		
+		if (N==0)
+		{
+			for (int i=0; i<M; i++)
+				operations.add(Operation.DELETE);
+			return;
+		}
+		if (M==0)
+		{
+			for (int j=0; j<N; j++)
+				operations.add(Operation.INSERT);
+			return;
+		}
+		
+		if (M==1)
+		{
+			// delete a[i0] as a part of the cheaper boundary gap, or align it to one of b
+			boolean deleteStart = inBand(i0+1, j0, lowDiagonal, highDiagonal);
+			boolean deleteEnd = inBand(i0, j1, lowDiagonal, highDiagonal);
+			boolean deleteFirst = deleteStart && (startGap>=endGap || !deleteEnd);
+			float best = NEG_INF;
+			if (deleteStart || deleteEnd)
+				best = (deleteFirst ? startGap : endGap)+gapScore(N);
+			int bestJ = 0;
+			for (int j=1; j<=N; j++)
+			{
+				if (!inBand(i0, j0+j-1, lowDiagonal, highDiagonal) || !inBand(i0+1, j0+j, lowDiagonal, highDiagonal))
+					continue;
+				
+				float value = gapScore(j-1)+(float)a.similarityScore(b, i0, j0+j-1)+this.scoreOffset+gapScore(N-j);
+				if (value > best)
+				{
+					best = value;
+					bestJ = j;
+				}
+			}
+			
+			if (bestJ==0)
+			{
+				if (deleteFirst)
+					operations.add(Operation.DELETE);
+				for (int j=0; j<N; j++)
+					operations.add(Operation.INSERT);
+				if (!deleteFirst)
+					operations.add(Operation.DELETE);
+			}
+			else
+			{
+				for (int j=1; j<bestJ; j++)
+					operations.add(Operation.INSERT);
+				operations.add(Operation.MATCH);
+				for (int j=bestJ; j<N; j++)
+					operations.add(Operation.INSERT);
+			}
+			
+			return;
+		}
+		
+		// scores of the top half ending at each column of the middle row, and of the bottom half starting there
+		final int midI = M/2;
+		affinePass(a, i0, 1, b, j0, 1, midI, N, i0-j0+lowDiagonal, i0-j0+highDiagonal, startGap, CC, DD);
+		affinePass(a, i1-1, -1, b, j1-1, -1, M-midI, N, j1-i1-highDiagonal, j1-i1-lowDiagonal, endGap, RR, SS);
+		
+		float best = NEG_INF;
+		int midJ = 0;
+		boolean gapMiddle = false;
+		for (int j=0; j<=N; j++)
+		{
+			float value = CC[j]+RR[N-j];
+			if (value > best)
+			{
+				best = value;
+				midJ = j;
+			}
+		}
+		
+		// a deletion that crosses the middle row is opened only once
+		for (int j=N; j>=0; j--)
+		{
+			float value = DD[j]+SS[N-j]-this.gapOpen+this.gapContinue;
+			if (value > best)
+			{
+				best = value;
+				midJ = j;
+				gapMiddle = true;
+			}
+		}
+		
+		if (gapMiddle)
+		{
+			alignLinear(a, i0, i0+midI-1, b, j0, j0+midJ, startGap, this.gapContinue, lowDiagonal, highDiagonal, CC, DD, RR, SS, operations);
+			operations.add(Operation.DELETE);
+			operations.add(Operation.DELETE);
+			alignLinear(a, i0+midI+1, i1, b, j0+midJ, j1, this.gapContinue, endGap, lowDiagonal, highDiagonal, CC, DD, RR, SS, operations);
+		}
+		else
+		{
+			alignLinear(a, i0, i0+midI, b, j0, j0+midJ, startGap, this.gapOpen, lowDiagonal, highDiagonal, CC, DD, RR, SS, operations);
+			alignLinear(a, i0+midI, i1, b, j0+midJ, j1, this.gapOpen, endGap, lowDiagonal, highDiagonal, CC, DD, RR, SS, operations);
+		}
+	}
+	
+	/**
+	 * Last row of the global affine alignment of rows elements of a and cols elements of b, starting at aStart and
+	 * bStart, and moving by aStep and bStep. CC is the best score ending at each column, and DD the best score ending
+	 * with a deletion. Only the columns c in [r+lowColumn, r+highColumn] of row r are in the band.
+	 */
+	private void affinePass(S a, int aStart, int aStep, S b, int bStart, int bStep, int rows, int cols, int lowColumn, int highColumn, 
+			float startGap, float[] CC, float[] DD)
+	{
+		for (int c=0; c<=cols; c++)
+		{
+			CC[c] = c>=lowColumn && c<=highColumn ? gapScore(c) : NEG_INF;
+			DD[c] = NEG_INF;
+		}
+		
+		for (int r=1; r<=rows; r++)
+		{
+			int cLow = Math.max(0, r+lowColumn);
+			int cHigh = Math.min(cols, r+highColumn);
+			int aIndex = aStart+aStep*(r-1);
+			
+			float s;
+			float left;
+			if (cLow==0)
+			{
+				s = CC[0];
+				left = startGap+(float)(r-1)*this.gapContinue;
+				CC[0] = left;
+				DD[0] = left;
+				cLow = 1;
+			}
+			else
+			{
+				// the column leaves the band
+				s = CC[cLow-1];
+				left = NEG_INF;
+				CC[cLow-1] = NEG_INF;
+				DD[cLow-1] = NEG_INF;
+			}
+			
+			float e = NEG_INF;
+			for (int c=cLow; c<=cHigh; c++)
+			{
+				e = Math.max(e+this.gapContinue, left+this.gapOpen);
+				float d = Math.max(DD[c]+this.gapContinue, CC[c]+this.gapOpen);
+				float score = s+(float)a.similarityScore(b, aIndex, bStart+bStep*(c-1))+this.scoreOffset;
+				
+				left = Math.max(score, Math.max(e, d));
+				s = CC[c];
+				CC[c] = left;
+				DD[c] = d;
+			}
+			
+			if (cHigh<cols)
+			{
+				CC[cHigh+1] = NEG_INF;
+				DD[cHigh+1] = NEG_INF;
+			}
+		}
+	}
 }
@@ -0,0 +1,335 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.align;
+
+import edu.umd.marbl.mhap.utils.PackedSequence;
+
+/**
+ * Verifies overlaps by the edit distance of the two overlapping regions, computed with the bit-vector algorithm of
+ * Myers, in blocks of 64 rows. Only the blocks that can be on a path within the distance allowed by the identity
+ * threshold are computed (Ukkonen), so the band follows the alignment. The cells of the removed blocks are replaced by
+ * upper bounds, so the distance is exact whenever it is within the threshold.
+ * <p>
+ * For overlaps, the blocks are also limited to a fixed band around the diagonal from the start to the end of the two
+ * regions given by OverlapInfo, so the cost grows with the length of the overlap rather than with its square. The
+ * distance is then exact if the alignment stays within the band, and an upper bound otherwise.
+ */
+public final class EditDistanceVerifier
+{
+	/**
+	 * Per-thread working memory, grown as needed.
+	 */
+	private final static class Scratch
+	{
+		private byte[] pattern = new byte[0];
+		private byte[] text = new byte[0];
+		private long[] peq = new long[0];
+		private long[] P = new long[0];
+		private long[] M = new long[0];
+		private int[] score = new int[0];
+	}
+	
+	private final static int WORD_SIZE = 64;
+	
+	// rows above and below the diagonal of the overlap that are computed
+	public final static int DEFAULT_BAND_WIDTH = 128;
+	
+	// code of the characters other than A, C, G or T, never equal to anything
+	private final static byte OTHER_CODE = 4;
+	
+	private final double minIdentity;
+	private final int bandWidth;
+	private final ThreadLocal<Scratch> scratch;
+	
+	public EditDistanceVerifier(double minIdentity)
+	{
+		this(minIdentity, DEFAULT_BAND_WIDTH);
+	}
+	
+	/**
+	 * @param bandWidth
+	 *            number of rows above and below the diagonal of an overlap that are computed by verify().
+	 */
+	public EditDistanceVerifier(double minIdentity, int bandWidth)
+	{
+		this.minIdentity = minIdentity;
+		this.bandWidth = bandWidth;
+		this.scratch = new ThreadLocal<Scratch>()
+		{
+			@Override
+			protected Scratch initialValue()
+			{
+				return new Scratch();
+			}
+		};
+	}
+	
+	public double getMinIdentity()
+	{
+		return this.minIdentity;
+	}
+	
+	/**
+	 * @return the edit distance between a and b, or maxDistance+1 if it is larger than maxDistance.
+	 */
+	public int editDistance(CharSequence a, CharSequence b, int maxDistance)
+	{
+		Scratch scratch = this.scratch.get();
+		
+		byte[] pattern = codes(a, 0, a.length(), true, scratch.pattern);
+		scratch.pattern = pattern;
+		byte[] text = codes(b, 0, b.length(), true, scratch.text);
+		scratch.text = text;
+		
+		return editDistance(pattern, a.length(), text, b.length(), maxDistance, maxDistance, scratch);
+	}
+	
+	/**
+	 * Checks the identity of an overlap, as one minus the edit distance over the longer of the two regions. The regions
+	 * are inclusive, in the coordinates of the given strand of each sequence, as in OverlapInfo.
+	 * 
+	 * @param a
+	 *            forward strand of the first sequence
+	 * @param b
+	 *            forward strand of the second sequence
+	 */
+	public boolean verify(PackedSequence a, boolean aForward, int a1, int a2, PackedSequence b, boolean bForward, int b1, int b2)
+	{
+		a1 = Math.max(0, a1);
+		a2 = Math.min(a.length()-1, a2);
+		b1 = Math.max(0, b1);
+		b2 = Math.min(b.length()-1, b2);
+		
+		int aLength = Math.max(0, a2-a1+1);
+		int bLength = Math.max(0, b2-b1+1);
+		int maxDistance = (int)Math.floor((1.0-this.minIdentity)*(double)Math.max(aLength, bLength));
+		
+		// the difference in length alone is too large
+		if (Math.abs(aLength-bLength) > maxDistance)
+			return false;
+		
+		Scratch scratch = this.scratch.get();
+		
+		byte[] pattern = aForward ? codes(a, a1, a2+1, true, scratch.pattern) : codes(a, a.length()-1-a2, a.length()-a1, false, scratch.pattern);
+		scratch.pattern = pattern;
+		byte[] text = bForward ? codes(b, b1, b2+1, true, scratch.text) : codes(b, b.length()-1-b2, b.length()-b1, false, scratch.text);
+		scratch.text = text;
+		
+		// an alignment along one diagonal, with the difference in length at one edge, is within the difference of the
+		// diagonal from (a1,b1) to (a2,b2)
+		int band = Math.min(maxDistance, this.bandWidth+Math.abs(aLength-bLength));
+		
+		return editDistance(pattern, aLength, text, bLength, maxDistance, band, scratch) <= maxDistance;
+	}
+	
+	/**
+	 * Codes of seq[start,end), or of its reverse compliment.
+	 */
+	private static byte[] codes(CharSequence seq, int start, int end, boolean forward, byte[] codes)
+	{
+		int length = Math.max(0, end-start);
+		if (codes.length < length)
+			codes = new byte[length];
+		
+		if (seq instanceof PackedSequence)
+		{
+			PackedSequence packed = (PackedSequence)seq;
+			for (int iter = start; iter < end; iter++)
+			{
+				int code = packed.baseCode(iter);
+				if (forward)
+					codes[iter-start] = (byte)code;
+				else
+					codes[end-1-iter] = (byte)(3-code);
+			}
+			
+			// characters that are not bases do not match anything
+			for (int iter = packed.nextException(start); iter < end; iter = packed.nextException(iter+1))
+				codes[forward ? iter-start : end-1-iter] = OTHER_CODE;
+		}
+		else
+		{
+			for (int iter = start; iter < end; iter++)
+			{
+				int code;
+				switch (seq.charAt(iter))
+				{
+					case 'A': case 'a': code = 0; break;
+					case 'C': case 'c': code = 1; break;
+					case 'G': case 'g': code = 2; break;
+					case 'T': case 't': code = 3; break;
+					default: code = -1;
+				}
+				
+				if (code < 0)
+					codes[forward ? iter-start : end-1-iter] = OTHER_CODE;
+				else
+				if (forward)
+					codes[iter-start] = (byte)code;
+				else
+					codes[end-1-iter] = (byte)(3-code);
+			}
+		}
+		
+		return codes;
+	}
+	
+	/**
+	 * @param band
+	 *            only the rows within band of the diagonal from (0,0) to (m,n) are computed. A band of maxDistance or
+	 *            more does not remove any path within maxDistance.
+	 */
+	private static int editDistance(byte[] pattern, int m, byte[] text, int n, int maxDistance, int band, Scratch scratch)
+	{
+		if (m==0 || n==0)
+			return Math.min(Math.max(m, n), maxDistance+1);
+		if (Math.abs(m-n) > maxDistance)
+			return maxDistance+1;
+		
+		final int numBlocks = (m+WORD_SIZE-1)/WORD_SIZE;
+		
+		// match bits of each base in each block, padding rows match nothing
+		if (scratch.peq.length < 4*numBlocks)
+		{
+			scratch.peq = new long[4*numBlocks];
+			scratch.P = new long[numBlocks];
+			scratch.M = new long[numBlocks];
+			scratch.score = new int[numBlocks];
+		}
+		final long[] peq = scratch.peq;
+		final long[] P = scratch.P;
+		final long[] M = scratch.M;
+		final int[] score = scratch.score;
+		
+		for (int iter = 0; iter < 4*numBlocks; iter++)
+			peq[iter] = 0L;
+		for (int i = 0; i < m; i++)
+			if (pattern[i] < OTHER_CODE)
+				peq[pattern[i]*numBlocks+i/WORD_SIZE] |= 1L << (i%WORD_SIZE);
+		
+		// blocks of the first column, D[i][0] = i
+		int firstBlock = 0;
+		int lastBlock = 0;
+		P[0] = -1L;
+		M[0] = 0L;
+		score[0] = WORD_SIZE;
+		
+		for (int j = 1; j <= n; j++)
+		{
+			int diagonal = (int)((long)j*(long)m/(long)n);
+			int bandFirstRow = diagonal-band;
+			int bandLastRow = diagonal+band;
+			
+			// add the blocks below that a path of at most maxDistance can enter, from the previous column
+			while (lastBlock < numBlocks-1 && score[lastBlock] <= maxDistance+1 && (lastBlock+1)*WORD_SIZE < bandLastRow)
+			{
+				lastBlock++;
+				P[lastBlock] = -1L;
+				M[lastBlock] = 0L;
+				score[lastBlock] = score[lastBlock-1]+WORD_SIZE;
+			}
+			
+			// the row above the first block is the top row, or removed, both increase by one per column
+			int hout = 1;
+			final int code = text[j-1];
+			for (int block = firstBlock; block <= lastBlock; block++)
+			{
+				long eq = code < OTHER_CODE ? peq[code*numBlocks+block] : 0L;
+				long pv = P[block];
+				long mv = M[block];
+				
+				long xv = eq | mv;
+				if (hout < 0)
+					eq |= 1L;
+				long xh = (((eq & pv) + pv) ^ pv) | eq;
+				long ph = mv | ~(xh | pv);
+				long mh = pv & xh;
+				
+				int hin = hout;
+				hout = (int)(ph>>>63)-(int)(mh>>>63);
+				
+				ph <<= 1;
+				mh <<= 1;
+				if (hin < 0)
+					mh |= 1L;
+				else
+				if (hin > 0)
+					ph |= 1L;
+				
+				P[block] = mh | ~(xv | ph);
+				M[block] = ph & xv;
+				score[block] += hout;
+			}
+			
+			// remove the blocks at the edges that cannot be on a path of at most maxDistance, or are above the band
+			while (lastBlock > firstBlock && lowerBound(P, score, lastBlock, j, m, n) > maxDistance)
+				lastBlock--;
+			while (firstBlock < lastBlock && ((firstBlock+1)*WORD_SIZE < bandFirstRow || lowerBound(P, score, firstBlock, j, m, n) > maxDistance))
+				firstBlock++;
+			
+			if (firstBlock==lastBlock && lowerBound(P, score, firstBlock, j, m, n) > maxDistance)
+				return maxDistance+1;
+		}
+		
+		if (lastBlock < numBlocks-1)
+			return maxDistance+1;
+		
+		// remove the padding rows below m
+		int padding = numBlocks*WORD_SIZE-m;
+		int distance = score[numBlocks-1];
+		if (padding > 0)
+		{
+			long mask = -1L << (WORD_SIZE-padding);
+			distance += Long.bitCount(M[numBlocks-1] & mask)-Long.bitCount(P[numBlocks-1] & mask);
+		}
+		
+		return Math.min(distance, maxDistance+1);
+	}
+	
+	/**
+	 * Lower bound of the distance of a path through the rows of the block in column j, and the row above it. Going up
+	 * the block lowers the score by at most its number of positive vertical differences, and the rest of the path needs
+	 * at least one edit per diagonal between the row and the end.
+	 */
+	private static int lowerBound(long[] P, int[] score, int block, int j, int m, int n)
+	{
+		int firstRow = block*WORD_SIZE;
+		int lastRow = Math.min(m, (block+1)*WORD_SIZE);
+		int endRow = m-n+j;
+		
+		int distance = 0;
+		if (endRow < firstRow)
+			distance = firstRow-endRow;
+		else
+		if (endRow > lastRow)
+			distance = endRow-lastRow;
+		
+		return score[block]-Long.bitCount(P[block])+distance;
+	}
+}
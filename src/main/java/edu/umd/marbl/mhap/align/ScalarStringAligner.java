@@ -0,0 +1,104 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.align;
+
+/**
+ * Forward pass of the local Gotoh alignment of two character strings, with the score of each cell inlined instead of
+ * called through AlignElement. Gives the same score, end and origin as Aligner.forwardGotoh() without a band.
+ */
+final class ScalarStringAligner
+{
+	static void forward(char[] a, char[] b, float match, float mismatch, float gapOpen, float gapExtend, float scoreOffset, Aligner.ForwardResult result)
+	{
+		final int n = a.length;
+		final int m = b.length;
+		
+		float[] D = new float[m+1];
+		float[] P = new float[m+1];
+		int[] origin = new int[m+1];
+		
+		for (int j=0; j<=m; j++)
+		{
+			D[j] = 0.0f;
+			P[j] = Float.NEGATIVE_INFINITY;
+			origin[j] = -j;
+		}
+		
+		for (int i=1; i<=n; i++)
+		{
+			final char ai = a[i-1];
+			
+			float s = D[0];
+			int sOrigin = origin[0];
+			float left = 0.0f;
+			int leftOrigin = i;
+			D[0] = 0.0f;
+			origin[0] = i;
+			
+			float q = Float.NEGATIVE_INFINITY;
+			for (int j=1; j<=m; j++)
+			{
+				float p = Math.max(D[j]+gapOpen, P[j]+gapExtend);
+				q = Math.max(left+gapOpen, q+gapExtend);
+				
+				float score = s+(ai==b[j-1] ? match : mismatch)+scoreOffset;
+				float value = Math.max(score, Math.max(p, q));
+				
+				int o;
+				if (p>=q && p==value)
+					o = origin[j];
+				else
+				if (q==value)
+					o = leftOrigin;
+				else
+					o = sOrigin;
+				
+				s = D[j];
+				sOrigin = origin[j];
+				D[j] = value;
+				P[j] = p;
+				origin[j] = o;
+				left = value;
+				leftOrigin = o;
+				
+				if (value > result.maxValue)
+				{
+					result.maxValue = value;
+					result.maxI = i;
+					result.maxJ = j;
+					result.origin = o;
+				}
+			}
+		}
+	}
+	
+	private ScalarStringAligner()
+	{
+	}
+}
@@ -0,0 +1,51 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.align;
+
+/**
+ * Entry point of the specialized nucleotide string aligner. This is the Java 8 version, which always uses the scalar
+ * code. The multi-release jar replaces it on Java 17 and newer with a version that uses the vector API, when the
+ * jdk.incubator.vector module is added to the JVM.
+ */
+final class StringAligner
+{
+	static boolean isVectorized()
+	{
+		return false;
+	}
+	
+	static void forward(char[] a, char[] b, float match, float mismatch, float gapOpen, float gapExtend, float scoreOffset, Aligner.ForwardResult result)
+	{
+		ScalarStringAligner.forward(a, b, match, mismatch, gapOpen, gapExtend, scoreOffset, result);
+	}
+	
+	private StringAligner()
+	{
+	}
+}
@@ -29,20 +29,21 @@
  */
 package edu.umd.marbl.mhap.impl;
 
-import java.io.BufferedWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+import edu.umd.marbl.mhap.impl.MatchResultWriter.OutputFormat;
 import edu.umd.marbl.mhap.utils.ReadBuffer;
-import edu.umd.marbl.mhap.utils.Utils;
 
 public abstract class AbstractMatchSearch
 {
@@ -53,8 +54,12 @@ public abstract class AbstractMatchSearch
 	private final boolean storeResults;
 
 	public final static int NUM_ELEMENTS_PER_OUTPUT = 20000;
-	protected final static BufferedWriter STD_OUT_BUFFER = new BufferedWriter(new OutputStreamWriter(System.out),
-			Utils.BUFFER_BYTE_SIZE);
+	private final static int PIPELINE_BATCH_SIZE = 64;
+	private final static int QUEUE_BATCHES_PER_THREAD = 2;
+	protected final static MatchResultWriter STD_OUT_WRITER = new MatchResultWriter(System.out);
+	
+	// one writer per search thread, used instead of standard output if set
+	private static MatchResultWriter[] shardWriters = null;
 
 	public AbstractMatchSearch(int numThreads, boolean storeResults)
 	{
@@ -64,43 +69,127 @@ public abstract class AbstractMatchSearch
 		this.sequencesSearched = new AtomicLong();
 	}
 
+	/**
+	 * Loads the sketches as a pipeline of parse, sketch and index stages, connected by bounded queues of batches. A full
+	 * queue blocks the stage before it, so only a few batches are in flight at a time. Dat files are already sketched,
+	 * and are read directly by the sketch stage. The stages share the numThreads threads, and if there are fewer threads
+	 * than stages, each thread parses, sketches and indexes its own batches.
+	 */
 	protected void addData(final SequenceSketchStreamer data, boolean doReverseCompliment)
 	{
-		// figure out number of cores
-		ExecutorService execSvc = Executors.newFixedThreadPool(this.numThreads);
-
+		final int numStages = data.isReadingFasta() ? 3 : 2;
+		final boolean inline = this.numThreads < numStages;
+		final int numParsers = data.isReadingFasta() && !inline ? Math.max(1, this.numThreads/4) : 0;
+		final int numIndexers = inline ? 0 : Math.max(1, this.numThreads/4);
+		final int numSketchers = Math.max(1, this.numThreads-numParsers-numIndexers);
+		
+		final ArrayBlockingQueue<List<Sequence>> sequenceQueue = new ArrayBlockingQueue<>(QUEUE_BATCHES_PER_THREAD*numSketchers);
+		final ArrayBlockingQueue<List<SequenceSketch>> sketchQueue = new ArrayBlockingQueue<>(QUEUE_BATCHES_PER_THREAD*numSketchers);
+		final AtomicInteger parsersRunning = new AtomicInteger(numParsers);
+		final AtomicInteger sketchersRunning = new AtomicInteger(numSketchers);
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
 		final AtomicInteger counter = new AtomicInteger();
-		for (int iter = 0; iter < this.numThreads; iter++)
+		
+		final ExecutorService execSvc = Executors.newFixedThreadPool(numParsers+numSketchers+numIndexers);
+
+		for (int iter = 0; iter < numParsers; iter++)
 		{
-			Runnable task = new Runnable()
+			execSvc.execute(new Runnable()
 			{
 				@Override
 				public void run()
 				{
 					try
 					{
-						ReadBuffer buf = new ReadBuffer();
-						SequenceSketch seqHashes = data.dequeue(!doReverseCompliment, buf);
-						while (seqHashes != null)
+						List<Sequence> batch = data.readSequenceBatch(PIPELINE_BATCH_SIZE);
+						while (batch != null)
 						{
-							addSequence(seqHashes);
+							sequenceQueue.put(batch);
+							batch = data.readSequenceBatch(PIPELINE_BATCH_SIZE);
+						}
+						
+						// last parser tells the sketchers that there is no more input
+						if (parsersRunning.decrementAndGet() == 0)
+							for (int count = 0; count < numSketchers; count++)
+								sequenceQueue.put(Collections.<Sequence>emptyList());
+					}
+					catch (Throwable e)
+					{
+						stopPipeline(execSvc, failure, e);
+					}
+				}
+			});
+		}
 
-							int currCount = counter.incrementAndGet();
-							if (currCount % 5000 == 0)
-								System.err.println("Current # sequences stored: " + currCount + "...");
+		for (int iter = 0; iter < numSketchers; iter++)
+		{
+			execSvc.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						ReadBuffer buf = new ReadBuffer();
+						while (true)
+						{
+							List<SequenceSketch> sketches;
+							if (data.isReadingFasta())
+							{
+								List<Sequence> batch = inline ? data.readSequenceBatch(PIPELINE_BATCH_SIZE) : sequenceQueue.take();
+								if (batch==null || batch.isEmpty())
+									break;
 
-							seqHashes = data.dequeue(false, buf);
+								sketches = data.getSketches(batch, false);
+							}
+							else
+							{
+								sketches = data.readSketchBatch(false, PIPELINE_BATCH_SIZE, buf);
+								if (sketches == null)
+									break;
+							}
+							
+							if (inline)
+								addSketches(sketches, counter);
+							else
+							if (!sketches.isEmpty())
+								sketchQueue.put(sketches);
 						}
+						
+						if (sketchersRunning.decrementAndGet() == 0)
+							for (int count = 0; count < numIndexers; count++)
+								sketchQueue.put(Collections.<SequenceSketch>emptyList());
 					}
-					catch (IOException e)
+					catch (Throwable e)
 					{
-						throw new MhapRuntimeException(e);
+						stopPipeline(execSvc, failure, e);
 					}
 				}
-			};
+			});
+		}
 
-			// enqueue the task
-			execSvc.execute(task);
+		for (int iter = 0; iter < numIndexers; iter++)
+		{
+			execSvc.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						List<SequenceSketch> sketches = sketchQueue.take();
+						while (!sketches.isEmpty())
+						{
+							addSketches(sketches, counter);
+							sketches = sketchQueue.take();
+						}
+					}
+					catch (Throwable e)
+					{
+						stopPipeline(execSvc, failure, e);
+					}
+				}
+			});
 		}
 
 		// shutdown the service
@@ -114,6 +203,28 @@ public abstract class AbstractMatchSearch
 			execSvc.shutdownNow();
 			throw new MhapRuntimeException("Unable to finish all tasks.");
 		}
+		
+		if (failure.get() != null)
+			throw new MhapRuntimeException("Unable to load the sequences.", failure.get());
+	}
+
+	private void addSketches(List<SequenceSketch> sketches, AtomicInteger counter)
+	{
+		for (SequenceSketch seqHashes : sketches)
+		{
+			addSequence(seqHashes);
+
+			int currCount = counter.incrementAndGet();
+			if (currCount % 5000 == 0)
+				System.err.println("Current # sequences stored: " + currCount + "...");
+		}
+	}
+
+	private static void stopPipeline(ExecutorService execSvc, AtomicReference<Throwable> failure, Throwable e)
+	{
+		// the first error is reported, the interrupts it causes in the other stages are not
+		if (failure.compareAndSet(null, e))
+			execSvc.shutdownNow();
 	}
 
 	protected abstract boolean addSequence(SequenceSketch seqHashes);
@@ -125,12 +236,13 @@ public abstract class AbstractMatchSearch
 
 		// allocate the storage and get the list of valeus
 		final ArrayList<MatchResult> combinedList = new ArrayList<MatchResult>();
-		final ConcurrentLinkedQueue<SequenceId> seqList = new ConcurrentLinkedQueue<SequenceId>(
-				getStoredForwardSequenceIds());
+		final int numStored = getNumberStoredForwardSequences();
+		final AtomicInteger nextIndex = new AtomicInteger();
 
 		// for each thread create a task
 		for (int iter = 0; iter < this.numThreads; iter++)
 		{
+			final int shard = iter;
 			Runnable task = new Runnable()
 			{
 				@Override
@@ -139,23 +251,21 @@ public abstract class AbstractMatchSearch
 					List<MatchResult> localMatches = new ArrayList<MatchResult>();
 
 					// get next sequence
-					SequenceId nextSequence = seqList.poll();
+					int index = nextIndex.getAndIncrement();
 
-					while (nextSequence != null)
+					while (index < numStored)
 					{
-						SequenceSketch sequenceHashes = getStoredSequenceHash(nextSequence);
-
 						// only search the forward sequences
-						localMatches.addAll(findMatches(sequenceHashes, true));
+						localMatches.addAll(findStoredMatches(index));
 
 						// record search
 						AbstractMatchSearch.this.sequencesSearched.getAndIncrement();
 
 						// get next sequence
-						nextSequence = seqList.poll();
+						index = nextIndex.getAndIncrement();
 
 						// output stored results
-						if (nextSequence == null || localMatches.size() >= NUM_ELEMENTS_PER_OUTPUT)
+						if (index >= numStored || localMatches.size() >= NUM_ELEMENTS_PER_OUTPUT)
 						{
 							// count the number of matches
 							AbstractMatchSearch.this.matchesProcessed.getAndAdd(localMatches.size());
@@ -169,7 +279,7 @@ public abstract class AbstractMatchSearch
 								}
 							}
 							else
-								outputResults(localMatches);
+								outputResults(localMatches, shard);
 
 							localMatches.clear();
 						}
@@ -211,6 +321,7 @@ public abstract class AbstractMatchSearch
 		// for each thread create a task
 		for (int iter = 0; iter < this.numThreads; iter++)
 		{
+			final int shard = iter;
 			Runnable task = new Runnable()
 			{
 				@Override
@@ -250,7 +361,7 @@ public abstract class AbstractMatchSearch
 									}
 								}
 								else
-									outputResults(localMatches);
+									outputResults(localMatches, shard);
 
 								localMatches.clear();
 							}
@@ -284,11 +395,63 @@ public abstract class AbstractMatchSearch
 		return combinedList;
 	}
 
+	/**
+	 * Sets the format of the results written to standard output, must be called before any search.
+	 * 
+	 * @param compress
+	 *            if true, the output is BGZF compressed by the search threads.
+	 */
+	public static void setOutputFormat(OutputFormat format, boolean compress)
+	{
+		STD_OUT_WRITER.setFormat(format, compress);
+	}
+
+	/**
+	 * Writes the results of each search thread to its own file, prefix.[thread].[txt, paf or bin][.gz], instead of standard
+	 * output. The threads write their files directly, without a shared writer. Used instead of setOutputFormat(), must
+	 * be called before any search.
+	 * 
+	 * @param compress
+	 *            if true, the shards are BGZF compressed by the search threads.
+	 */
+	public static void setShardOutput(String prefix, int numShards, OutputFormat format, boolean compress) throws IOException
+	{
+		MatchResultWriter[] writers = new MatchResultWriter[numShards];
+		for (int iter = 0; iter < numShards; iter++)
+		{
+			String fileName = prefix+"."+iter+"."+format.getFileExtension()+(compress ? ".gz" : "");
+			writers[iter] = new MatchResultWriter(new FileOutputStream(fileName), false);
+			writers[iter].setFormat(format, compress);
+		}
+		
+		shardWriters = writers;
+	}
+	
+	/**
+	 * Finishes the output, and closes the shard files. Standard output is left untouched if the results went to shards.
+	 */
+	public static void closeOutput() throws IOException
+	{
+		if (shardWriters != null)
+		{
+			for (MatchResultWriter writer : shardWriters)
+				writer.close();
+		}
+		else
+			STD_OUT_WRITER.finish();
+	}
+
 	protected void flushOutput()
 	{
 		try
 		{
-			STD_OUT_BUFFER.flush();
+			if (shardWriters != null)
+			{
+				for (MatchResultWriter writer : shardWriters)
+					writer.flush();
+			}
+			else
+				STD_OUT_WRITER.flush();
 		}
 		catch (IOException e)
 		{
@@ -311,29 +474,35 @@ public abstract class AbstractMatchSearch
 
 	public abstract List<SequenceId> getStoredForwardSequenceIds();
 
+	protected abstract int getNumberStoredForwardSequences();
+
+	/**
+	 * Searches a stored forward sequence against the stored sequences.
+	 * 
+	 * @param index
+	 *            index of the sequence, from 0 to getNumberStoredForwardSequences()-1.
+	 */
+	protected abstract List<MatchResult> findStoredMatches(int index);
+
 	public abstract SequenceSketch getStoredSequenceHash(SequenceId id);
 
-	protected void outputResults(List<MatchResult> matches)
+	protected void outputResults(List<MatchResult> matches, int shard)
 	{
 		if (this.storeResults || matches.isEmpty())
 			return;
-
-		try
+		
+		if (shardWriters != null)
 		{
-			synchronized (STD_OUT_BUFFER)
-			{
-				for (MatchResult currResult : matches)
-				{
-					STD_OUT_BUFFER.write(currResult.toString());
-					STD_OUT_BUFFER.newLine();
-				}
-
-				STD_OUT_BUFFER.flush();
-			}
+			if (shard >= shardWriters.length)
+				throw new MhapRuntimeException("No output shard for search thread "+shard+".");
+			
+			// only this thread writes to the shard
+			shardWriters[shard].write(matches);
 		}
-		catch (IOException e)
+		else
 		{
-			throw new MhapRuntimeException(e);
+			// formatted by this thread, written by the writer thread
+			STD_OUT_WRITER.write(matches);
 		}
 	}
 
@@ -29,31 +29,86 @@
  */
 package edu.umd.marbl.mhap.impl;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.util.Locale;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicLong;
 
+import edu.umd.marbl.mhap.utils.PackedSequence;
 import edu.umd.marbl.mhap.utils.Utils;
 
+/**
+ * Reads FASTA or FASTQ files. The file is split into byte chunks that start on a record boundary, and the chunks are
+ * parsed in parallel by the threads calling dequeue(). Uncompressed files are read with positional FileChannel reads,
+ * compressed files are read serially from the stream and only the parsing is parallel. Sequence ids are assigned in
+ * file order, independent of the order in which the chunks are parsed.
+ * <p>
+ * The record boundaries of FASTQ files are found from any position only if the records have four lines. FASTQ files
+ * with multi-line records are split by walking the records from the start of the file, so they are read serially, and
+ * only the parsing is parallel.
+ */
 public class FastaData implements Cloneable
 {
-	private final BufferedReader fileReader;
+	private final static class Chunk
+	{
+		private final byte[] data;
+		private final int index;
+		private final int length;
+		
+		private Chunk(int index, byte[] data, int length)
+		{
+			this.index = index;
+			this.data = data;
+			this.length = length;
+		}
+	}
+	
+	private final FileChannel fileChannel;
+	private final InputStream fileReader;
+	private final boolean isFastq;
+	private boolean isMultiLineFastq;
+	private boolean layoutChecked;
 	private final long offset;
-	private String lastLine;
+	private final Object readLock;
+	private final Object idLock;
+	
+	private byte[] carry;
+	private int carryLength;
+	private long filePosition;
+	private final long fileSize;
+	private int numChunksClaimed;
+	private int numChunksNumbered;
+	private int numChunksParsing;
+	private int numChunksReading;
+	private volatile boolean failed;
+
 	private AtomicLong numberProcessed;
 	private boolean readFullFile;
 	// length of sequences loaded
 	private final ConcurrentLinkedQueue<Sequence> sequenceList;
 
-	private static final String[] fastaSuffix = { "fna", "contigs", "contig", "final", "fasta", "fa" };
+	private static final int CHUNK_SIZE = 1 << 24;
+	private static final int SEARCH_WINDOW_SIZE = 1 << 20;
+	private static final String[] fastaSuffix = { "fna", "contigs", "contig", "final", "fasta", "fa", "fastq", "fq" };
 
 	private FastaData(ConcurrentLinkedQueue<Sequence> seqList)
 	{
 		this.sequenceList = new ConcurrentLinkedQueue<Sequence>(seqList);
+		this.fileChannel = null;
 		this.fileReader = null;
-		this.lastLine = null;
+		this.isFastq = false;
+		this.isMultiLineFastq = false;
+		this.layoutChecked = true;
+		this.readLock = new Object();
+		this.idLock = new Object();
+		this.fileSize = 0;
 		this.readFullFile = true;
 		this.numberProcessed = new AtomicLong(this.sequenceList.size());
 		this.offset = 0;
@@ -63,7 +118,21 @@ public class FastaData implements Cloneable
 	{
 		try
 		{
-			this.fileReader = Utils.getFile(file, fastaSuffix);
+			if (file.endsWith("gz") || file.endsWith("bz2"))
+			{
+				this.fileReader = Utils.getInputStream(file, fastaSuffix);
+				this.fileChannel = null;
+				this.fileSize = -1;
+			}
+			else
+			{
+				//checks the suffix
+				Utils.getInputStream(file, fastaSuffix).close();
+				
+				this.fileReader = null;
+				this.fileChannel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+				this.fileSize = this.fileChannel.size();
+			}
 		}
 		catch (Exception e)
 		{
@@ -71,10 +140,42 @@ public class FastaData implements Cloneable
 		}
 
 		this.offset = offset;
-		this.lastLine = null;
+		this.readLock = new Object();
+		this.idLock = new Object();
+		this.carry = new byte[0];
+		this.carryLength = 0;
+		this.filePosition = 0;
+		this.numChunksClaimed = 0;
+		this.numChunksNumbered = 0;
+		this.numChunksParsing = 0;
+		this.numChunksReading = 0;
+		this.failed = false;
 		this.readFullFile = false;
 		this.numberProcessed = new AtomicLong(0);
 		this.sequenceList = new ConcurrentLinkedQueue<Sequence>();
+		this.isMultiLineFastq = false;
+		this.layoutChecked = false;
+		
+		//figure out the format from the first character
+		int first = readFirstByte();
+		if (first < 0)
+		{
+			close();
+			this.isFastq = false;
+			this.readFullFile = true;
+		}
+		else
+		if (first == '>' || first == '@')
+			this.isFastq = first == '@';
+		else
+		{
+			close();
+			throw new MhapRuntimeException("Next sequence does not start with > or @. Invalid format.");
+		}
+		
+		//the stream is checked with its first chunk
+		if (this.fileChannel != null && !this.readFullFile)
+			checkFileLayout();
 	}
 
 	/*
@@ -97,110 +198,179 @@ public class FastaData implements Cloneable
 
 		return new FastaData(this.sequenceList);
 	}
-
-	public Sequence dequeue() throws IOException
+	
+	private Chunk claimNextChunk() throws IOException
 	{
-		Sequence seq;
-		synchronized (this.sequenceList)
+		long start;
+		long end;
+		int index;
+		synchronized (this.readLock)
 		{
-			if (this.sequenceList.isEmpty())
+			if (this.readFullFile || this.failed)
+				return null;
+			
+			if (this.fileReader != null)
+				return readNextStreamChunk();
+			
+			start = this.filePosition;
+			if (start >= this.fileSize)
 			{
-				enqueueNextSequenceInFile();
+				// the last reader closes the file, once the other chunks are read
+				this.readFullFile = true;
+				if (this.numChunksReading == 0)
+					close();
+				
+				return null;
 			}
-	
-			// get the sequence
-			seq = this.sequenceList.poll();		
+
+			if (this.isMultiLineFastq)
+				return readNextSerialChunk();
+
+			end = nextRecordStart(start + CHUNK_SIZE);
+			if (end - start > Integer.MAX_VALUE - 8)
+				throw new MhapRuntimeException("Sequence record is too large to be read.");
+			
+			this.filePosition = end;
+			index = this.numChunksClaimed++;
+			this.numChunksParsing++;
+			this.numChunksReading++;
 		}
+		
+		// read the chunk outside of the lock, positional reads can run concurrently
+		byte[] data = new byte[(int) (end - start)];
+		try
+		{
+			readFully(data, 0, data.length, start);
+		}
+		catch (IOException e)
+		{
+			fail();
+			synchronized (this.readLock)
+			{
+				this.numChunksParsing--;
+			}
+			
+			throw e;
+		}
+		finally
+		{
+			synchronized (this.readLock)
+			{
+				this.numChunksReading--;
+				if (this.readFullFile && this.numChunksReading == 0)
+					close();
+			}
+		}
+		
+		return new Chunk(index, data, data.length);
+	}
+	
+	private void close() throws IOException
+	{
+		if (this.fileChannel != null)
+			this.fileChannel.close();
+		if (this.fileReader != null)
+			this.fileReader.close();
+	}
 
-		return seq;
+	public Sequence dequeue() throws IOException
+	{
+		while (true)
+		{
+			Sequence seq = this.sequenceList.poll();
+			if (seq != null)
+				return seq;
+			
+			// parse the next chunk, other threads can parse chunks at the same time
+			if (!enqueueNextChunk())
+				return this.sequenceList.poll();
+		}
 	}
 
 	public void enqueueFullFile() throws IOException
 	{
-		while (enqueueNextSequenceInFile())
+		while (enqueueNextChunk())
 		{
 		}
 	}
 
-	private boolean enqueueNextSequenceInFile() throws IOException
+	private boolean enqueueNextChunk() throws IOException
 	{
-		StringBuilder fastaSeq = new StringBuilder();
-		String header = null;
-		long index = -1 - this.offset;
+		Chunk chunk = claimNextChunk();
+		if (chunk == null)
+			return false;
 		
-		synchronized (this.fileReader)
+		try
 		{
-			if (this.readFullFile)
-				return false;
+			ArrayList<PackedSequence> sequences = new ArrayList<>();
+			ArrayList<String> headers = SequenceId.STORE_FULL_ID ? new ArrayList<>() : null;
+			
+			if (this.isFastq)
+				parseFastq(chunk, sequences, headers);
+			else
+				parseFasta(chunk, sequences, headers);
 
-			// try to read the next line
-			if (this.lastLine == null)
+			// ids follow the file order, so wait until the previous chunks are numbered
+			long index;
+			synchronized (this.idLock)
 			{
-				this.lastLine = this.fileReader.readLine();
-
-				// there is no next line
-				if (this.lastLine == null)
+				while (this.numChunksNumbered != chunk.index && !this.failed)
 				{
-					this.fileReader.close();
-					this.readFullFile = true;
-					return false;
+					try
+					{
+						this.idLock.wait();
+					}
+					catch (InterruptedException e)
+					{
+						throw new MhapRuntimeException(e);
+					}
 				}
+				
+				if (this.failed)
+					throw new MhapRuntimeException("Unable to read sequence file.");
+				
+				index = this.numberProcessed.getAndAdd(sequences.size());
+				this.numChunksNumbered++;
+				this.idLock.notifyAll();
 			}
 
-			// process the header
-			if (!this.lastLine.startsWith(">"))
-				throw new MhapRuntimeException("Next sequence does not start with >. Invalid format.");
-
-			// process the current header
-			if (SequenceId.STORE_FULL_ID)
-				header = this.lastLine.substring(1).split("[\\s,]+", 2)[0];
-			
-			//read the first line of the sequence
-			this.lastLine = this.fileReader.readLine();
-
-			while (true)
+			for (int iter = 0; iter < sequences.size(); iter++)
 			{
-				if (this.lastLine!=null && !this.lastLine.startsWith(">"))
-				{
-					// append the last line
-					fastaSeq.append(this.lastLine);
-					this.lastLine = this.fileReader.readLine();
-				}
-				else
-				if (this.lastLine == null)
-				{
-					this.fileReader.close();
-					this.readFullFile = true;
-					break;
-				}
+				//generate sequence id
+				SequenceId id;
+				if (SequenceId.STORE_FULL_ID)
+					id = new SequenceId(index + iter + 1 + this.offset, true, headers.get(iter));
 				else
-					break;
+					id = new SequenceId(index + iter + 1 + this.offset);
+				
+				// enqueue sequence
+				this.sequenceList.add(new Sequence(sequences.get(iter), id));
 			}
-
-			if (fastaSeq.length()>0)
-				index = this.numberProcessed.incrementAndGet();			
-		}			
-		
-		String fastaSeqSring = fastaSeq.toString();
-		if (!fastaSeqSring.isEmpty())
+		}
+		catch (RuntimeException e)
 		{
-			//generate sequence id
-			SequenceId id;
-			if (SequenceId.STORE_FULL_ID)
-				id = new SequenceId(index + this.offset, true, header);
-			else
-				id = new SequenceId(index + this.offset);
-
-			Sequence seq = new Sequence(fastaSeq.toString().toUpperCase(Locale.ENGLISH), id);
-
-			// enqueue sequence
-			this.sequenceList.add(seq);
-
-			return true;
+			fail();
+			throw e;
 		}
-		else
-			return false;
+		finally
+		{
+			synchronized (this.readLock)
+			{
+				this.numChunksParsing--;
+			}
+		}
+		
+		return true;
+	}
 
+	private void fail()
+	{
+		// stops the threads waiting for this chunk to be numbered
+		synchronized (this.idLock)
+		{
+			this.failed = true;
+			this.idLock.notifyAll();
+		}
 	}
 
 	public int getNumberProcessed()
@@ -227,12 +397,429 @@ public class FastaData implements Cloneable
 
 	public boolean isEmpty()
 	{
-		synchronized (this.fileReader)
+		synchronized (this.readLock)
+		{
+			return this.sequenceList.isEmpty() && this.readFullFile && this.numChunksParsing == 0;
+		}
+	}
+
+	private static boolean isNewLine(byte b)
+	{
+		return b == '\n' || b == '\r';
+	}
+	
+	/**
+	 * Checks if a record starts at position, which must be the start of a line. FASTQ records are recognized by an @
+	 * line followed by a + line two lines later, since quality lines can also start with @, so only four line records
+	 * are recognized.
+	 */
+	private boolean isRecordStart(byte[] data, int position, int length)
+	{
+		if (position >= length)
+			return false;
+		
+		if (!this.isFastq)
+			return data[position] == '>';
+		
+		if (data[position] != '@')
+			return false;
+		
+		int next = skipLine(data, position, length);
+		next = skipLine(data, next, length);
+		
+		return next < length && data[next] == '+';
+	}
+
+	private int readFirstByte() throws IOException
+	{
+		byte[] first = new byte[1];
+		if (this.fileReader != null)
+		{
+			if (readStream(first, 0, 1) < 0)
+				return -1;
+			
+			// keep the byte for the first chunk
+			this.carry = first;
+			this.carryLength = 1;
+		}
+		else
+		{
+			if (this.fileSize == 0)
+				return -1;
+			
+			readFully(first, 0, 1, 0);
+		}
+		
+		return first[0];
+	}
+
+	private void readFully(byte[] data, int offset, int length, long position) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+		while (buffer.hasRemaining())
+		{
+			int numRead = this.fileChannel.read(buffer, position + buffer.position() - offset);
+			if (numRead < 0)
+				throw new IOException("Unexpected end of file.");
+		}
+	}
+	
+	/**
+	 * Finds the first record that starts at or after position, by reading small windows of the file.
+	 */
+	private long nextRecordStart(long position) throws IOException
+	{
+		if (position >= this.fileSize)
+			return this.fileSize;
+		
+		// include the previous character, to know if position is the start of a line
+		int windowSize = SEARCH_WINDOW_SIZE;
+		while (true)
 		{
-			return this.sequenceList.isEmpty() && this.readFullFile;
+			long windowStart = position - 1;
+			int length = (int) Math.min(windowSize, this.fileSize - windowStart);
+			byte[] window = new byte[length];
+			readFully(window, 0, length, windowStart);
+			
+			for (int iter = 1; iter < length; iter++)
+				if (isNewLine(window[iter - 1]) && isRecordStart(window, iter, length))
+					return windowStart + iter;
+			
+			if (windowStart + length >= this.fileSize)
+				return this.fileSize;
+			
+			windowSize *= 2;
 		}
 	}
 
+	private Chunk readNextStreamChunk() throws IOException
+	{
+		byte[] data = Arrays.copyOf(this.carry, Math.max(CHUNK_SIZE, this.carryLength * 2));
+		int length = this.carryLength;
+		
+		while (true)
+		{
+			int numRead = readStream(data, length, data.length - length);
+			length += Math.max(0, numRead);
+			
+			if (numRead < 0)
+			{
+				this.fileReader.close();
+				this.readFullFile = true;
+				this.carryLength = 0;
+				
+				if (length == 0)
+					return null;
+				
+				break;
+			}
+			
+			// the first chunk must hold the first three lines to know the layout
+			if (!this.layoutChecked && !checkLayout(data, length, false))
+			{
+				data = Arrays.copyOf(data, data.length * 2);
+				continue;
+			}
+			
+			// cut the buffer at the start of the last record, which might not be complete
+			int cut = findCut(data, length);
+			if (cut > 0)
+			{
+				this.carry = Arrays.copyOfRange(data, cut, length);
+				this.carryLength = length - cut;
+				length = cut;
+				break;
+			}
+			
+			// record is larger than the buffer
+			data = Arrays.copyOf(data, data.length * 2);
+		}
+		
+		this.numChunksParsing++;
+		return new Chunk(this.numChunksClaimed++, data, length);
+	}
+
+	/**
+	 * Reads the next chunk of a multi-line FASTQ file, under the read lock. The chunk ends after the last record that
+	 * is complete in it.
+	 */
+	private Chunk readNextSerialChunk() throws IOException
+	{
+		long start = this.filePosition;
+		long size = Math.min(CHUNK_SIZE, this.fileSize - start);
+		while (true)
+		{
+			if (size > Integer.MAX_VALUE - 8)
+				throw new MhapRuntimeException("Sequence record is too large to be read.");
+			
+			byte[] data = new byte[(int) size];
+			readFully(data, 0, data.length, start);
+			
+			int length = data.length;
+			if (start + size < this.fileSize)
+				length = findCut(data, data.length);
+			
+			if (length > 0)
+			{
+				this.filePosition = start + length;
+				this.numChunksParsing++;
+				return new Chunk(this.numChunksClaimed++, data, length);
+			}
+			
+			// record is larger than the chunk
+			size = Math.min(size * 2, this.fileSize - start);
+		}
+	}
+	
+	/**
+	 * @return the end of the last record in data that is known to be complete, or 0 if there is none. The data must
+	 *         start on a record.
+	 */
+	private int findCut(byte[] data, int length)
+	{
+		if (this.isMultiLineFastq)
+		{
+			int cut = 0;
+			int end = fastqRecordEnd(data, 0, length);
+			while (end > 0)
+			{
+				cut = end;
+				end = fastqRecordEnd(data, cut, length);
+			}
+			
+			return cut;
+		}
+		
+		// the start of the next record
+		for (int iter = length - 1; iter > 0; iter--)
+			if (isNewLine(data[iter - 1]) && isRecordStart(data, iter, length))
+				return iter;
+		
+		return 0;
+	}
+	
+	/**
+	 * Reads the start of the file until the layout of the first record is known.
+	 */
+	private void checkFileLayout() throws IOException
+	{
+		int windowSize = SEARCH_WINDOW_SIZE;
+		while (true)
+		{
+			int length = (int) Math.min(windowSize, this.fileSize);
+			byte[] window = new byte[length];
+			readFully(window, 0, length, 0);
+			
+			if (checkLayout(window, length, length == this.fileSize))
+				return;
+			
+			windowSize *= 2;
+		}
+	}
+	
+	/**
+	 * Checks if the first record of a FASTQ file, at the start of data, has more than one sequence line.
+	 * 
+	 * @param complete
+	 *            if data holds the whole file.
+	 * @return false if data is too short to tell.
+	 */
+	private boolean checkLayout(byte[] data, int length, boolean complete)
+	{
+		if (this.isFastq)
+		{
+			int third = skipLine(data, skipLine(data, 0, length), length);
+			if (third >= length && !complete)
+				return false;
+			
+			this.isMultiLineFastq = third < length && data[third] != '+';
+			if (this.isMultiLineFastq)
+				System.err.println("FASTQ records span multiple lines, the file is split serially and only parsed in parallel.");
+		}
+		
+		this.layoutChecked = true;
+		return true;
+	}
+
+	/**
+	 * @return the position after the FASTQ record that starts at position, or -1 if the record is not complete in data.
+	 *         The sequence and quality can span multiple lines.
+	 */
+	private static int fastqRecordEnd(byte[] data, int position, int length)
+	{
+		if (position >= length)
+			return -1;
+		
+		int end = lineEnd(data, position, length);
+		if (end >= length)
+			return -1;
+		position = skipNewLine(data, end, length);
+		
+		int sequenceLength = 0;
+		while (position < length && data[position] != '+')
+		{
+			end = lineEnd(data, position, length);
+			if (end >= length)
+				return -1;
+			
+			sequenceLength += end - position;
+			position = skipNewLine(data, end, length);
+		}
+		
+		if (position >= length)
+			return -1;
+		end = lineEnd(data, position, length);
+		if (end >= length)
+			return -1;
+		position = skipNewLine(data, end, length);
+		
+		// same as parseFastq(), an empty sequence still has an empty quality line
+		int qualityLength = 0;
+		do
+		{
+			end = lineEnd(data, position, length);
+			if (end >= length)
+				return -1;
+			
+			qualityLength += end - position;
+			position = skipNewLine(data, end, length);
+		}
+		while (qualityLength < sequenceLength);
+		
+		return position;
+	}
+
+	private int readStream(byte[] data, int offset, int length) throws IOException
+	{
+		int total = 0;
+		while (total < length)
+		{
+			int numRead = this.fileReader.read(data, offset + total, length - total);
+			if (numRead < 0)
+				return total > 0 ? total : -1;
+			
+			total += numRead;
+		}
+		
+		return total;
+	}
+	
+	private static int lineEnd(byte[] data, int position, int length)
+	{
+		while (position < length && !isNewLine(data[position]))
+			position++;
+		
+		return position;
+	}
+	
+	private static String parseHeader(byte[] data, int start, int end)
+	{
+		return new String(data, start + 1, end - start - 1, Charset.defaultCharset()).split("[\\s,]+", 2)[0];
+	}
+	
+	private static void parseFasta(Chunk chunk, ArrayList<PackedSequence> sequences, ArrayList<String> headers)
+	{
+		byte[] data = chunk.data;
+		int length = chunk.length;
+		
+		// bases are packed as they are read, without an intermediate string
+		PackedSequence.Builder builder = new PackedSequence.Builder();
+		
+		int position = 0;
+		while (position < length)
+		{
+			// process the header
+			int end = lineEnd(data, position, length);
+			if (data[position] != '>')
+				throw new MhapRuntimeException("Next sequence does not start with >. Invalid format.");
+			
+			String header = SequenceId.STORE_FULL_ID ? parseHeader(data, position, end) : null;
+			position = skipNewLine(data, end, length);
+
+			// append the lines of the sequence
+			builder.reset();
+			while (position < length && data[position] != '>')
+			{
+				end = lineEnd(data, position, length);
+				builder.append(data, position, end - position);
+				position = skipNewLine(data, end, length);
+			}
+
+			// empty records do not get an id
+			if (builder.length() > 0)
+			{
+				sequences.add(builder.build());
+				if (headers != null)
+					headers.add(header);
+			}
+		}
+	}
+	
+	private static void parseFastq(Chunk chunk, ArrayList<PackedSequence> sequences, ArrayList<String> headers)
+	{
+		byte[] data = chunk.data;
+		int length = chunk.length;
+		
+		PackedSequence.Builder builder = new PackedSequence.Builder();
+		
+		int position = 0;
+		while (position < length)
+		{
+			// process the header
+			int end = lineEnd(data, position, length);
+			if (data[position] != '@')
+				throw new MhapRuntimeException("Next sequence does not start with @. Invalid format.");
+			
+			String header = SequenceId.STORE_FULL_ID ? parseHeader(data, position, end) : null;
+			position = skipNewLine(data, end, length);
+
+			// sequence lines, up to the + separator
+			builder.reset();
+			while (position < length && data[position] != '+')
+			{
+				end = lineEnd(data, position, length);
+				builder.append(data, position, end - position);
+				position = skipNewLine(data, end, length);
+			}
+			
+			if (position >= length)
+				throw new MhapRuntimeException("FASTQ record is missing the + line. Invalid format.");
+			position = skipLine(data, position, length);
+			
+			// quality lines, same total length as the sequence, an empty sequence still has an empty quality line
+			int qualityLength = 0;
+			do
+			{
+				end = lineEnd(data, position, length);
+				qualityLength += end - position;
+				position = skipNewLine(data, end, length);
+			}
+			while (qualityLength < builder.length() && position < length);
+			
+			if (builder.length() > 0)
+			{
+				sequences.add(builder.build());
+				if (headers != null)
+					headers.add(header);
+			}
+		}
+	}
+
+	private static int skipLine(byte[] data, int position, int length)
+	{
+		return skipNewLine(data, lineEnd(data, position, length), length);
+	}
+
+	private static int skipNewLine(byte[] data, int position, int length)
+	{
+		if (position < length && data[position] == '\r')
+			position++;
+		if (position < length && data[position] == '\n')
+			position++;
+		
+		return position;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -242,6 +829,6 @@ public class FastaData implements Cloneable
 	protected void finalize() throws Throwable
 	{
 		super.finalize();
-		this.fileReader.close();
+		close();
 	}
 }
@@ -0,0 +1,705 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+
+import edu.umd.marbl.mhap.sketch.LongCountMin;
+import edu.umd.marbl.mhap.sketch.RollingKmerHasher;
+import edu.umd.marbl.mhap.utils.PackedSequence;
+import edu.umd.marbl.mhap.utils.Utils;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+
+/**
+ * Counts the k-mers of FASTA/FASTQ files and writes the most frequent ones as a k-mer filter file (see
+ * FrequencyCounts). The packed k-mers are counted in partitioned open-addressed tables, which the threads update
+ * lock-free with compare-and-set. When a table fills up, all threads stop and the tables are sorted and spilled to
+ * disk as runs, so the memory use is bounded. At the end each partition merges its runs, in parallel, a bounded
+ * number of runs at a time. Optionally, the k-mers are first counted in a CountMin sketch, and only the ones that can
+ * reach the cutoff are counted exactly, in a second pass over the files.
+ */
+public final class KmerCounter
+{
+	/**
+	 * Sorted k-mers and counts, from a spilled run or from a table.
+	 */
+	private final static class Cursor
+	{
+		private long count;
+		private final long[] counts;
+		private final DataInputStream input;
+		private long key;
+		private long position;
+		private final long size;
+		private final long[] keys;
+
+		private Cursor(File file, long offset, long size) throws IOException
+		{
+			FileInputStream stream = new FileInputStream(file);
+			stream.getChannel().position(offset);
+			this.input = new DataInputStream(new BufferedInputStream(stream, 1 << 16));
+			this.keys = null;
+			this.counts = null;
+			this.size = size;
+			this.position = 0L;
+		}
+
+		private Cursor(long[] keys, long[] counts, int size)
+		{
+			this.input = null;
+			this.keys = keys;
+			this.counts = counts;
+			this.size = size;
+			this.position = 0L;
+		}
+
+		private void close() throws IOException
+		{
+			if (this.input != null)
+				this.input.close();
+		}
+
+		private boolean next() throws IOException
+		{
+			if (this.position >= this.size)
+				return false;
+
+			if (this.input != null)
+			{
+				this.key = this.input.readLong();
+				this.count = this.input.readLong();
+			}
+			else
+			{
+				this.key = this.keys[(int) this.position];
+				this.count = this.counts[(int) this.position];
+			}
+			this.position++;
+
+			return true;
+		}
+	}
+
+	/**
+	 * Receives the merged k-mers and counts.
+	 */
+	private interface CountConsumer
+	{
+		void accept(long key, long count) throws IOException;
+	}
+
+	private final static class Partition
+	{
+		private final int capacity;
+		private final LongArrayList runOffsets = new LongArrayList();
+		private final LongArrayList runSizes = new LongArrayList();
+		private final AtomicInteger size = new AtomicInteger();
+		private File spillFile;
+
+		// interleaved keys and counts
+		private final AtomicLongArray table;
+
+		private Partition(int capacity)
+		{
+			this.capacity = capacity;
+			this.table = new AtomicLongArray(2 * capacity);
+			for (int iter = 0; iter < capacity; iter++)
+				this.table.set(2 * iter, EMPTY);
+		}
+	}
+
+	private final static long EMPTY = -1L;
+	private final static double HARD_LOAD = 0.8;
+	private final static int MAX_MERGE_RUNS = 8;
+	private final static int MIN_PARTITION_CAPACITY = 1 << 12;
+	private final static int NUM_SKETCH_HASHES = 4;
+	private final static int PARTITION_BITS = 8;
+	private final static double SOFT_LOAD = 0.6;
+
+	private final boolean doReverseCompliment;
+	private final int hardLimit;
+	private final int kmerSize;
+	private final long memoryBytes;
+	private final int numThreads;
+	private final int partitionCapacity;
+	private final Partition[] partitions;
+	private final int softLimit;
+	private final AtomicInteger numSpills = new AtomicInteger();
+	private volatile boolean spillRequested;
+	private final AtomicInteger spillPartition = new AtomicInteger();
+	private File tempDirectory;
+	private final LongAdder totalKmers = new LongAdder();
+
+	/**
+	 * @param memoryBytes
+	 *            memory used by the counting tables, or by the CountMin sketch.
+	 */
+	public KmerCounter(int kmerSize, boolean doReverseCompliment, int numThreads, long memoryBytes)
+	{
+		// the all T k-mer is the empty marker, it is never the canonical one
+		if (kmerSize < 1 || kmerSize > RollingKmerHasher.MAX_KMER_SIZE || (kmerSize == RollingKmerHasher.MAX_KMER_SIZE && !doReverseCompliment))
+			throw new MhapRuntimeException("K-mer counting supports k-mer sizes up to "+RollingKmerHasher.MAX_KMER_SIZE+" ("+(RollingKmerHasher.MAX_KMER_SIZE-1)+" with --no-rc).");
+
+		this.kmerSize = kmerSize;
+		this.doReverseCompliment = doReverseCompliment;
+		this.numThreads = numThreads;
+		this.memoryBytes = memoryBytes;
+
+		// 16 bytes per slot, the tables are allocated when the exact counting starts
+		this.partitionCapacity = Integer.highestOneBit((int) Math.max(MIN_PARTITION_CAPACITY, Math.min(1 << 30, memoryBytes / 16L >>> PARTITION_BITS)));
+		this.partitions = new Partition[1 << PARTITION_BITS];
+		this.softLimit = (int) (SOFT_LOAD * this.partitionCapacity);
+		this.hardLimit = (int) (HARD_LOAD * this.partitionCapacity);
+	}
+
+	/**
+	 * Calls the action with the packed k-mer words (canonical, unless doReverseCompliment is false) of the sequence,
+	 * skipping the k-mers that contain other characters than A, C, G or T.
+	 * 
+	 * @return the number of k-mers.
+	 */
+	private int forEachKmer(PackedSequence seq, LongConsumer action)
+	{
+		final int kmerSize = this.kmerSize;
+		final long mask = kmerSize == 32 ? -1L : (1L << (2 * kmerSize)) - 1L;
+		final int topShift = 2 * (kmerSize - 1);
+
+		int nextException = seq.nextException(0);
+		int lastAmbiguous = -1;
+		long fwd = 0L;
+		long rev = 0L;
+		int numKmers = 0;
+		for (int pos = 0; pos < seq.length(); pos++)
+		{
+			int code = seq.baseCode(pos);
+			if (pos == nextException)
+			{
+				lastAmbiguous = pos;
+				nextException = seq.nextException(pos + 1);
+			}
+
+			fwd = ((fwd << 2) | code) & mask;
+			rev = (rev >>> 2) | ((long) (3 - code) << topShift);
+
+			if (pos - kmerSize + 1 <= lastAmbiguous)
+				continue;
+
+			action.accept(this.doReverseCompliment && Long.compareUnsigned(rev, fwd) < 0 ? rev : fwd);
+			numKmers++;
+		}
+		
+		return numKmers;
+	}
+
+	/**
+	 * @return false if the table of the partition is full, then the k-mer must be inserted after the next spill.
+	 */
+	private boolean insert(long word)
+	{
+		long hash = RollingKmerHasher.hashWord(word, this.kmerSize, 0);
+		Partition partition = this.partitions[(int) (hash >>> (64 - PARTITION_BITS))];
+		AtomicLongArray table = partition.table;
+		int mask = partition.capacity - 1;
+
+		int slot = (int) hash & mask;
+		while (true)
+		{
+			long key = table.get(2 * slot);
+			if (key == word)
+			{
+				table.getAndIncrement(2 * slot + 1);
+				return true;
+			}
+
+			if (key == EMPTY)
+			{
+				// reserve the slot before claiming it, so the table never holds more than hardLimit k-mers
+				int size = partition.size.get();
+				if (size >= this.hardLimit)
+					return false;
+				if (!partition.size.compareAndSet(size, size + 1))
+					continue;
+
+				// another thread can claim the slot first, with the same or another k-mer
+				if (!table.compareAndSet(2 * slot, EMPTY, word))
+				{
+					partition.size.decrementAndGet();
+					continue;
+				}
+
+				table.getAndIncrement(2 * slot + 1);
+				if (size + 1 >= this.softLimit)
+					this.spillRequested = true;
+
+				return true;
+			}
+
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private void allocatePartitions()
+	{
+		if (this.partitions[0] == null)
+			for (int iter = 0; iter < this.partitions.length; iter++)
+				this.partitions[iter] = new Partition(this.partitionCapacity);
+	}
+
+	private void countFile(String file, LongCountMin sketch, long minSketchCount, boolean countTotal) throws IOException
+	{
+		final FastaData data = new FastaData(file, 0);
+
+		// the spills run between two phases, when all the active threads have stopped inserting
+		final Phaser phaser = new Phaser(this.numThreads)
+		{
+			@Override
+			protected boolean onAdvance(int phase, int registeredParties)
+			{
+				if (phase % 2 == 0)
+					KmerCounter.this.spillPartition.set(0);
+				else
+				{
+					KmerCounter.this.spillRequested = false;
+					KmerCounter.this.numSpills.incrementAndGet();
+				}
+
+				return registeredParties == 0;
+			}
+		};
+
+		ExecutorService execSvc = Executors.newFixedThreadPool(this.numThreads);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int thread = 0; thread < this.numThreads; thread++)
+			futures.add(execSvc.submit(() ->
+			{
+				try
+				{
+					final LongArrayList overflow = new LongArrayList();
+					long numKmers = 0L;
+					LongConsumer action;
+					if (sketch != null && minSketchCount <= 0L)
+						action = word -> sketch.add(word);
+					else
+					if (sketch != null)
+						action = word ->
+						{
+							if (sketch.getCount(word) >= minSketchCount && !insert(word))
+								overflow.add(word);
+						};
+					else
+						action = word ->
+						{
+							if (!insert(word))
+								overflow.add(word);
+						};
+
+					boolean done = false;
+					while (!done || !overflow.isEmpty())
+					{
+						if (!done)
+						{
+							Sequence seq = data.dequeue();
+							if (seq == null)
+								done = true;
+							else
+								numKmers += forEachKmer(seq.getPackedSequence(), action);
+						}
+
+						if (!overflow.isEmpty())
+							this.spillRequested = true;
+
+						if (this.spillRequested)
+						{
+							phaser.arriveAndAwaitAdvance();
+							spillPartitions();
+							phaser.arriveAndAwaitAdvance();
+
+							LongArrayList remaining = new LongArrayList(overflow);
+							overflow.clear();
+							for (int iter = 0; iter < remaining.size(); iter++)
+								if (!insert(remaining.getLong(iter)))
+									overflow.add(remaining.getLong(iter));
+						}
+					}
+
+					if (countTotal)
+						this.totalKmers.add(numKmers);
+				}
+				finally
+				{
+					phaser.arriveAndDeregister();
+				}
+
+				return null;
+			}));
+
+		try
+		{
+			for (Future<?> future : futures)
+				future.get();
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof MhapRuntimeException)
+				throw (MhapRuntimeException) e.getCause();
+
+			throw new MhapRuntimeException(e.getCause());
+		}
+		catch (InterruptedException e)
+		{
+			throw new MhapRuntimeException(e);
+		}
+		finally
+		{
+			execSvc.shutdownNow();
+		}
+	}
+
+	/**
+	 * Merges the sorted cursors, summing the counts of equal k-mers, and closes them.
+	 */
+	private static void mergeCursors(List<Cursor> cursors, CountConsumer consumer) throws IOException
+	{
+		PriorityQueue<Cursor> queue = new PriorityQueue<>(cursors.size(), (a, b) -> Long.compare(a.key, b.key));
+		try
+		{
+			for (Cursor cursor : cursors)
+				if (cursor.next())
+					queue.add(cursor);
+
+			while (!queue.isEmpty())
+			{
+				long key = queue.peek().key;
+				long count = 0L;
+				while (!queue.isEmpty() && queue.peek().key == key)
+				{
+					Cursor cursor = queue.poll();
+					count += cursor.count;
+					if (cursor.next())
+						queue.add(cursor);
+				}
+
+				consumer.accept(key, count);
+			}
+		}
+		finally
+		{
+			for (Cursor cursor : cursors)
+				cursor.close();
+		}
+	}
+
+	/**
+	 * Merges the spilled runs of the partition, MAX_MERGE_RUNS at a time, until at most MAX_MERGE_RUNS are left, so
+	 * the open files stay bounded however often the tables were spilled.
+	 */
+	private void compactRuns(Partition partition) throws IOException
+	{
+		while (partition.runSizes.size() > MAX_MERGE_RUNS)
+		{
+			File mergedFile = File.createTempFile("runs", ".bin", this.tempDirectory);
+			LongArrayList mergedOffsets = new LongArrayList();
+			LongArrayList mergedSizes = new LongArrayList();
+			long position = 0L;
+			try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mergedFile), Utils.BUFFER_BYTE_SIZE)))
+			{
+				for (int first = 0; first < partition.runSizes.size(); first += MAX_MERGE_RUNS)
+				{
+					List<Cursor> cursors = new ArrayList<>();
+					for (int run = first; run < Math.min(first + MAX_MERGE_RUNS, partition.runSizes.size()); run++)
+						cursors.add(new Cursor(partition.spillFile, partition.runOffsets.getLong(run), partition.runSizes.getLong(run)));
+
+					mergedOffsets.add(position);
+					long[] size = new long[1];
+					mergeCursors(cursors, (key, count) ->
+					{
+						output.writeLong(key);
+						output.writeLong(count);
+						size[0]++;
+					});
+					mergedSizes.add(size[0]);
+					position += 16L * size[0];
+				}
+			}
+
+			partition.spillFile.delete();
+			partition.spillFile = mergedFile;
+			partition.runOffsets.clear();
+			partition.runOffsets.addAll(mergedOffsets);
+			partition.runSizes.clear();
+			partition.runSizes.addAll(mergedSizes);
+		}
+	}
+
+	private void merge(Partition partition, long minCount, LongArrayList selectedKeys, LongArrayList selectedCounts) throws IOException
+	{
+		try
+		{
+			compactRuns(partition);
+
+			long[] keys = new long[partition.size.get()];
+			long[] counts = new long[keys.length];
+			int size = drain(partition, keys, counts);
+
+			List<Cursor> cursors = new ArrayList<>();
+			cursors.add(new Cursor(keys, counts, size));
+			for (int run = 0; run < partition.runSizes.size(); run++)
+				cursors.add(new Cursor(partition.spillFile, partition.runOffsets.getLong(run), partition.runSizes.getLong(run)));
+
+			mergeCursors(cursors, (key, count) ->
+			{
+				if (count >= minCount)
+				{
+					selectedKeys.add(key);
+					selectedCounts.add(count);
+				}
+			});
+		}
+		finally
+		{
+			if (partition.spillFile != null)
+				partition.spillFile.delete();
+		}
+	}
+
+	/**
+	 * Moves the k-mers of the table into the arrays, sorted, and empties the table.
+	 */
+	private static int drain(Partition partition, long[] keys, long[] counts)
+	{
+		AtomicLongArray table = partition.table;
+		int size = 0;
+		for (int slot = 0; slot < partition.capacity; slot++)
+		{
+			long key = table.get(2 * slot);
+			if (key != EMPTY)
+			{
+				keys[size] = key;
+				counts[size] = table.get(2 * slot + 1);
+				size++;
+
+				table.set(2 * slot, EMPTY);
+				table.set(2 * slot + 1, 0L);
+			}
+		}
+		partition.size.set(0);
+
+		LongArrays.radixSort(keys, counts, 0, size);
+
+		return size;
+	}
+
+	private void spillPartitions()
+	{
+		long[] keys = null;
+		long[] counts = null;
+		for (int index = this.spillPartition.getAndIncrement(); index < this.partitions.length; index = this.spillPartition.getAndIncrement())
+		{
+			Partition partition = this.partitions[index];
+			if (partition.size.get() == 0)
+				continue;
+
+			if (keys == null)
+			{
+				keys = new long[this.hardLimit];
+				counts = new long[this.hardLimit];
+			}
+
+			int size = drain(partition, keys, counts);
+			try
+			{
+				if (partition.spillFile == null)
+					partition.spillFile = new File(this.tempDirectory, "partition" + index + ".bin");
+
+				partition.runOffsets.add(partition.spillFile.length());
+				partition.runSizes.add(size);
+				try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(partition.spillFile, true), Utils.BUFFER_BYTE_SIZE)))
+				{
+					for (int iter = 0; iter < size; iter++)
+					{
+						output.writeLong(keys[iter]);
+						output.writeLong(counts[iter]);
+					}
+				}
+			}
+			catch (IOException e)
+			{
+				throw new MhapRuntimeException("Could not spill k-mer counts to "+this.tempDirectory+".", e);
+			}
+		}
+	}
+
+	private String toKmer(long word)
+	{
+		char[] kmer = new char[this.kmerSize];
+		for (int iter = this.kmerSize - 1; iter >= 0; iter--)
+		{
+			kmer[iter] = "ACGT".charAt((int) (word & 3L));
+			word >>>= 2;
+		}
+
+		return new String(kmer);
+	}
+
+	/**
+	 * Counts the k-mers of the files and writes the ones whose fraction of all the k-mers is at least minFraction,
+	 * in descending order of frequency.
+	 * 
+	 * @param useSketch
+	 *            first count in a CountMin sketch, which reads the files twice, but only the k-mers that might reach
+	 *            the cutoff are counted exactly.
+	 */
+	public void writeFilter(List<String> files, String outputFile, double minFraction, boolean useSketch) throws IOException
+	{
+		long startTime = System.nanoTime();
+
+		File output = new File(outputFile).getAbsoluteFile();
+		this.tempDirectory = Files.createTempDirectory(output.getParentFile().toPath(), "mhap-kmers").toFile();
+		try
+		{
+			LongCountMin sketch = null;
+			if (useSketch)
+			{
+				// the cells are 4 byte counters, shared by all the threads
+				int width = (int) Math.min(Integer.MAX_VALUE / NUM_SKETCH_HASHES, Math.max(1L, this.memoryBytes / (4L * NUM_SKETCH_HASHES)));
+				sketch = new LongCountMin(NUM_SKETCH_HASHES, width, 0);
+				for (String file : files)
+					countFile(file, sketch, 0L, true);
+
+				System.err.println("Time (s) to count k-mers in the sketch: " + (System.nanoTime() - startTime) * 1.0e-9);
+			}
+
+			long total = this.totalKmers.sum();
+			long minCount = Math.max(1L, (long) Math.ceil(minFraction * total));
+
+			allocatePartitions();
+			for (String file : files)
+				countFile(file, sketch, useSketch ? minCount : 0L, !useSketch);
+
+			total = this.totalKmers.sum();
+			minCount = Math.max(1L, (long) Math.ceil(minFraction * total));
+			System.err.println("Time (s) to count " + total + " k-mers: " + (System.nanoTime() - startTime) * 1.0e-9);
+			if (this.numSpills.get() > 0)
+				System.err.println("Spilled the k-mer counts to disk " + this.numSpills.get() + " times.");
+
+			// merge the partitions in parallel
+			final long finalMinCount = minCount;
+			final LongArrayList selectedKeys = new LongArrayList();
+			final LongArrayList selectedCounts = new LongArrayList();
+			ExecutorService execSvc = Executors.newFixedThreadPool(this.numThreads);
+			List<Future<?>> futures = new ArrayList<>();
+			for (Partition partition : this.partitions)
+				futures.add(execSvc.submit(() ->
+				{
+					LongArrayList keys = new LongArrayList();
+					LongArrayList counts = new LongArrayList();
+					merge(partition, finalMinCount, keys, counts);
+
+					synchronized (selectedKeys)
+					{
+						selectedKeys.addAll(keys);
+						for (int iter = 0; iter < counts.size(); iter++)
+							selectedCounts.add(-counts.getLong(iter));
+					}
+
+					return null;
+				}));
+
+			try
+			{
+				for (Future<?> future : futures)
+					future.get();
+			}
+			catch (ExecutionException e)
+			{
+				throw new MhapRuntimeException("Could not merge the k-mer counts.", e.getCause());
+			}
+			catch (InterruptedException e)
+			{
+				throw new MhapRuntimeException(e);
+			}
+			finally
+			{
+				execSvc.shutdownNow();
+			}
+
+			// descending frequency, the counts are negated
+			long[] counts = selectedCounts.toLongArray();
+			long[] keys = selectedKeys.toLongArray();
+			LongArrays.radixSort(counts, keys);
+
+			try (BufferedWriter writer = new BufferedWriter(new FileWriter(output), Utils.BUFFER_BYTE_SIZE))
+			{
+				writer.write(keys.length + " " + keys.length);
+				writer.newLine();
+				for (int iter = 0; iter < keys.length; iter++)
+				{
+					writer.write(toKmer(keys[iter]));
+					writer.write('\t');
+					writer.write(Double.toString((double) -counts[iter] / (double) total));
+					writer.newLine();
+				}
+			}
+
+			System.err.println("Wrote " + keys.length + " k-mers with counts of at least " + minCount + " to " + outputFile + ".");
+			System.err.println("Time (s) to count and write k-mers: " + (System.nanoTime() - startTime) * 1.0e-9);
+		}
+		finally
+		{
+			File[] spillFiles = this.tempDirectory.listFiles();
+			if (spillFiles != null)
+				for (File file : spillFiles)
+					file.delete();
+			this.tempDirectory.delete();
+		}
+	}
+}
@@ -29,6 +29,7 @@
  */
 package edu.umd.marbl.mhap.impl;
 
+import java.nio.ByteBuffer;
 
 public final class MatchResult implements Comparable<MatchResult>
 {
@@ -111,6 +112,157 @@ public final class MatchResult implements Comparable<MatchResult>
 				this.b2,
 				this.toLength);
 	}
+	
+	/**
+	 * PAF line: query (from) name, length, start, end, relative strand, target (to) name, length, start, end, estimated
+	 * number of matching bases, overlap block length, mapping quality (255, missing), and the tags dv:f (the error,
+	 * same as in toString()) and cm:i (the raw score). The MHAP coordinates are inclusive, the PAF ends are exclusive.
+	 */
+	public String toPafString()
+	{
+		int qStart = pafStart(this.a1, this.fromLength);
+		int qEnd = pafEnd(this.a2, qStart, this.fromLength);
+		int tStart = pafStart(this.b1, this.toLength);
+		int tEnd = pafEnd(this.b2, tStart, this.toLength);
+		int blockLength = Math.max(qEnd-qStart, tEnd-tStart);
+		
+		return String.format("%s\t%d\t%d\t%d\t%c\t%s\t%d\t%d\t%d\t%d\t%d\t255\tdv:f:%.6f\tcm:i:%d",
+				getFromId().getHeader(),
+				this.fromLength,
+				qStart,
+				qEnd,
+				getFromId().isForward()==getToId().isForward() ? '+' : '-',
+				getToId().getHeader(),
+				this.toLength,
+				tStart,
+				tEnd,
+				pafMatches(blockLength),
+				blockLength,
+				1.0-getScore(),
+				Math.round(this.rawScore));
+	}
+	
+	private static int pafStart(int start, int length)
+	{
+		return Math.max(0, Math.min(start, length));
+	}
+
+	private static int pafEnd(int end, int start, int length)
+	{
+		return Math.max(start, Math.min(end+1, length));
+	}
+	
+	private long pafMatches(int blockLength)
+	{
+		return Math.round(getScore()*blockLength);
+	}
+	
+	/**
+	 * Writes the same text as toPafString(), without creating strings.
+	 */
+	void writePaf(ByteBuffer buffer)
+	{
+		int qStart = pafStart(this.a1, this.fromLength);
+		int qEnd = pafEnd(this.a2, qStart, this.fromLength);
+		int tStart = pafStart(this.b1, this.toLength);
+		int tEnd = pafEnd(this.b2, tStart, this.toLength);
+		int blockLength = Math.max(qEnd-qStart, tEnd-tStart);
+		
+		MatchResultWriter.putId(buffer, getFromId());
+		buffer.put((byte)'\t');
+		MatchResultWriter.putLong(buffer, this.fromLength);
+		buffer.put((byte)'\t');
+		MatchResultWriter.putLong(buffer, qStart);
+		buffer.put((byte)'\t');
+		MatchResultWriter.putLong(buffer, qEnd);
+		buffer.put((byte)'\t');
+		buffer.put(getFromId().isForward()==getToId().isForward() ? (byte)'+' : (byte)'-');
+		buffer.put((byte)'\t');
+		MatchResultWriter.putId(buffer, getToId());
+		buffer.put((byte)'\t');
+		MatchResultWriter.putLong(buffer, this.toLength);
+		buffer.put((byte)'\t');
+		MatchResultWriter.putLong(buffer, tStart);
+		buffer.put((byte)'\t');
+		MatchResultWriter.putLong(buffer, tEnd);
+		buffer.put((byte)'\t');
+		MatchResultWriter.putLong(buffer, pafMatches(blockLength));
+		buffer.put((byte)'\t');
+		MatchResultWriter.putLong(buffer, blockLength);
+		buffer.put((byte)'\t');
+		MatchResultWriter.putLong(buffer, 255);
+		buffer.put((byte)'\t');
+		MatchResultWriter.putString(buffer, "dv:f:");
+		MatchResultWriter.putFixed6(buffer, 1.0-getScore());
+		buffer.put((byte)'\t');
+		MatchResultWriter.putString(buffer, "cm:i:");
+		MatchResultWriter.putLong(buffer, Math.round(this.rawScore));
+	}
+	
+	/**
+	 * Writes the same text as toString(), without creating strings.
+	 */
+	void write(ByteBuffer buffer)
+	{
+		MatchResultWriter.putId(buffer, getFromId());
+		buffer.put((byte)' ');
+		MatchResultWriter.putId(buffer, getToId());
+		buffer.put((byte)' ');
+		MatchResultWriter.putFixed6(buffer, 1.0-getScore());
+		buffer.put((byte)' ');
+		MatchResultWriter.putFixed6(buffer, this.rawScore);
+		buffer.put((byte)' ');
+		buffer.put(getFromId().isForward() ? (byte)'0' : (byte)'1');
+		buffer.put((byte)' ');
+		MatchResultWriter.putLong(buffer, this.a1);
+		buffer.put((byte)' ');
+		MatchResultWriter.putLong(buffer, this.a2);
+		buffer.put((byte)' ');
+		MatchResultWriter.putLong(buffer, this.fromLength);
+		buffer.put((byte)' ');
+		buffer.put(getToId().isForward() ? (byte)'0' : (byte)'1');
+		buffer.put((byte)' ');
+		MatchResultWriter.putLong(buffer, this.b1);
+		buffer.put((byte)' ');
+		MatchResultWriter.putLong(buffer, this.b2);
+		buffer.put((byte)' ');
+		MatchResultWriter.putLong(buffer, this.toLength);
+	}
+	
+	/**
+	 * Writes the fixed-width binary record, see MatchResultWriter. The buffer must be little-endian.
+	 */
+	void writeBinary(ByteBuffer buffer)
+	{
+		long errorUnits = MatchResultWriter.toUnits6(1.0-getScore());
+		if (errorUnits > Integer.MAX_VALUE || errorUnits < Integer.MIN_VALUE)
+			throw new MhapRuntimeException("Match score is out of range of the binary output format.");
+		
+		//the raw score is the number of shared k-mers
+		if (this.rawScore < 0.0 || this.rawScore > Integer.MAX_VALUE || this.rawScore != Math.rint(this.rawScore))
+			throw new MhapRuntimeException("Match raw score "+this.rawScore+" is not a count supported by the binary output format.");
+		
+		buffer.putInt(binaryId(getFromId()));
+		buffer.putInt(binaryId(getToId()));
+		buffer.putInt((int)errorUnits);
+		buffer.putInt((int)this.rawScore);
+		buffer.putInt(this.a1);
+		buffer.putInt(this.a2);
+		buffer.putInt(this.fromLength);
+		buffer.putInt(this.b1);
+		buffer.putInt(this.b2);
+		buffer.putInt(this.toLength);
+		buffer.put((byte)((getFromId().isForward() ? 0 : 1) | (getToId().isForward() ? 0 : 2)));
+	}
+	
+	private static int binaryId(SequenceId id)
+	{
+		long headerId = id.getHeaderId();
+		if (headerId < 0L || headerId > Integer.MAX_VALUE)
+			throw new MhapRuntimeException("Sequence id "+headerId+" is out of range of the binary output format.");
+		
+		return (int)headerId;
+	}
 
 
 }
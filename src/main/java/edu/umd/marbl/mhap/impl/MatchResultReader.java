@@ -0,0 +1,296 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.impl;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Streaming reader of the binary output format (--output-format bin). Records are read one block at a time, and the
+ * getters return the fields of the current record.
+ * 
+ * <pre>
+ * MatchResultReader reader = new MatchResultReader(in);
+ * while (reader.next())
+ *     process(reader.getFromId(), reader.getToId(), reader.getError());
+ * </pre>
+ */
+public final class MatchResultReader implements Closeable
+{
+	private final DataInputStream in;
+	private ByteBuffer block;
+	private int numRecords;
+	private int currentRecord;
+	private int position;
+
+	private final static int STRAND_OFFSET = 40;
+
+	public MatchResultReader(InputStream in) throws IOException
+	{
+		this.in = new DataInputStream(new BufferedInputStream(in, 1 << 20));
+		this.block = ByteBuffer.allocate(0).order(ByteOrder.LITTLE_ENDIAN);
+		this.numRecords = 0;
+		this.currentRecord = 0;
+		this.position = -1;
+		
+		byte[] header = new byte[MatchResultWriter.BINARY_HEADER_SIZE];
+		try
+		{
+			this.in.readFully(header);
+		}
+		catch (EOFException e)
+		{
+			throw new MhapRuntimeException("Binary output file is missing its header.");
+		}
+		
+		ByteBuffer headerBuffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+		byte[] magic = new byte[MatchResultWriter.BINARY_MAGIC.length];
+		headerBuffer.get(magic);
+		if (!Arrays.equals(magic, MatchResultWriter.BINARY_MAGIC))
+			throw new MhapRuntimeException("Not an MHAP binary output file.");
+		
+		int version = headerBuffer.getInt();
+		int recordSize = headerBuffer.getInt();
+		if (version != MatchResultWriter.BINARY_VERSION || recordSize != MatchResultWriter.BINARY_RECORD_SIZE)
+			throw new MhapRuntimeException("Unsupported binary output version "+version+".");
+	}
+	
+	@Override
+	public void close() throws IOException
+	{
+		this.in.close();
+	}
+	
+	/**
+	 * Moves to the next record.
+	 * 
+	 * @return false if there are no more records.
+	 */
+	public boolean next() throws IOException
+	{
+		while (this.currentRecord >= this.numRecords)
+		{
+			if (!readBlock())
+				return false;
+		}
+		
+		this.position = this.currentRecord*MatchResultWriter.BINARY_RECORD_SIZE;
+		this.currentRecord++;
+		
+		return true;
+	}
+	
+	private boolean readBlock() throws IOException
+	{
+		int count = this.in.read();
+		if (count < 0)
+			return false;
+		
+		byte[] countBytes = new byte[4];
+		countBytes[0] = (byte)count;
+		try
+		{
+			this.in.readFully(countBytes, 1, 3);
+			count = ByteBuffer.wrap(countBytes).order(ByteOrder.LITTLE_ENDIAN).getInt();
+			if (count < 0 || count > Integer.MAX_VALUE/MatchResultWriter.BINARY_RECORD_SIZE)
+				throw new MhapRuntimeException("Corrupt binary output file, invalid block size "+count+".");
+			
+			int size = count*MatchResultWriter.BINARY_RECORD_SIZE;
+			if (this.block.capacity() < size)
+				this.block = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+			
+			this.in.readFully(this.block.array(), 0, size);
+		}
+		catch (EOFException e)
+		{
+			throw new MhapRuntimeException("Binary output file is truncated.");
+		}
+		
+		this.numRecords = count;
+		this.currentRecord = 0;
+		
+		return true;
+	}
+	
+	private int field(int index)
+	{
+		if (this.position < 0)
+			throw new MhapRuntimeException("No current record, call next() first.");
+		
+		return this.block.getInt(this.position+4*index);
+	}
+	
+	public long getFromId()
+	{
+		return field(0);
+	}
+	
+	public long getToId()
+	{
+		return field(1);
+	}
+	
+	/**
+	 * @return the error (1-score), rounded to six decimals like the text output.
+	 */
+	public double getError()
+	{
+		return getErrorUnits()/1.0e6;
+	}
+	
+	/**
+	 * @return the error in units of 10^-6.
+	 */
+	public int getErrorUnits()
+	{
+		return field(2);
+	}
+	
+	/**
+	 * @return the raw score, the number of shared k-mers.
+	 */
+	public int getRawScore()
+	{
+		return field(3);
+	}
+	
+	public int getFromStart()
+	{
+		return field(4);
+	}
+	
+	public int getFromEnd()
+	{
+		return field(5);
+	}
+	
+	public int getFromLength()
+	{
+		return field(6);
+	}
+	
+	public int getToStart()
+	{
+		return field(7);
+	}
+	
+	public int getToEnd()
+	{
+		return field(8);
+	}
+	
+	public int getToLength()
+	{
+		return field(9);
+	}
+	
+	public boolean isFromForward()
+	{
+		field(0);
+		return (this.block.get(this.position+STRAND_OFFSET) & 1) == 0;
+	}
+	
+	public boolean isToForward()
+	{
+		field(0);
+		return (this.block.get(this.position+STRAND_OFFSET) & 2) == 0;
+	}
+	
+	/**
+	 * Converts the remaining records to the text output format.
+	 * 
+	 * @return the number of records written.
+	 */
+	public long writeText(OutputStream out) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+		long count = 0;
+		while (next())
+		{
+			if (buffer.remaining() < 256)
+			{
+				out.write(buffer.array(), 0, buffer.position());
+				buffer.clear();
+			}
+			
+			putText(buffer);
+			count++;
+		}
+		
+		out.write(buffer.array(), 0, buffer.position());
+		out.flush();
+		
+		return count;
+	}
+	
+	private void putText(ByteBuffer buffer)
+	{
+		MatchResultWriter.putLong(buffer, getFromId());
+		buffer.put((byte)' ');
+		MatchResultWriter.putLong(buffer, getToId());
+		buffer.put((byte)' ');
+		MatchResultWriter.putUnits6(buffer, getErrorUnits());
+		buffer.put((byte)' ');
+		MatchResultWriter.putUnits6(buffer, getRawScore()*1000000L);
+		buffer.put((byte)' ');
+		buffer.put(isFromForward() ? (byte)'0' : (byte)'1');
+		buffer.put((byte)' ');
+		MatchResultWriter.putLong(buffer, getFromStart());
+		buffer.put((byte)' ');
+		MatchResultWriter.putLong(buffer, getFromEnd());
+		buffer.put((byte)' ');
+		MatchResultWriter.putLong(buffer, getFromLength());
+		buffer.put((byte)' ');
+		buffer.put(isToForward() ? (byte)'0' : (byte)'1');
+		buffer.put((byte)' ');
+		MatchResultWriter.putLong(buffer, getToStart());
+		buffer.put((byte)' ');
+		MatchResultWriter.putLong(buffer, getToEnd());
+		buffer.put((byte)' ');
+		MatchResultWriter.putLong(buffer, getToLength());
+		buffer.put(MatchResultWriter.LINE_SEPARATOR);
+	}
+	
+	@Override
+	public String toString()
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(256);
+		putText(buffer);
+		
+		return new String(buffer.array(), 0, buffer.position()-MatchResultWriter.LINE_SEPARATOR.length);
+	}
+}
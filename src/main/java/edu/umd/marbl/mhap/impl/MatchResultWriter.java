@@ -0,0 +1,621 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormatSymbols;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import edu.umd.marbl.mhap.utils.BgzfCompressor;
+
+/**
+ * Writes match results as text, byte-identical to MatchResult.toString() followed by a line separator, as PAF, or as
+ * binary records (see OutputFormat). Each thread formats its results into its own buffers, and full buffers are passed
+ * over a queue to a single writer thread, so the workers do not wait on the output stream. A writer that is only used
+ * by one thread at a time, such as an output shard, can write the buffers directly instead.
+ */
+public final class MatchResultWriter
+{
+	public enum OutputFormat
+	{
+		/**
+		 * One line of text per match, same as MatchResult.toString().
+		 */
+		TEXT("txt"),
+		
+		/**
+		 * Pairwise mApping Format, one tab separated line per match, see MatchResult.toPafString().
+		 */
+		PAF("paf"),
+		
+		/**
+		 * A header, followed by blocks of fixed-width little-endian records. Read with MatchResultReader.
+		 */
+		BIN("bin");
+		
+		private final String fileExtension;
+		
+		private OutputFormat(String fileExtension)
+		{
+			this.fileExtension = fileExtension;
+		}
+		
+		public String getFileExtension()
+		{
+			return this.fileExtension;
+		}
+		
+		public static OutputFormat fromString(String name)
+		{
+			for (OutputFormat format : values())
+				if (format.name().equalsIgnoreCase(name.trim()))
+					return format;
+			
+			throw new MhapRuntimeException("Unknown output format \""+name+"\".");
+		}
+	}
+	
+	private final OutputStream out;
+	private final boolean background;
+	private final ArrayBlockingQueue<ByteBuffer> pending;
+	private final ArrayBlockingQueue<ByteBuffer> free;
+	private final ArrayBlockingQueue<ByteBuffer> freeCompressed;
+	private long numSubmitted;
+	private long numWritten;
+	private volatile IOException error;
+	private volatile OutputFormat format;
+	private volatile boolean compress;
+	private volatile boolean started;
+	private final Object startLock;
+
+	private final static int BUFFER_SIZE = 1 << 20;
+	private final static int MAX_PENDING_BUFFERS = 64;
+	private final static int COMPRESSED_BUFFER_SIZE = BgzfCompressor.maxCompressedLength(BUFFER_SIZE);
+	private final static Charset CHARSET = Charset.defaultCharset();
+	final static byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(CHARSET);
+	
+	/**
+	 * Binary header: magic, int version, int record size. Each block is an int record count followed by the records.
+	 * A record is the from and to ids, the error in units of 10^-6 (the value printed by the text format), the raw score
+	 * (the number of shared k-mers), a1, a2, from length, b1, b2, to length as ints, and a byte with the strands (bit 0
+	 * from is reversed, bit 1 to is reversed).
+	 */
+	final static byte[] BINARY_MAGIC = new byte[] {'M', 'H', 'O', 'V'};
+	final static int BINARY_VERSION = 2;
+	final static int BINARY_HEADER_SIZE = BINARY_MAGIC.length+8;
+	final static int BINARY_RECORD_SIZE = 10*4+1;
+	
+	/**
+	 * The numbers are formatted by hand only if the default locale and charset produce plain ascii, otherwise every
+	 * line goes through MatchResult.toString().
+	 */
+	private final static boolean FAST_FORMAT = isPlainFormat();
+	
+	private static boolean isPlainFormat()
+	{
+		DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance(Locale.getDefault(Locale.Category.FORMAT));
+		
+		return symbols.getDecimalSeparator()=='.' && symbols.getZeroDigit()=='0' && symbols.getMinusSign()=='-'
+				&& Arrays.equals("0.5 -1".getBytes(CHARSET), "0.5 -1".getBytes(StandardCharsets.US_ASCII));
+	}
+
+	public MatchResultWriter(OutputStream out)
+	{
+		this(out, true);
+	}
+	
+	/**
+	 * @param background
+	 *            if false, the buffers are written by the thread that calls write(), and the writer must not be used by
+	 *            more than one thread at a time.
+	 */
+	public MatchResultWriter(OutputStream out, boolean background)
+	{
+		this.out = out;
+		this.background = background;
+		this.pending = new ArrayBlockingQueue<>(MAX_PENDING_BUFFERS);
+		this.free = new ArrayBlockingQueue<>(MAX_PENDING_BUFFERS);
+		this.freeCompressed = new ArrayBlockingQueue<>(MAX_PENDING_BUFFERS);
+		this.numSubmitted = 0;
+		this.numWritten = 0;
+		this.error = null;
+		this.format = OutputFormat.TEXT;
+		this.compress = false;
+		this.started = false;
+		this.startLock = new Object();
+		
+		if (!background)
+			return;
+		
+		Thread writer = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				writeLoop();
+			}
+		}, "mhap-output");
+		writer.setDaemon(true);
+		writer.start();
+	}
+	
+	/**
+	 * Must be called before any results are written. The binary header is written with the first results, or by
+	 * finish() if there are none.
+	 * 
+	 * @param compress
+	 *            if true, the output is BGZF compressed. Each buffer is compressed by the thread that filled it.
+	 */
+	public void setFormat(OutputFormat format, boolean compress)
+	{
+		if (this.started)
+			throw new MhapRuntimeException("The output format cannot be changed after results have been written.");
+		
+		this.format = format;
+		this.compress = compress;
+	}
+	
+	/**
+	 * Writes the binary header, once, before the first results.
+	 */
+	private void start()
+	{
+		if (this.started)
+			return;
+		
+		// the other threads wait here, so that their results are queued after the header
+		synchronized (this.startLock)
+		{
+			if (this.started)
+				return;
+			
+			if (this.format == OutputFormat.BIN)
+			{
+				ByteBuffer buffer = nextBuffer();
+				buffer.order(ByteOrder.LITTLE_ENDIAN);
+				buffer.put(BINARY_MAGIC);
+				buffer.putInt(BINARY_VERSION);
+				buffer.putInt(BINARY_RECORD_SIZE);
+				submit(buffer);
+			}
+			
+			this.started = true;
+		}
+	}
+	
+	public OutputFormat getFormat()
+	{
+		return this.format;
+	}
+	
+	public boolean isCompressed()
+	{
+		return this.compress;
+	}
+	
+	/**
+	 * Blocks until all submitted results are written, and flushes the stream.
+	 */
+	public void flush() throws IOException
+	{
+		if (!this.background)
+		{
+			this.out.flush();
+			return;
+		}
+		
+		synchronized (this)
+		{
+			while (this.numWritten < this.numSubmitted)
+			{
+				try
+				{
+					wait();
+				}
+				catch (InterruptedException e)
+				{
+					throw new MhapRuntimeException(e);
+				}
+			}
+		}
+		
+		if (this.error != null)
+			throw this.error;
+		
+		this.out.flush();
+	}
+	
+	/**
+	 * Writes the header of an empty binary output, the end of file marker of compressed output, and flushes. Nothing
+	 * can be written afterwards.
+	 */
+	public void finish() throws IOException
+	{
+		start();
+		
+		if (this.compress)
+		{
+			ByteBuffer buffer = ByteBuffer.wrap(BgzfCompressor.EOF_BLOCK);
+			buffer.position(BgzfCompressor.EOF_BLOCK.length);
+			enqueue(buffer);
+		}
+		
+		flush();
+	}
+	
+	/**
+	 * Finishes the output and closes the stream.
+	 */
+	public void close() throws IOException
+	{
+		finish();
+		this.out.close();
+	}
+	
+	private ByteBuffer nextBuffer()
+	{
+		ByteBuffer buffer = this.free.poll();
+		if (buffer == null)
+			buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		
+		return buffer;
+	}
+	
+	private void submit(ByteBuffer buffer)
+	{
+		if (this.compress)
+		{
+			ByteBuffer compressed = this.freeCompressed.poll();
+			int maxLength = BgzfCompressor.maxCompressedLength(buffer.position());
+			if (compressed == null || compressed.capacity() < maxLength)
+				compressed = ByteBuffer.allocate(Math.max(COMPRESSED_BUFFER_SIZE, maxLength));
+			
+			BgzfCompressor.compress(buffer.array(), 0, buffer.position(), compressed);
+			recycle(buffer);
+			buffer = compressed;
+		}
+		
+		enqueue(buffer);
+	}
+	
+	private void recycle(ByteBuffer buffer)
+	{
+		buffer.clear();
+		if (buffer.capacity() == BUFFER_SIZE)
+			this.free.offer(buffer);
+		else
+		if (buffer.capacity() == COMPRESSED_BUFFER_SIZE)
+			this.freeCompressed.offer(buffer);
+	}
+	
+	private void enqueue(ByteBuffer buffer)
+	{
+		if (this.error != null)
+			throw new MhapRuntimeException(this.error);
+		
+		if (!this.background)
+		{
+			try
+			{
+				this.out.write(buffer.array(), 0, buffer.position());
+			}
+			catch (IOException e)
+			{
+				this.error = e;
+				throw new MhapRuntimeException(e);
+			}
+			
+			this.numSubmitted++;
+			recycle(buffer);
+			
+			return;
+		}
+		
+		synchronized (this)
+		{
+			this.numSubmitted++;
+		}
+		
+		try
+		{
+			this.pending.put(buffer);
+		}
+		catch (InterruptedException e)
+		{
+			throw new MhapRuntimeException(e);
+		}
+	}
+
+	/**
+	 * Formats the results and queues them for writing. The results of one call are written together.
+	 */
+	public void write(List<MatchResult> matches)
+	{
+		start();
+		
+		if (this.format == OutputFormat.BIN)
+		{
+			writeBinary(matches);
+			return;
+		}
+		
+		ByteBuffer buffer = nextBuffer();
+		for (MatchResult match : matches)
+		{
+			int start = buffer.position();
+			try
+			{
+				putLine(buffer, match, this.format);
+			}
+			catch (BufferOverflowException e)
+			{
+				buffer.position(start);
+				if (start > 0)
+				{
+					submit(buffer);
+					buffer = nextBuffer();
+				}
+				
+				// a line longer than the buffer gets its own larger buffer
+				while (true)
+				{
+					try
+					{
+						putLine(buffer, match, this.format);
+						break;
+					}
+					catch (BufferOverflowException e2)
+					{
+						buffer = ByteBuffer.allocate(buffer.capacity()*2);
+					}
+				}
+			}
+		}
+		
+		if (buffer.position() > 0)
+			submit(buffer);
+		else
+			this.free.offer(buffer);
+	}
+	
+	private void writeBinary(List<MatchResult> matches)
+	{
+		ByteBuffer buffer = null;
+		for (MatchResult match : matches)
+		{
+			if (buffer == null || buffer.remaining() < BINARY_RECORD_SIZE)
+			{
+				if (buffer != null)
+					submitBlock(buffer);
+				
+				// room for the record count
+				buffer = nextBuffer();
+				buffer.order(ByteOrder.LITTLE_ENDIAN);
+				buffer.putInt(0);
+			}
+			
+			match.writeBinary(buffer);
+		}
+		
+		if (buffer != null)
+			submitBlock(buffer);
+	}
+	
+	private void submitBlock(ByteBuffer buffer)
+	{
+		buffer.putInt(0, (buffer.position()-4)/BINARY_RECORD_SIZE);
+		submit(buffer);
+	}
+	
+	private void writeLoop()
+	{
+		while (true)
+		{
+			ByteBuffer buffer;
+			try
+			{
+				buffer = this.pending.take();
+			}
+			catch (InterruptedException e)
+			{
+				return;
+			}
+			
+			// after an error the buffers are dropped, so that the workers are not blocked
+			if (this.error == null)
+			{
+				try
+				{
+					this.out.write(buffer.array(), 0, buffer.position());
+				}
+				catch (IOException e)
+				{
+					this.error = e;
+				}
+			}
+			
+			recycle(buffer);
+			
+			synchronized (this)
+			{
+				this.numWritten++;
+				notifyAll();
+			}
+		}
+	}
+	
+	private static void putLine(ByteBuffer buffer, MatchResult match, OutputFormat format)
+	{
+		if (format == OutputFormat.PAF)
+		{
+			if (FAST_FORMAT)
+				match.writePaf(buffer);
+			else
+				buffer.put(match.toPafString().getBytes(CHARSET));
+		}
+		else
+		{
+			if (FAST_FORMAT)
+				match.write(buffer);
+			else
+				buffer.put(match.toString().getBytes(CHARSET));
+		}
+		
+		buffer.put(LINE_SEPARATOR);
+	}
+	
+	/**
+	 * Same as String.format("%.6f", value).
+	 */
+	static void putFixed6(ByteBuffer buffer, double value)
+	{
+		if (FAST_FORMAT)
+		{
+			long units = roundFixed6(value);
+			if (units >= 0L)
+			{
+				putUnits6(buffer, units);
+				return;
+			}
+		}
+		
+		buffer.put(String.format("%.6f", value).getBytes(CHARSET));
+	}
+	
+	/**
+	 * The value rounded the same way as String.format("%.6f", value), in units of 10^-6.
+	 */
+	static long toUnits6(double value)
+	{
+		long units = roundFixed6(value);
+		if (units >= 0L)
+			return units;
+		
+		return new BigDecimal(String.format(Locale.ROOT, "%.6f", value)).movePointRight(6).longValueExact();
+	}
+	
+	/**
+	 * Values that are close to a rounding tie, or outside the range where the product with 10^6 is exact enough, return
+	 * -1, since String.format rounds the shortest decimal representation half up.
+	 */
+	private static long roundFixed6(double value)
+	{
+		if (value >= 0.0 && value < 1.0e4)
+		{
+			double scaled = value*1.0e6;
+			double floor = Math.floor(scaled);
+			double fraction = scaled-floor;
+			if (Math.abs(fraction-0.5) > 1.0e-4)
+				return (long)floor + (fraction > 0.5 ? 1L : 0L);
+		}
+		
+		return -1L;
+	}
+	
+	static void putUnits6(ByteBuffer buffer, long units)
+	{
+		if (units < 0L)
+		{
+			buffer.put((byte)'-');
+			units = -units;
+		}
+		
+		putLong(buffer, units/1000000L);
+		buffer.put((byte)'.');
+		
+		int decimals = (int)(units%1000000L);
+		for (int divisor = 100000; divisor > 0; divisor /= 10)
+			buffer.put((byte)('0' + (decimals/divisor)%10));
+	}
+	
+	static void putLong(ByteBuffer buffer, long value)
+	{
+		if (value < 0)
+		{
+			if (value == Long.MIN_VALUE)
+			{
+				buffer.put(Long.toString(value).getBytes(CHARSET));
+				return;
+			}
+			
+			buffer.put((byte)'-');
+			value = -value;
+		}
+		
+		// write the digits from the end
+		int numDigits = 1;
+		for (long bound = 10; numDigits < 19 && value >= bound; bound *= 10)
+			numDigits++;
+		
+		int start = buffer.position();
+		if (buffer.remaining() < numDigits)
+			throw new BufferOverflowException();
+		
+		for (int iter = numDigits-1; iter >= 0; iter--)
+		{
+			buffer.put(start+iter, (byte)('0' + (int)(value%10L)));
+			value /= 10L;
+		}
+		buffer.position(start+numDigits);
+	}
+	
+	static void putId(ByteBuffer buffer, SequenceId id)
+	{
+		if (id.hasStoredHeader())
+			putString(buffer, id.getHeader());
+		else
+			putLong(buffer, id.getHeaderId());
+	}
+	
+	static void putString(ByteBuffer buffer, String str)
+	{
+		for (int iter = 0; iter < str.length(); iter++)
+			if (str.charAt(iter) >= 0x80)
+			{
+				buffer.put(str.getBytes(CHARSET));
+				return;
+			}
+		
+		if (buffer.remaining() < str.length())
+			throw new BufferOverflowException();
+		
+		for (int iter = 0; iter < str.length(); iter++)
+			buffer.put((byte)str.charAt(iter));
+	}
+}
@@ -29,39 +29,154 @@
  */
 package edu.umd.marbl.mhap.impl;
 
-import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
-import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
-import edu.umd.marbl.mhap.sketch.MinHashSketch;
-import edu.umd.marbl.mhap.utils.HitCounter;
+import edu.umd.marbl.mhap.align.EditDistanceVerifier;
+import edu.umd.marbl.mhap.sketch.AbstractMinHashSketch;
+import edu.umd.marbl.mhap.sketch.BottomOverlapSketch.MatchData;
 
 public final class MinHashSearch extends AbstractMatchSearch
 {
+	/**
+	 * Frozen table of one min-hash position, in compressed sparse row form. The postings of keys[i] are
+	 * postings[offsets[i]..offsets[i+1]), each being the sequence ordinal with the strand in the low bit.
+	 */
+	private final static class HashTable
+	{
+		private final int[] keys;
+		private final int[] offsets;
+		private final int[] postings;
+		
+		private HashTable(int[] keys, int[] offsets, int[] postings)
+		{
+			this.keys = keys;
+			this.offsets = offsets;
+			this.postings = postings;
+		}
+	}
+	
+	/**
+	 * Sketches added by one thread before the index is frozen. The min-hashes are read from the sketches when the tables
+	 * are built, and the ordinal of each row is assigned when the index is frozen.
+	 */
+	private final static class PartialIndex
+	{
+		private int[] ordinals;
+		private SequenceSketch[] sketches;
+		private int size;
+		
+		private PartialIndex()
+		{
+			this.sketches = new SequenceSketch[PARTIAL_INITIAL_SIZE];
+			this.size = 0;
+		}
+		
+		private void add(SequenceSketch sketch)
+		{
+			if (this.size >= this.sketches.length)
+				this.sketches = Arrays.copyOf(this.sketches, this.sketches.length*2);
+			
+			this.sketches[this.size++] = sketch;
+		}
+	}
+	
+	/**
+	 * Per-thread working memory of a query. The hit counts are indexed by posting, and only the touched entries are
+	 * reset after a query, so the cost is proportional to the number of hits rather than to the index size. The touched
+	 * list grows with the largest number of hits seen, and is compacted in place into the candidates.
+	 */
+	private final static class SearchScratch
+	{
+		private final int[] counts;
+		private int[] touched;
+		private final MatchData matchData;
+		
+		private SearchScratch(int size)
+		{
+			this.counts = new int[size];
+			this.touched = new int[Math.min(size, INITIAL_TOUCHED_SIZE)];
+			this.matchData = new MatchData();
+		}
+		
+		private int[] growTouched()
+		{
+			this.touched = Arrays.copyOf(this.touched, (int)Math.min((long)this.counts.length, 2L*this.touched.length));
+			
+			return this.touched;
+		}
+	}
+	
 	private final double acceptScore;
 
-	private final ArrayList<Map<Integer, ArrayList<SequenceId>>> hashes;
+	private final ThreadLocal<SearchScratch> searchScratch;
+	private HashTable[] hashes;
 	private final double maxShift;
 	private final AtomicLong minhashSearchTime;
 	private final AtomicLong sortMergeSearchTime;
+	private final AtomicLong verifyTime;
+	private final EditDistanceVerifier verifier;
 	private final int minStoreLength;
 	private final AtomicLong numberElementsProcessed;
 	
 	private final AtomicLong numberSequencesFullyCompared;
 	private final AtomicLong numberSequencesHit;
 	private final AtomicLong numberSequencesMinHashed;
+	private final AtomicLong numberOverlapsRejected;
 
+	private final int numHashes;
 	private final int numMinMatches;
-	private final Map<SequenceId, SequenceSketch> sequenceVectorsHash;
+	private final ThreadLocal<PartialIndex> partialIndex;
+	private final ConcurrentLinkedQueue<PartialIndex> partialIndexes;
+	
+	// ids of the added sketches, with the strand in the low bit, striped so that the loading threads rarely share a lock
+	private LongOpenHashSet[] addedIds;
+	private volatile boolean frozen;
+	
+	/**
+	 * Stored sketches indexed by ordinal, with the header id and length of each ordinal in primitive columns, so that
+	 * the candidate filters do not dereference the sketches. The stored sketches do not keep their ids, a SequenceId
+	 * is only created for the results, from the columns. The headers are null for sequences whose header is the header
+	 * id, and the array is null if all are.
+	 */
+	private SequenceSketch[] sequences;
+	private long[] headerIds;
+	private String[] headers;
+	private int[] sequenceLengths;
+	private int[] forwardOrdinals;
+	private int numStored;
+	
+	private final static int PARTIAL_INITIAL_SIZE = 4096;
+	private final static int NUM_ID_STRIPES = 64;
+	private final static int INITIAL_TOUCHED_SIZE = 1024;
 	
 	public MinHashSearch(SequenceSketchStreamer data, int numHashes, int numMinMatches, int numThreads, 
 			boolean storeResults, int minStoreLength, double maxShift, double acceptScore, boolean doReverseCompliment) throws IOException
+	{
+		this(data, numHashes, numMinMatches, numThreads, storeResults, minStoreLength, maxShift, acceptScore, doReverseCompliment, 0.0);
+	}
+
+	/**
+	 * @param verifyIdentity
+	 *            if positive, the overlaps accepted by the second stage are also verified by the edit distance of the
+	 *            overlapping regions, and rejected below this identity. The sequences must be kept in the sketches, see
+	 *            SequenceSketchStreamer.setKeepSequences().
+	 */
+	public MinHashSearch(SequenceSketchStreamer data, int numHashes, int numMinMatches, int numThreads, 
+			boolean storeResults, int minStoreLength, double maxShift, double acceptScore, boolean doReverseCompliment, double verifyIdentity) throws IOException
 	{
 		super(numThreads, storeResults);
 
@@ -75,26 +190,50 @@ public final class MinHashSearch extends AbstractMatchSearch
 		this.numberElementsProcessed = new AtomicLong();
 		this.minhashSearchTime = new AtomicLong();
 		this.sortMergeSearchTime = new AtomicLong();
+		this.verifyTime = new AtomicLong();
+		this.numberOverlapsRejected = new AtomicLong();
+		this.verifier = verifyIdentity > 0.0 ? new EditDistanceVerifier(verifyIdentity) : null;
 		
-		// enqueue full file, since have to know full size
-		data.enqueueFullFile(false, this.numThreads);
-
-		//this.sequenceVectorsHash = new HashMap<>(data.getNumberProcessed());
-		this.sequenceVectorsHash = new Object2ObjectOpenHashMap<>(data.getNumberProcessed());
-
-		this.hashes = new ArrayList<>(numHashes);
-		for (int iter = 0; iter < numHashes; iter++)
+		this.numHashes = numHashes;
+		this.searchScratch = new ThreadLocal<SearchScratch>()
 		{
-			//Map<Integer,ArrayList<SequenceId>> map = new HashMap<Integer, ArrayList<SequenceId>>(data.getNumberProcessed());			
-			Map<Integer,ArrayList<SequenceId>> map = new Int2ObjectOpenHashMap<ArrayList<SequenceId>>(data.getNumberProcessed());
-			
-			this.hashes.add(map);
-		}
+			@Override
+			protected SearchScratch initialValue()
+			{
+				return new SearchScratch(MinHashSearch.this.sequences.length);
+			}
+		};
+		this.partialIndexes = new ConcurrentLinkedQueue<>();
+		this.partialIndex = new ThreadLocal<PartialIndex>()
+		{
+			@Override
+			protected PartialIndex initialValue()
+			{
+				PartialIndex partial = new PartialIndex();
+				MinHashSearch.this.partialIndexes.add(partial);
+				
+				return partial;
+			}
+		};
+		this.addedIds = new LongOpenHashSet[NUM_ID_STRIPES];
+		for (int iter = 0; iter < NUM_ID_STRIPES; iter++)
+			this.addedIds[iter] = new LongOpenHashSet();
+		this.frozen = false;
+		this.hashes = new HashTable[0];
+		this.sequences = new SequenceSketch[0];
+		this.headerIds = new long[0];
+		this.headers = null;
+		this.sequenceLengths = new int[0];
+		this.forwardOrdinals = new int[0];
+		this.numStored = 0;
 		
 		//store both forward andd reverse
 		addData(data, doReverseCompliment);
 		
-		System.err.println("Stored "+this.sequenceVectorsHash.size()+" sequences in the index.");
+		//convert to the compact primitive index
+		freezeIndex();
+		
+		System.err.println("Stored "+this.numStored+" sequences in the index.");
 	}
 
 	@Override
@@ -102,44 +241,24 @@ public final class MinHashSearch extends AbstractMatchSearch
 	{
 		int[] currMinHashes = currHash.getMinHashes().getMinHashArray();
 
-		if (currMinHashes.length != this.hashes.size())
+		if (currMinHashes.length != this.numHashes)
 			throw new MhapRuntimeException("Number of MinHashes of the sequence does not match current settings.");
 
-		// put the result into the hashmap
-		synchronized (this.sequenceVectorsHash)
-		{
-			SequenceSketch minHash = this.sequenceVectorsHash.put(currHash.getSequenceId(), currHash);
-			if (minHash != null)
-			{
-				this.sequenceVectorsHash.put(currHash.getSequenceId(), minHash);
-
-				throw new MhapRuntimeException("Sequence ID already exists in the hash table.");
-			}			
-		}
+		if (this.frozen)
+			throw new MhapRuntimeException("Sequences cannot be added after the index is built.");
 		
-		// add the hashes
-		int count = 0;
 		SequenceId id = currHash.getSequenceId();
-		for (Map<Integer, ArrayList<SequenceId>> hash : this.hashes)
+		long idKey = (id.getHeaderId()<<1) | (id.isForward() ? 0L : 1L);
+		LongOpenHashSet ids = this.addedIds[(int)(HashCommon.mix(idKey) & (NUM_ID_STRIPES-1))];
+		synchronized (ids)
 		{
-			ArrayList<SequenceId> currList;
-			final int hashVal = currMinHashes[count];
-
-			// get the list
-			synchronized (hash)
-			{
-				currList = hash.computeIfAbsent(hashVal, k-> new ArrayList<SequenceId>(2));
-			}
-
-			// add the element
-			synchronized (currList)
-			{
-				currList.add(id);
-			}
-			
-			count++;
+			if (!ids.add(idKey))
+				throw new MhapRuntimeException("Sequence ID already exists in the hash table.");
 		}
 
+		//no locks, the hash tables are built in freezeIndex()
+		this.partialIndex.get().add(currHash);
+
 		//increment the counter
 		this.numberSequencesMinHashed.getAndIncrement();
 		
@@ -148,36 +267,67 @@ public final class MinHashSearch extends AbstractMatchSearch
 
 	@Override
 	public List<MatchResult> findMatches(SequenceSketch seqHashes, boolean toSelf)
+	{
+		return findMatches(seqHashes, seqHashes.getSequenceId(), -1, toSelf);
+	}
+
+	@Override
+	protected List<MatchResult> findStoredMatches(int index)
+	{
+		int ordinal = this.forwardOrdinals[index];
+		
+		return findMatches(this.sequences[ordinal], null, ordinal, true);
+	}
+
+	/**
+	 * @param id
+	 *            id of the query, or null if it is the stored sequence of the given ordinal, in which case the id is only
+	 *            created if there are results.
+	 */
+	private List<MatchResult> findMatches(SequenceSketch seqHashes, SequenceId id, int ordinal, boolean toSelf)
 	{
 		//for performance reasons might need to change
 		long startTime = System.nanoTime();
 
-		MinHashSketch minHash = seqHashes.getMinHashes();
+		AbstractMinHashSketch<?> minHash = seqHashes.getMinHashes();
 
-		if (this.hashes.size() != minHash.numHashes())
-			throw new MhapRuntimeException("Number of hashes does not match. Stored size " + this.hashes.size()
+		if (this.numHashes != minHash.numHashes())
+			throw new MhapRuntimeException("Number of hashes does not match. Stored size " + this.numHashes
 					+ ", input size " + minHash.numHashes() + ".");
 		
-		Map<SequenceId, HitCounter> bestSequenceHit = new Object2ObjectOpenHashMap<>(256);
+		SearchScratch scratch = this.searchScratch.get();
+		final int[] counts = scratch.counts;
+		int[] touched = scratch.touched;
+		final int minMatches = Math.max(1, this.numMinMatches);
+		int numTouched = 0;
+		
 		int[] minHashes = minHash.getMinHashArray();
 		
-		int hashIndex = 0;
 		long additionalProcessed = 0L;
-		for (Map<Integer,ArrayList<SequenceId>> currHash : this.hashes)
+		for (int hashIndex = 0; hashIndex < this.numHashes; hashIndex++)
 		{
-			ArrayList<SequenceId> currentHashMatchList = currHash.get(minHashes[hashIndex]);
+			HashTable currHash = this.hashes[hashIndex];
+			int keyIndex = Arrays.binarySearch(currHash.keys, minHashes[hashIndex]);
 
 			// if some matches exist add them
-			if (currentHashMatchList != null)
+			if (keyIndex >= 0)
 			{
-				additionalProcessed += currentHashMatchList.size();
-				for (SequenceId sequenceId : currentHashMatchList)
+				int start = currHash.offsets[keyIndex];
+				int end = currHash.offsets[keyIndex+1];
+				
+				additionalProcessed += end-start;
+				for (int posting = start; posting < end; posting++)
 				{
-					bestSequenceHit.compute(sequenceId, (k,v)-> (v==null) ? new HitCounter(1) : v.addHit());
+					int sequence = currHash.postings[posting];
+					if (++counts[sequence]==1)
+					{
+						if (numTouched==touched.length)
+							touched = scratch.growTouched();
+						
+						touched[numTouched++] = sequence;
+					}
 				}
 			}
-			
-			hashIndex++;
 		}
 		
 		//record the search time
@@ -186,59 +336,83 @@ public final class MinHashSearch extends AbstractMatchSearch
 
 		//record the procssed statistic
 		this.numberElementsProcessed.getAndAdd(additionalProcessed);
-		this.numberSequencesHit.getAndAdd(bestSequenceHit.size());
+		this.numberSequencesHit.getAndAdd(numTouched);
+		
+		//keep the sequences with enough hits, and reset for the next query
+		final int[] candidates = touched;
+		int numCandidates = 0;
+		for (int iter = 0; iter < numTouched; iter++)
+		{
+			int sequence = touched[iter];
+			if (counts[sequence]>=minMatches)
+				candidates[numCandidates++] = sequence;
+			
+			counts[sequence] = 0;
+		}
 		
-		// compute the proper counts for all sets and remove below threshold
+		// compute the second stage score for the candidates above threshold
 		ArrayList<MatchResult> matches = new ArrayList<MatchResult>(32);
 		
-		for (Entry<SequenceId, HitCounter> match : bestSequenceHit.entrySet())
+		final long headerId = id!=null ? id.getHeaderId() : this.headerIds[ordinal>>>1];
+		final boolean isForward = id!=null ? id.isForward() : (ordinal&1)==0;
+		final int sequenceLength = seqHashes.getSequenceLength();
+		for (int iter = 0; iter < numCandidates; iter++)
 		{
-			//get the match id
-			SequenceId matchId = match.getKey();
+			int candidate = candidates[iter];
+			long matchHeaderId = this.headerIds[candidate>>>1];
+			int matchLength = this.sequenceLengths[candidate];
 			
 			// do not store matches with smaller ids, unless its coming from a short read
-			if (toSelf && matchId.getHeaderId() == seqHashes.getSequenceId().getHeaderId())
+			if (toSelf && matchHeaderId == headerId)
 				continue;
 
-			//see if the hit number is high enough			
-			if (match.getValue().count >= this.numMinMatches)
+			//never process short to short
+			if (matchLength<this.minStoreLength && sequenceLength<this.minStoreLength)
+				continue;
+			
+			//never process long to long in self, with greater id
+			if (toSelf 
+					&& matchHeaderId > headerId
+					&& matchLength>=this.minStoreLength
+					&& sequenceLength>=this.minStoreLength)
+				continue;
+			
+			//never do short to long
+			if (toSelf 
+					&& matchLength<this.minStoreLength
+					&& sequenceLength>=this.minStoreLength)
+				continue;
+			
+			SequenceSketch matchedHashes = this.sequences[candidate];
+			
+			//compute the direct hash score
+			OverlapInfo result = seqHashes.getOrderedHashes().getOverlapInfo(matchedHashes.getOrderedHashes(), this.maxShift, scratch.matchData);
+			boolean accept = result.score >= this.acceptScore;					
+							
+			//increment the counter
+			this.numberSequencesFullyCompared.getAndIncrement();
+			
+			//third stage, the edit distance of the overlap
+			if (accept && this.verifier!=null)
 			{
-				SequenceSketch matchedHashes = this.sequenceVectorsHash.get(match.getKey());
-				if (matchedHashes==null)
-					throw new MhapRuntimeException("Hashes not found for given id.");
-				
-				//never process short to short
-				if (matchedHashes.getSequenceLength()<this.minStoreLength && seqHashes.getSequenceLength()<this.minStoreLength)
-					continue;
+				long verifyStartTime = System.nanoTime();
+				accept = verify(seqHashes, isForward, matchedHashes, (candidate&1)==0, result);
+				this.verifyTime.getAndAdd(System.nanoTime()-verifyStartTime);
 				
-				//never process long to long in self, with greater id
-				if (toSelf 
-						&& matchId.getHeaderId() > seqHashes.getSequenceId().getHeaderId()
-						&& matchedHashes.getSequenceLength()>=this.minStoreLength
-						&& seqHashes.getSequenceLength()>=this.minStoreLength)
-					continue;
-				
-				//never do short to long
-				if (toSelf 
-						&& matchedHashes.getSequenceLength()<this.minStoreLength
-						&& seqHashes.getSequenceLength()>=this.minStoreLength)
-					continue;
+				if (!accept)
+					this.numberOverlapsRejected.getAndIncrement();
+			}
+
+			//if score is good add
+			if (accept)
+			{
+				if (id==null)
+					id = getSequenceId(ordinal);
 				
-				//compute the direct hash score
-				OverlapInfo result = seqHashes.getOrderedHashes().getOverlapInfo(matchedHashes.getOrderedHashes(), this.maxShift);
-				boolean accept = result.score >= this.acceptScore;					
-								
-				//increment the counter
-				this.numberSequencesFullyCompared.getAndIncrement();
-
-				//if score is good add
-				if (accept)
-				{
-					MatchResult currResult = new MatchResult(seqHashes.getSequenceId(), matchId, result, seqHashes.getSequenceLength(), matchedHashes.getSequenceLength());
+				MatchResult currResult = new MatchResult(id, getSequenceId(candidate), result, sequenceLength, matchLength);
 
-					// add to list
-					matches.add(currResult);
-				}
+				// add to list
+				matches.add(currResult);
 			}
 		}
 		
@@ -250,6 +424,189 @@ public final class MinHashSearch extends AbstractMatchSearch
 		return matches;
 	}
 
+	private boolean verify(SequenceSketch seqHashes, boolean isForward, SequenceSketch matchedHashes, boolean isMatchForward, OverlapInfo overlap)
+	{
+		if (seqHashes.getSequence()==null || matchedHashes.getSequence()==null)
+			throw new MhapRuntimeException("Sequences were not kept for the verification of the overlaps.");
+		
+		return this.verifier.verify(seqHashes.getSequence(), isForward, overlap.a1, overlap.a2,
+				matchedHashes.getSequence(), isMatchForward, overlap.b1, overlap.b2);
+	}
+	
+	private SequenceId getSequenceId(int ordinal)
+	{
+		String header = this.headers==null ? null : this.headers[ordinal>>>1];
+		
+		return new SequenceId(this.headerIds[ordinal>>>1], (ordinal&1)==0, header);
+	}
+
+	private void freezeIndex()
+	{
+		this.frozen = true;
+		this.addedIds = null;
+		
+		final PartialIndex[] partials = this.partialIndexes.toArray(new PartialIndex[0]);
+		this.partialIndexes.clear();
+
+		// order the sequences by id, forward before reverse, so that the ordinals do not depend on loading order
+		int numStored = 0;
+		for (PartialIndex partial : partials)
+			numStored += partial.size;
+		
+		long[] idKeys = new long[numStored];
+		long[] rows = new long[numStored];
+		int count = 0;
+		for (int partial = 0; partial < partials.length; partial++)
+			for (int row = 0; row < partials[partial].size; row++)
+			{
+				SequenceId id = partials[partial].sketches[row].getSequenceId();
+				idKeys[count] = (id.getHeaderId()<<1) | (id.isForward() ? 0L : 1L);
+				rows[count++] = ((long)partial<<32) | (long)row;
+			}
+		
+		LongArrays.parallelRadixSort(idKeys, rows);
+		
+		// assign the ordinals, strand is the low bit
+		int numSequences = 0;
+		for (int iter = 0; iter < numStored; iter++)
+		{
+			if (iter==0 || (idKeys[iter]>>1)!=(idKeys[iter-1]>>1))
+				numSequences++;
+		}
+		
+		if ((long)numSequences*2L > (long)Integer.MAX_VALUE)
+			throw new MhapRuntimeException("Too many sequences stored in the index.");
+		
+		for (PartialIndex partial : partials)
+			partial.ordinals = new int[partial.size];
+		
+		final SequenceSketch[] sequences = new SequenceSketch[numSequences*2];
+		long[] headerIds = new long[numSequences];
+		String[] headers = new String[numSequences];
+		boolean hasHeaders = false;
+		int[] sequenceLengths = new int[numSequences*2];
+		int ordinal = -1;
+		for (int iter = 0; iter < numStored; iter++)
+		{
+			if (iter==0 || (idKeys[iter]>>1)!=(idKeys[iter-1]>>1))
+				ordinal++;
+			
+			PartialIndex partial = partials[(int)(rows[iter]>>>32)];
+			int row = (int)rows[iter];
+			
+			SequenceSketch sketch = partial.sketches[row];
+			partial.ordinals[row] = (ordinal<<1) | (int)(idKeys[iter]&1L);
+			sequences[partial.ordinals[row]] = sketch.withId(null);
+			sequenceLengths[partial.ordinals[row]] = sketch.getSequenceLength();
+			headerIds[ordinal] = idKeys[iter]>>1;
+			
+			// the header is only kept if it prints differently from the header id
+			SequenceId id = sketch.getSequenceId();
+			if (id.hasStoredHeader() && !id.getHeader().equals(String.valueOf(id.getHeaderId())))
+			{
+				headers[ordinal] = id.getHeader();
+				hasHeaders = true;
+			}
+		}
+		
+		int numForward = 0;
+		for (int iter = 0; iter < sequences.length; iter += 2)
+			if (sequences[iter]!=null)
+				numForward++;
+		
+		int[] forwardOrdinals = new int[numForward];
+		numForward = 0;
+		for (int iter = 0; iter < sequences.length; iter += 2)
+			if (sequences[iter]!=null)
+				forwardOrdinals[numForward++] = iter;
+		
+		// build the tables in parallel, one hash position at a time
+		final HashTable[] tables = new HashTable[this.numHashes];
+		final AtomicInteger nextTable = new AtomicInteger();
+		final int numPostings = numStored;
+		
+		ExecutorService execSvc = Executors.newFixedThreadPool(this.numThreads);
+		for (int iter = 0; iter < this.numThreads; iter++)
+		{
+			Runnable task = new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					int hashIndex = nextTable.getAndIncrement();
+					while (hashIndex < tables.length)
+					{
+						tables[hashIndex] = createTable(partials, hashIndex, numPostings);
+						hashIndex = nextTable.getAndIncrement();
+					}
+				}
+			};
+
+			// enqueue the task
+			execSvc.execute(task);
+		}
+
+		// shutdown the service
+		execSvc.shutdown();
+		try
+		{
+			execSvc.awaitTermination(365L, TimeUnit.DAYS);
+		}
+		catch (InterruptedException e)
+		{
+			execSvc.shutdownNow();
+			throw new MhapRuntimeException("Unable to finish all tasks.");
+		}
+		
+		this.sequences = sequences;
+		this.headerIds = headerIds;
+		this.headers = hasHeaders ? headers : null;
+		this.sequenceLengths = sequenceLengths;
+		this.forwardOrdinals = forwardOrdinals;
+		this.numStored = numStored;
+		this.hashes = tables;
+	}
+	
+	private static HashTable createTable(PartialIndex[] partials, int hashIndex, int numPostings)
+	{
+		// gather the (key, posting) pairs of this hash position from all the partial indexes
+		int[] keys = new int[numPostings];
+		int[] postings = new int[numPostings];
+		int numPairs = 0;
+		for (PartialIndex partial : partials)
+		{
+			for (int row = 0; row < partial.size; row++)
+			{
+				keys[numPairs] = partial.sketches[row].getMinHashes().getMinHashArray()[hashIndex];
+				postings[numPairs++] = partial.ordinals[row];
+			}
+		}
+		
+		// sort by key, then by posting
+		IntArrays.radixSort(keys, postings, 0, numPairs);
+		
+		int numKeys = 0;
+		for (int iter = 0; iter < numPairs; iter++)
+			if (iter==0 || keys[iter]!=keys[iter-1])
+				numKeys++;
+		
+		// compact the keys in place, the postings are already in their final order
+		int[] offsets = new int[numKeys+1];
+		int keyIndex = -1;
+		for (int iter = 0; iter < numPairs; iter++)
+		{
+			if (keyIndex<0 || keys[iter]!=keys[keyIndex])
+			{
+				keyIndex++;
+				keys[keyIndex] = keys[iter];
+				offsets[keyIndex] = iter;
+			}
+		}
+		offsets[numKeys] = numPairs;
+		
+		return new HashTable(Arrays.copyOf(keys, numKeys), offsets, postings);
+	}
+
 	public double getMinHashSearchTime()
 	{
 		return this.minhashSearchTime.longValue() * 1.0e-9;
@@ -259,6 +616,21 @@ public final class MinHashSearch extends AbstractMatchSearch
 	{
 		return this.sortMergeSearchTime.longValue() * 1.0e-9;
 	}
+	
+	public double getVerifyTime()
+	{
+		return this.verifyTime.longValue() * 1.0e-9;
+	}
+	
+	public boolean isVerifying()
+	{
+		return this.verifier!=null;
+	}
+	
+	public long getNumberOverlapsRejected()
+	{
+		return this.numberOverlapsRejected.get();
+	}
 
 
 	public long getNumberElementsProcessed()
@@ -284,23 +656,36 @@ public final class MinHashSearch extends AbstractMatchSearch
 	@Override
 	public List<SequenceId> getStoredForwardSequenceIds()
 	{
-		ArrayList<SequenceId> seqIds = new ArrayList<SequenceId>(this.sequenceVectorsHash.size());
-		for (SequenceSketch hashes : this.sequenceVectorsHash.values())
-			if (hashes.getSequenceId().isForward())
-				seqIds.add(hashes.getSequenceId());
+		ArrayList<SequenceId> seqIds = new ArrayList<SequenceId>(this.forwardOrdinals.length);
+		for (int ordinal : this.forwardOrdinals)
+			seqIds.add(getSequenceId(ordinal));
 		
 		return seqIds;
 	}
 
+	@Override
+	protected int getNumberStoredForwardSequences()
+	{
+		return this.forwardOrdinals.length;
+	}
+
 	@Override
 	public SequenceSketch getStoredSequenceHash(SequenceId id)
 	{
-		return this.sequenceVectorsHash.get(id);
+		int index = Arrays.binarySearch(this.headerIds, id.getHeaderId());
+		if (index<0)
+			return null;
+		
+		int ordinal = (index<<1) | (id.isForward() ? 0 : 1);
+		if (this.sequences[ordinal]==null)
+			return null;
+		
+		return this.sequences[ordinal].withId(getSequenceId(ordinal));
 	}
 
 	@Override
 	public int size()
 	{
-		return this.sequenceVectorsHash.size();
+		return this.numStored;
 	}
 }
@@ -29,11 +29,11 @@
  */
 package edu.umd.marbl.mhap.impl;
 
-import edu.umd.marbl.mhap.utils.Utils;
+import edu.umd.marbl.mhap.utils.PackedSequence;
 
 public final class Sequence
 {
-	private final String sequence;
+	private final PackedSequence sequence;
 	private final SequenceId id;
 	
 	public Sequence(int[] sequence, SequenceId id)
@@ -53,20 +53,30 @@ public final class Sequence
 			}
 		}
 		
-		this.sequence = s.toString();
+		this.sequence = PackedSequence.fromString(s);
 	}
 	
-	public Sequence(String sequence, SequenceId id)
+	public Sequence(PackedSequence sequence, SequenceId id)
 	{
 		this.sequence = sequence;
 		this.id = id;
 	}
 	
-	public String getSquenceString()
+	public Sequence(String sequence, SequenceId id)
+	{
+		this(PackedSequence.fromString(sequence), id);
+	}
+	
+	public PackedSequence getPackedSequence()
 	{
 		return this.sequence;
 	}
 	
+	public String getSquenceString()
+	{
+		return this.sequence.toString();
+	}
+	
 	public SequenceId getId()
 	{
 		return this.id;
@@ -74,12 +84,12 @@ public final class Sequence
 	
 	public Sequence getReverseCompliment()
 	{
-		return new Sequence(Utils.rc(this.sequence), this.id.complimentId());
+		return new Sequence(this.sequence.reverseCompliment(), this.id.complimentId());
 	}
 	
 	public String getKmer(int index, int kmerSize)
 	{
-		return this.sequence.substring(index, index+kmerSize);
+		return this.sequence.subSequence(index, index+kmerSize).toString();
 	}
 	
 	public int numKmers(int kmerSize)
@@ -107,6 +107,11 @@ public final class SequenceId implements Serializable
 		return String.valueOf(this.id);
 	}
 
+	public boolean hasStoredHeader()
+	{
+		return this.strId!=null;
+	}
+
 	/* (non-Javadoc)
 	 * @see java.lang.Object#hashCode()
 	 */
@@ -29,36 +29,74 @@
  */
 package edu.umd.marbl.mhap.impl;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
+import edu.umd.marbl.mhap.sketch.AbstractMinHashSketch;
 import edu.umd.marbl.mhap.sketch.FrequencyCounts;
+import edu.umd.marbl.mhap.sketch.HashUtils.KmerHashMode;
 import edu.umd.marbl.mhap.sketch.MinHashSketch;
+import edu.umd.marbl.mhap.sketch.OnePermutationSketch;
+import edu.umd.marbl.mhap.sketch.SketchRuntimeException;
 import edu.umd.marbl.mhap.sketch.BottomOverlapSketch;
 import edu.umd.marbl.mhap.sketch.ZeroNGramsFoundException;
+import edu.umd.marbl.mhap.utils.PackedSequence;
 
 public final class SequenceSketch implements Serializable
 {
+	public enum SketchMode
+	{
+		/**
+		 * Weighted MinHash with one hash chain per slot, see MinHashSketch.
+		 */
+		MINHASH,
+		
+		/**
+		 * Weighted one permutation MinHash with densification, see OnePermutationSketch.
+		 */
+		OPH;
+		
+		public static SketchMode fromString(String name)
+		{
+			for (SketchMode mode : values())
+				if (mode.name().equalsIgnoreCase(name.trim()))
+					return mode;
+			
+			throw new SketchRuntimeException("Unknown sketch mode \""+name+"\".");
+		}
+	}
+	
 	/**
 	 * 
 	 */
 	private static final long serialVersionUID = -3155689614837922443L;
 
 	private final SequenceId id;
-	private final MinHashSketch mainHashes;
+	private final AbstractMinHashSketch<?> mainHashes;
 	private final BottomOverlapSketch orderedHashes;
 	//private final MinHashBitSequenceSubSketches alignmentSketches;
 	private final int sequenceLength;
+	
+	//forward strand, only kept for verification
+	private final transient PackedSequence sequence;
 
 	public final static int BIT_SKETCH_SIZE = 20;
 	public final static int SUBSEQUENCE_SIZE = 50;
 	public final static int BIT_KMER_SIZE = 7;
 
 	public static SequenceSketch fromByteStream(DataInputStream input, int offset) throws IOException
+	{
+		return fromByteStream(input, offset, SketchMode.MINHASH);
+	}
+
+	public static SequenceSketch fromByteStream(DataInputStream input, int offset, SketchMode sketchMode) throws IOException
 	{
 		try
 		{
@@ -76,7 +114,11 @@ public final class SequenceSketch implements Serializable
 			int sequenceLength = input.readInt();
 
 			// dos.write(this.mainHashes.getAsByteArray());
-			MinHashSketch mainHashes = MinHashSketch.fromByteStream(input);
+			AbstractMinHashSketch<?> mainHashes;
+			if (sketchMode==SketchMode.OPH)
+				mainHashes = OnePermutationSketch.fromByteStream(input);
+			else
+				mainHashes = MinHashSketch.fromByteStream(input);
 
 			if (mainHashes == null)
 				throw new MhapRuntimeException("Unexpected data read error.");
@@ -95,29 +137,100 @@ public final class SequenceSketch implements Serializable
 		}
 	}
 
-	public SequenceSketch(SequenceId id, int sequenceLength, MinHashSketch mainHashes, BottomOverlapSketch orderedHashes)
+	/**
+	 * Same record layout as fromByteStream(), decoded directly from the buffer at its current position.
+	 */
+	public static SequenceSketch fromByteBuffer(ByteBuffer input, int offset, SketchMode sketchMode) throws IOException
+	{
+		boolean isFwd = input.get()!=0;
+		long headerId = input.getLong();
+		SequenceId id = new SequenceId(headerId + offset, isFwd, readUTF(input));
+		
+		int sequenceLength = input.getInt();
+
+		AbstractMinHashSketch<?> mainHashes;
+		if (sketchMode==SketchMode.OPH)
+			mainHashes = OnePermutationSketch.fromByteBuffer(input);
+		else
+			mainHashes = MinHashSketch.fromByteBuffer(input);
+
+		BottomOverlapSketch orderedHashes = BottomOverlapSketch.fromByteBuffer(input);
+
+		return new SequenceSketch(id, sequenceLength, mainHashes, orderedHashes);
+	}
+	
+	private static String readUTF(ByteBuffer input) throws IOException
+	{
+		int length = input.getShort() & 0xffff;
+		byte[] bytes = new byte[length];
+		input.get(bytes);
+		
+		// ascii is the same in modified utf-8, anything else goes through the regular decoder
+		for (byte b : bytes)
+			if (b < 0)
+			{
+				ByteBuffer utf = ByteBuffer.allocate(2+length).putShort((short)length).put(bytes);
+				return new DataInputStream(new ByteArrayInputStream(utf.array())).readUTF();
+			}
+		
+		return new String(bytes, StandardCharsets.ISO_8859_1);
+	}
+
+	public SequenceSketch(SequenceId id, int sequenceLength, AbstractMinHashSketch<?> mainHashes, BottomOverlapSketch orderedHashes)
+	{
+		this(id, sequenceLength, mainHashes, orderedHashes, null);
+	}
+
+	private SequenceSketch(SequenceId id, int sequenceLength, AbstractMinHashSketch<?> mainHashes, BottomOverlapSketch orderedHashes, PackedSequence sequence)
 	{
 		this.sequenceLength = sequenceLength;
 		this.id = id;
 		this.mainHashes = mainHashes;
 		this.orderedHashes = orderedHashes;
+		this.sequence = sequence;
 	}
 
 	public SequenceSketch(Sequence seq, int kmerSize, int numHashes, int orderedKmerSize, int orderedSketchSize, FrequencyCounts kmerFilter, boolean doReverseCompliment, double repeatWeight) throws ZeroNGramsFoundException
+	{
+		this(seq, kmerSize, numHashes, orderedKmerSize, orderedSketchSize, kmerFilter, doReverseCompliment, repeatWeight, KmerHashMode.MURMUR, false, SketchMode.MINHASH);
+	}
+
+	public SequenceSketch(Sequence seq, int kmerSize, int numHashes, int orderedKmerSize, int orderedSketchSize, FrequencyCounts kmerFilter, boolean doReverseCompliment, double repeatWeight, KmerHashMode hashMode, boolean fastMinHash, SketchMode sketchMode) throws ZeroNGramsFoundException
 	{
 		this.sequenceLength = seq.length();
 		this.id = seq.getId();
 		
 		//do not do reverse compliment for minhash, since unordered
-		this.mainHashes = new MinHashSketch(seq.getSquenceString(), kmerSize, numHashes, kmerFilter, false, repeatWeight);
+		if (sketchMode==SketchMode.OPH)
+			this.mainHashes = new OnePermutationSketch(seq.getPackedSequence(), kmerSize, numHashes, kmerFilter, false, repeatWeight, hashMode);
+		else
+			this.mainHashes = new MinHashSketch(seq.getPackedSequence(), kmerSize, numHashes, kmerFilter, false, repeatWeight, hashMode, fastMinHash);
 		
 		//do not do reverse compliment
-		this.orderedHashes = new BottomOverlapSketch(seq.getSquenceString(), orderedKmerSize, orderedSketchSize, false);
+		this.orderedHashes = new BottomOverlapSketch(seq.getPackedSequence(), orderedKmerSize, orderedSketchSize, false, hashMode);
+		this.sequence = null;
 	}
 
 	public SequenceSketch createOffset(int offset)
 	{
-		return new SequenceSketch(this.id.createOffset(offset), this.sequenceLength, this.mainHashes, this.orderedHashes);
+		return new SequenceSketch(this.id.createOffset(offset), this.sequenceLength, this.mainHashes, this.orderedHashes, this.sequence);
+	}
+	
+	/**
+	 * @return the same sketch with another id. A null id is used by indexes that keep the ids themselves.
+	 */
+	SequenceSketch withId(SequenceId id)
+	{
+		return new SequenceSketch(id, this.sequenceLength, this.mainHashes, this.orderedHashes, this.sequence);
+	}
+	
+	/**
+	 * @return the same sketch, keeping the forward strand of its sequence. The sketches of both strands should share
+	 *         the same forward sequence.
+	 */
+	public SequenceSketch withSequence(PackedSequence forwardSequence)
+	{
+		return new SequenceSketch(this.id, this.sequenceLength, this.mainHashes, this.orderedHashes, forwardSequence);
 	}
 
 	public byte[] getAsByteArray()
@@ -147,7 +260,7 @@ public final class SequenceSketch implements Serializable
 		}
 	}
 	
-	public MinHashSketch getMinHashes()
+	public AbstractMinHashSketch<?> getMinHashes()
 	{
 		return this.mainHashes;
 	}
@@ -162,6 +275,14 @@ public final class SequenceSketch implements Serializable
 		return this.id;
 	}
 
+	/**
+	 * @return the forward strand of the sequence, or null if it was not kept.
+	 */
+	public PackedSequence getSequence()
+	{
+		return this.sequence;
+	}
+
 	public int getSequenceLength()
 	{
 		return this.sequenceLength;
@@ -33,21 +33,32 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
+import edu.umd.marbl.mhap.impl.SequenceSketch.SketchMode;
 import edu.umd.marbl.mhap.sketch.FrequencyCounts;
+import edu.umd.marbl.mhap.sketch.HashUtils.KmerHashMode;
+import edu.umd.marbl.mhap.sketch.SketchRuntimeException;
 import edu.umd.marbl.mhap.sketch.ZeroNGramsFoundException;
 import edu.umd.marbl.mhap.utils.ReadBuffer;
 import edu.umd.marbl.mhap.utils.Utils;
@@ -55,7 +66,14 @@ import edu.umd.marbl.mhap.utils.Utils;
 public class SequenceSketchStreamer
 {
 	private final DataInputStream buffInput;
+	private final ByteBuffer[] datSegments;
+	private final long[] datSegmentStarts;
+	private final long[] datRecordOffsets;
+	private final AtomicInteger datNextRecord;
 	private final FastaData fastaData;
+	private final KmerHashMode hashMode;
+	private final boolean fastMinHash;
+	private final SketchMode sketchMode;
 	private final FrequencyCounts kmerFilter;
 	private final int kmerSize;
 	private final int minOlapLength;
@@ -67,11 +85,26 @@ public class SequenceSketchStreamer
 	private final int orderedSketchSize;
 	private boolean readClosed;
 	private boolean doReverseCompliment;
+	private boolean keepSequences;
 	private final boolean readingFasta;
 	private final double repeatWeight;
 	private final ConcurrentLinkedQueue<SequenceSketch> sequenceHashList;
-
-	public SequenceSketchStreamer(String file, int minOlapLength, int offset) throws FileNotFoundException
+	
+	/**
+	 * Start of the dat file header. Files without it were written by older versions, which only had the default
+	 * modes. The first byte of those files is the 0/1 strand flag, so they cannot be confused with the header.
+	 */
+	private final static byte[] DAT_MAGIC = new byte[] {'M', 'H', 'A', 'P'};
+	private final static int DAT_VERSION = 2;
+	
+	/**
+	 * Version 2 files end with a table of record offsets followed by this trailer: the table offset (long), the number
+	 * of records (int) and the magic. The file is memory mapped and records are decoded in place, by any thread.
+	 */
+	private final static int DAT_TRAILER_SIZE = 16;
+	private final static long MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+
+	public SequenceSketchStreamer(String file, int minOlapLength, int offset) throws IOException
 	{
 		this.fastaData = null;
 		this.readingFasta = false;
@@ -82,20 +115,130 @@ public class SequenceSketchStreamer
 		this.minOlapLength = minOlapLength;
 		this.doReverseCompliment = false;
 
-		this.kmerSize = 0;
-		this.numHashes = 0;
-		this.orderedKmerSize = 0;
-		this.orderedSketchSize = 0;
 		this.readClosed = false;
 		this.offset = offset;
 
-		this.buffInput = new DataInputStream(new BufferedInputStream(new FileInputStream(file), Utils.BUFFER_BYTE_SIZE));
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), Utils.BUFFER_BYTE_SIZE));
+		
+		//read the header, if present
+		SketchMode sketchMode = SketchMode.MINHASH;
+		KmerHashMode hashMode = KmerHashMode.MURMUR;
+		boolean fastMinHash = false;
+		int version = 0;
+		int[] sizes = new int[4];
+		
+		input.mark(DAT_MAGIC.length);
+		byte[] magic = new byte[DAT_MAGIC.length];
+		int numRead = input.read(magic);
+		if (numRead==DAT_MAGIC.length && Arrays.equals(magic, DAT_MAGIC))
+		{
+			version = input.readInt();
+			if (version!=1 && version!=DAT_VERSION)
+			{
+				input.close();
+				throw new MhapRuntimeException("Unsupported dat file version "+version+" in file "+file+".");
+			}
+			
+			try
+			{
+				sketchMode = SketchMode.fromString(input.readUTF());
+				hashMode = KmerHashMode.fromString(input.readUTF());
+				fastMinHash = input.readBoolean();
+				
+				//kmer size, number of hashes, ordered kmer size, ordered sketch size
+				if (version>=2)
+					for (int iter=0; iter<sizes.length; iter++)
+						sizes[iter] = input.readInt();
+			}
+			catch (SketchRuntimeException e)
+			{
+				input.close();
+				throw new MhapRuntimeException("Invalid header in dat file "+file+".", e);
+			}
+		}
+		else
+			input.reset();
+		
+		this.sketchMode = sketchMode;
+		this.hashMode = hashMode;
+		this.fastMinHash = fastMinHash;
+		this.kmerSize = sizes[0];
+		this.numHashes = sizes[1];
+		this.orderedKmerSize = sizes[2];
+		this.orderedSketchSize = sizes[3];
+		
+		if (version<2)
+		{
+			this.buffInput = input;
+			this.datSegments = null;
+			this.datSegmentStarts = null;
+			this.datRecordOffsets = null;
+			this.datNextRecord = null;
+			
+			return;
+		}
+		
+		input.close();
+		this.buffInput = null;
+		this.datNextRecord = new AtomicInteger();
+		
+		try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ))
+		{
+			long fileSize = channel.size();
+			if (fileSize<DAT_TRAILER_SIZE)
+				throw new MhapRuntimeException("Truncated dat file "+file+".");
+			
+			ByteBuffer trailer = channel.map(MapMode.READ_ONLY, fileSize-DAT_TRAILER_SIZE, DAT_TRAILER_SIZE);
+			long tableOffset = trailer.getLong();
+			int numRecords = trailer.getInt();
+			trailer.get(magic);
+			if (!Arrays.equals(magic, DAT_MAGIC) || tableOffset<0 || tableOffset+8L*numRecords!=fileSize-DAT_TRAILER_SIZE)
+				throw new MhapRuntimeException("Truncated or invalid dat file "+file+".");
+			
+			this.datRecordOffsets = new long[numRecords];
+			channel.map(MapMode.READ_ONLY, tableOffset, 8L*numRecords).asLongBuffer().get(this.datRecordOffsets);
+			
+			//map the records in segments under 2GB, split on record boundaries
+			ArrayList<ByteBuffer> segments = new ArrayList<>();
+			ArrayList<Long> segmentStarts = new ArrayList<>();
+			int first = 0;
+			while (first<numRecords)
+			{
+				long start = this.datRecordOffsets[first];
+				int last = first+1;
+				while (last<numRecords && this.datRecordOffsets[last]-start<=MAX_SEGMENT_SIZE && recordEnd(last, tableOffset)-start<=MAX_SEGMENT_SIZE)
+					last++;
+				
+				long size = recordEnd(last-1, tableOffset)-start;
+				if (size>MAX_SEGMENT_SIZE)
+					throw new MhapRuntimeException("Dat file record is too large to map in file "+file+".");
+				
+				segments.add(channel.map(MapMode.READ_ONLY, start, size));
+				segmentStarts.add(start);
+				first = last;
+			}
+			
+			this.datSegments = segments.toArray(new ByteBuffer[segments.size()]);
+			this.datSegmentStarts = new long[segmentStarts.size()];
+			for (int iter=0; iter<this.datSegmentStarts.length; iter++)
+				this.datSegmentStarts[iter] = segmentStarts.get(iter);
+		}
 	}
 
 	public SequenceSketchStreamer(String file, int minOlapLength, int kmerSize, int numHashes, int orderedKmerSize, int orderedSketchSize,
 			FrequencyCounts kmerFilter, boolean doReverseCompliment, double repeatWeight, int offset) throws IOException
+	{
+		this(file, minOlapLength, kmerSize, numHashes, orderedKmerSize, orderedSketchSize, kmerFilter, doReverseCompliment, repeatWeight, KmerHashMode.MURMUR, false, SketchMode.MINHASH, offset);
+	}
+
+	public SequenceSketchStreamer(String file, int minOlapLength, int kmerSize, int numHashes, int orderedKmerSize, int orderedSketchSize,
+			FrequencyCounts kmerFilter, boolean doReverseCompliment, double repeatWeight, KmerHashMode hashMode, boolean fastMinHash, SketchMode sketchMode, int offset) throws IOException
 	{
 		this.fastaData = new FastaData(file, offset);
+		this.datSegments = null;
+		this.datSegmentStarts = null;
+		this.datRecordOffsets = null;
+		this.datNextRecord = null;
 		this.readingFasta = true;
 		this.sequenceHashList = new ConcurrentLinkedQueue<SequenceSketch>();
 		this.numberProcessed = new AtomicLong();
@@ -104,6 +247,9 @@ public class SequenceSketchStreamer
 		this.doReverseCompliment = doReverseCompliment;
 		
 		this.kmerFilter = kmerFilter;
+		this.hashMode = hashMode;
+		this.fastMinHash = fastMinHash;
+		this.sketchMode = sketchMode;
 		this.kmerSize = kmerSize;
 		this.numHashes = numHashes;
 		this.orderedKmerSize = orderedKmerSize;
@@ -148,7 +294,7 @@ public class SequenceSketchStreamer
 			if (!fwdOnly)
 			{
 				// compute the hashes
-				seqHashes = getSketch(seq.getReverseCompliment());
+				seqHashes = getSketch(seq.getReverseCompliment(), seq);
 
 				this.sequenceHashList.add(seqHashes);
 				processAddition(seqHashes);
@@ -254,15 +400,113 @@ public class SequenceSketchStreamer
 		return this.fastaData.getNumberProcessed();
 	}
 
+	/**
+	 * Computes the sketches of a batch of sequences, in the same way as dequeue(). Sequences without valid k-mers are
+	 * reported and skipped.
+	 */
+	public ArrayList<SequenceSketch> getSketches(List<Sequence> sequences, boolean fwdOnly)
+	{
+		ArrayList<SequenceSketch> sketches = new ArrayList<>(fwdOnly ? sequences.size() : sequences.size()*2);
+		for (Sequence seq : sequences)
+		{
+			try
+			{
+				SequenceSketch seqHashes = getSketch(seq);
+				processAddition(seqHashes);
+				sketches.add(seqHashes);
+
+				if (!fwdOnly)
+				{
+					seqHashes = getSketch(seq.getReverseCompliment(), seq);
+					processAddition(seqHashes);
+					sketches.add(seqHashes);
+				}
+			}
+			catch (ZeroNGramsFoundException e)
+			{
+				System.err.println("Could not process sketch for a read because zero valid n-grams found: "+e.getSequenceString());
+			}
+		}
+		
+		return sketches;
+	}
+
+	public KmerHashMode getHashMode()
+	{
+		return this.hashMode;
+	}
+
+	/**
+	 * Sketch parameters stored in a version 2 dat file, 0 if the file does not record them.
+	 */
+	public int getKmerSize()
+	{
+		return this.kmerSize;
+	}
+
 	public int getNumberProcessed()
 	{
 		return this.numberProcessed.intValue();
 	}
 
+	public int getNumHashes()
+	{
+		return this.numHashes;
+	}
+
+	public int getOrderedKmerSize()
+	{
+		return this.orderedKmerSize;
+	}
+
+	public int getOrderedSketchSize()
+	{
+		return this.orderedSketchSize;
+	}
+
 	public SequenceSketch getSketch(Sequence seq) throws ZeroNGramsFoundException
+	{
+		return getSketch(seq, seq);
+	}
+
+	/**
+	 * Sketch of one strand, keeping the forward strand of the sequence if requested.
+	 */
+	private SequenceSketch getSketch(Sequence seq, Sequence forward) throws ZeroNGramsFoundException
 	{
 		// compute the hashes
-		return new SequenceSketch(seq, this.kmerSize, this.numHashes, this.orderedKmerSize, this.orderedSketchSize, this.kmerFilter, this.doReverseCompliment, this.repeatWeight);
+		SequenceSketch sketch = new SequenceSketch(seq, this.kmerSize, this.numHashes, this.orderedKmerSize, this.orderedSketchSize, this.kmerFilter, this.doReverseCompliment, this.repeatWeight, this.hashMode, this.fastMinHash, this.sketchMode);
+		if (this.keepSequences)
+			return sketch.withSequence(forward.getPackedSequence());
+		
+		return sketch;
+	}
+
+	public SketchMode getSketchMode()
+	{
+		return this.sketchMode;
+	}
+
+	public boolean isReadingFasta()
+	{
+		return this.readingFasta;
+	}
+
+	public boolean isFastMinHash()
+	{
+		return this.fastMinHash;
+	}
+
+	/**
+	 * Keep the forward strand of the sequences in the sketches, for the verification of the overlaps. Must be set
+	 * before any sketch is read.
+	 */
+	public void setKeepSequences(boolean keepSequences)
+	{
+		if (keepSequences && !this.readingFasta)
+			throw new MhapRuntimeException("Sequences are not stored in dat files, so they cannot be kept for verification.");
+		
+		this.keepSequences = keepSequences;
 	}
 
 	protected void processAddition(SequenceSketch seqHashes)
@@ -275,8 +519,59 @@ public class SequenceSketchStreamer
 			System.err.println("Current # sequences loaded and processed from file: " + numProcessed + "...");
 	}
 
+	private long recordEnd(int index, long tableOffset)
+	{
+		return index+1<this.datRecordOffsets.length ? this.datRecordOffsets[index+1] : tableOffset;
+	}
+
+	/**
+	 * Reads up to batchSize sequences that are long enough to be sketched, or null if the fasta file is done.
+	 */
+	public ArrayList<Sequence> readSequenceBatch(int batchSize) throws IOException
+	{
+		ArrayList<Sequence> batch = new ArrayList<>(batchSize);
+		while (batch.size()<batchSize)
+		{
+			Sequence seq = this.fastaData.dequeue();
+			if (seq==null)
+				break;
+			
+			if (seq.length()>=this.minOlapLength)
+				batch.add(seq);
+		}
+		
+		return batch.isEmpty() ? null : batch;
+	}
+
+	/**
+	 * Reads up to batchSize sketches from a dat file, or null if the file is done.
+	 */
+	public ArrayList<SequenceSketch> readSketchBatch(boolean fwdOnly, int batchSize, ReadBuffer buf) throws IOException
+	{
+		ArrayList<SequenceSketch> batch = new ArrayList<>(batchSize);
+		while (batch.size()<batchSize)
+		{
+			SequenceSketch seqHashes = readFromBinary(buf, fwdOnly);
+			while (seqHashes != null && fwdOnly && !seqHashes.getSequenceId().isForward() && seqHashes.getSequenceLength()<this.minOlapLength)
+			{
+				seqHashes = readFromBinary(buf, fwdOnly);
+			}
+			
+			if (seqHashes==null)
+				break;
+			
+			processAddition(seqHashes);
+			batch.add(seqHashes);
+		}
+		
+		return batch.isEmpty() ? null : batch;
+	}
+
 	protected SequenceSketch readFromBinary(ReadBuffer buf, boolean fwdOnly) throws IOException
 	{
+		if (this.datSegments!=null)
+			return readFromMapped(fwdOnly);
+		
 		byte[] byteArray = null;
 		synchronized (this.buffInput)
 		{
@@ -314,11 +609,39 @@ public class SequenceSketchStreamer
 
 		// get as byte array stream
 		SequenceSketch seqHashes = SequenceSketch.fromByteStream(new DataInputStream(
-				new ByteArrayInputStream(byteArray)), this.offset);
+				new ByteArrayInputStream(byteArray)), this.offset, this.sketchMode);
 
 		return seqHashes;
 	}
 
+	/**
+	 * Decodes the next record of a mapped version 2 file. Records are claimed with a counter, so no lock is held.
+	 */
+	private SequenceSketch readFromMapped(boolean fwdOnly) throws IOException
+	{
+		while (true)
+		{
+			int index = this.datNextRecord.getAndIncrement();
+			if (index>=this.datRecordOffsets.length)
+				return null;
+			
+			long recordOffset = this.datRecordOffsets[index];
+			int segment = Arrays.binarySearch(this.datSegmentStarts, recordOffset);
+			if (segment<0)
+				segment = -segment-2;
+			
+			ByteBuffer record = this.datSegments[segment].duplicate();
+			record.position((int)(recordOffset-this.datSegmentStarts[segment]));
+			
+			byte isFwd = record.get();
+			record.getInt();
+			if (fwdOnly && isFwd!=1)
+				continue;
+			
+			return SequenceSketch.fromByteBuffer(record, this.offset, this.sketchMode);
+		}
+	}
+
 	public void writeToBinary(String file, final boolean fwdOnly, int numThreads) throws IOException
 	{
 		OutputStream output = null;
@@ -326,6 +649,24 @@ public class SequenceSketchStreamer
 		{
 			output = new BufferedOutputStream(new FileOutputStream(file), Utils.BUFFER_BYTE_SIZE);
 			final OutputStream finalOutput = output;
+			
+			//record how the sketches were computed
+			DataOutputStream header = new DataOutputStream(finalOutput);
+			header.write(DAT_MAGIC);
+			header.writeInt(DAT_VERSION);
+			header.writeUTF(this.sketchMode.name());
+			header.writeUTF(this.hashMode.name());
+			header.writeBoolean(this.fastMinHash);
+			header.writeInt(this.kmerSize);
+			header.writeInt(this.numHashes);
+			header.writeInt(this.orderedKmerSize);
+			header.writeInt(this.orderedSketchSize);
+			header.flush();
+			
+			//offsets of the records, in the order they are written
+			final long[][] recordOffsets = new long[][] {new long[1024]};
+			final long[] position = new long[] {header.size()};
+			final int[] numRecords = new int[1];
 
 			// figure out number of cores
 			ExecutorService execSvc = Executors.newFixedThreadPool(numThreads);
@@ -355,6 +696,11 @@ public class SequenceSketchStreamer
 
 								synchronized (finalOutput)
 								{
+									if (numRecords[0]>=recordOffsets[0].length)
+										recordOffsets[0] = Arrays.copyOf(recordOffsets[0], recordOffsets[0].length*2);
+									recordOffsets[0][numRecords[0]++] = position[0];
+									position[0] += byteSize.length+byteArray.length;
+									
 									finalOutput.write(byteSize);
 									finalOutput.write(byteArray);
 								}
@@ -385,6 +731,15 @@ public class SequenceSketchStreamer
 				throw new MhapRuntimeException("Unable to finish all tasks.");
 			}
 
+			//write the offset table and the trailer
+			DataOutputStream footer = new DataOutputStream(finalOutput);
+			for (int iter=0; iter<numRecords[0]; iter++)
+				footer.writeLong(recordOffsets[0][iter]);
+			footer.writeLong(position[0]);
+			footer.writeInt(numRecords[0]);
+			footer.write(DAT_MAGIC);
+			footer.flush();
+
 			finalOutput.flush();
 		}
 		finally
@@ -0,0 +1,71 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.main;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+
+import edu.umd.marbl.mhap.impl.MatchResultReader;
+
+/**
+ * Converts the binary output of --output-format bin to the text output format. Files ending with .gz are decompressed.
+ * 
+ * Usage: BinaryToText [binary file, or - for standard input] [text file, standard output if not given]
+ */
+public class BinaryToText
+{
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 1)
+		{
+			System.err.println("Usage: BinaryToText <binary file, or - for standard input> [text file]");
+			System.exit(1);
+		}
+		
+		InputStream in = args[0].equals("-") ? System.in : new FileInputStream(args[0]);
+		if (args[0].endsWith(".gz"))
+			in = new GZIPInputStream(in, 1 << 16);
+		OutputStream out = args.length > 1 ? new FileOutputStream(args[1]) : System.out;
+		
+		try (MatchResultReader reader = new MatchResultReader(in))
+		{
+			long count = reader.writeText(out);
+			System.err.println("Converted "+count+" overlaps.");
+		}
+		finally
+		{
+			if (out != System.out)
+				out.close();
+		}
+	}
+}
@@ -36,17 +36,30 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Locale;
+import edu.umd.marbl.mhap.impl.AbstractMatchSearch;
+import edu.umd.marbl.mhap.impl.KmerCounter;
+import edu.umd.marbl.mhap.impl.MatchResultWriter.OutputFormat;
 import edu.umd.marbl.mhap.impl.MhapRuntimeException;
 import edu.umd.marbl.mhap.impl.MinHashSearch;
 import edu.umd.marbl.mhap.impl.SequenceId;
+import edu.umd.marbl.mhap.impl.SequenceSketch.SketchMode;
 import edu.umd.marbl.mhap.impl.SequenceSketchStreamer;
+import edu.umd.marbl.mhap.sketch.CompiledFilter;
 import edu.umd.marbl.mhap.sketch.FrequencyCounts;
+import edu.umd.marbl.mhap.sketch.SketchRuntimeException;
+import edu.umd.marbl.mhap.sketch.HashUtils.KmerHashMode;
+import edu.umd.marbl.mhap.utils.ParallelDecompressInputStream;
 import edu.umd.marbl.mhap.utils.ParseOptions;
 import edu.umd.marbl.mhap.utils.Utils;
 
 public final class MhapMain
 {
 	private final double acceptScore;
+	private final String compileFilter;
+	private final double countFraction;
+	private final String countKmers;
+	private final long countMemory;
+	private final boolean countSketch;
 	private final String inFile;
 	private final FrequencyCounts kmerFilter;
 	private final int kmerSize;
@@ -63,9 +76,18 @@ public final class MhapMain
 	private final String toFile;
 	private final double repeatWeight;
 	private final boolean doReverseCompliment;
+	private final KmerHashMode hashMode;
+	private final boolean fastMinHash;
+	private final SketchMode sketchMode;
+	private final double verifyIdentity;
+	private final OutputFormat outputFormat;
+	private final boolean compressOutput;
+	private final String shardOutput;
 
 	private static final double DEFAULT_OVERLAP_ACCEPT_SCORE = 0.78;
 
+	private static final double DEFAULT_VERIFY_IDENTITY = 0.0;
+
 	private static final double DEFAULT_REPEAT_WEIGHT= 0.9;
 
 	private static final double DEFAULT_REPEAT_IDF_SCALE = 3.0;
@@ -90,6 +112,12 @@ public final class MhapMain
 
 	private static final int DEFAULT_ORDERED_SKETCH_SIZE = 1536;
 
+	private static final String DEFAULT_HASH_MODE = "murmur";
+
+	private static final String DEFAULT_SKETCH_MODE = "minhash";
+
+	private static final String DEFAULT_OUTPUT_FORMAT = "text";
+
 	public static void main(String[] args) throws Exception
 	{
 		// set the locale
@@ -100,13 +128,20 @@ public final class MhapMain
 		options.addStartTextLine("\tVersion: "+MhapMain.class.getPackage().getImplementationVersion());		
 		options.addStartTextLine("\tUsage 1 (direct execution): java -server -Xmx<memory> -jar <MHAP jar> -s<fasta/dat from/self file> [-q<fasta/dat to file>] [-f<kmer filter list, must be sorted>]");
 		options.addStartTextLine("\tUsage 2 (generate precomputed binaries): java -server -Xmx<memory> -jar <MHAP jar> -p<directory of fasta files> -q <output directory> [-f<kmer filter list, must be sorted>]");
-		options.addOption("-s", "Usage 1 only. The FASTA or binary dat file (see Usage 2) of reads that will be stored in a box, and that all subsequent reads will be compared to.", "");
-		options.addOption("-q", "Usage 1: The FASTA file of reads, or a directory of files, that will be compared to the set of reads in the box (see -s). Usage 2: The output directory for the binary formatted dat files.", "");
+		options.addStartTextLine("\tUsage 3 (compile k-mer filter): java -server -Xmx<memory> -jar <MHAP jar> -f<kmer filter list, must be sorted> --compile-filter <output file>");
+		options.addStartTextLine("\tUsage 4 (count k-mers into a filter): java -server -Xmx<memory> -jar <MHAP jar> -s<fasta file or directory> --count-kmers <output file> [--filter-threshold <min fraction>]");
+		options.addOption("-s", "Usage 1 only. The FASTA/FASTQ or binary dat file (see Usage 2) of reads that will be stored in a box, and that all subsequent reads will be compared to.", "");
+		options.addOption("-q", "Usage 1: The FASTA/FASTQ file of reads, or a directory of files, that will be compared to the set of reads in the box (see -s). Usage 2: The output directory for the binary formatted dat files.", "");
 		options.addOption("-p", "Usage 2 only. The directory containing FASTA files that should be converted to binary format for storage.", "");
 		options.addOption("-f", "k-mer filter file used for filtering out highly repetative k-mers. Must be sorted in descending order of frequency (second column).", "");
+		options.addOption("--count-kmers", "[string] Usage 4 only. Count the k-mers (size -k, canonical unless --no-rc) of the -s FASTA/FASTQ file, or of the files in the -s directory, and write the k-mers whose fraction of all the k-mers is at least --filter-threshold as a k-mer filter file (see -f) at the given path, then exit. Spills to disk, next to the output file, when the counts exceed --count-memory.", "");
+		options.addOption("--count-memory", "[int] Usage 4 only. Memory in MB for counting k-mers, 0 to use half of the maximum heap size.", 0);
+		options.addOption("--count-sketch", "Usage 4 only. First count the k-mers in a CountMin sketch of --count-memory size, then count exactly only the k-mers that can reach the --filter-threshold. Reads the input twice, but uses much less memory and disk space when most k-mers are rare.", false);
+		options.addOption("--compile-filter", "[string] Usage 3 only. Compile the -f k-mer filter file into a binary filter file at the given path and exit. The binary file can be given to -f instead of the text file, and is memory-mapped instead of parsed. It can only be used with the same --filter-threshold, --hash-mode and --no-rc settings.", "");
 		options.addOption("-k", "[int], k-mer size used for MinHashing. The k-mer size for second stage filter is seperate, and can also be modified.", DEFAULT_KMER_SIZE);
 		options.addOption("--num-hashes", "[int], Number of min-mers to be used in MinHashing.", DEFAULT_NUM_WORDS);
 		options.addOption("--threshold", "[double], The threshold cutoff for the second stage sort-merge filter. This is based on the identity score computed from the Jaccard distance of k-mers (size given by ordered-kmer-size) in the overlapping regions.", DEFAULT_OVERLAP_ACCEPT_SCORE);
+		options.addOption("--verify-identity", "[double], Third stage filter, off when 0. Overlaps accepted by the second stage are verified by the edit distance of the overlapping regions (banded bit-vector alignment), and removed if their identity, 1-(edit distance)/(longer region length), is below this value. Requires FASTA/FASTQ files, since dat files do not store the sequences.", DEFAULT_VERIFY_IDENTITY);
 		options.addOption("--filter-threshold", "[double], The cutoff at which the k-mer in the k-mer filter file is considered repetitive. This value for a specific k-mer is specified in the second column in the filter file. If no filter file is provided, this option is ignored.", DEFAULT_FILTER_CUTOFF);
 		options.addOption("--max-shift", "[double], Region size to the left and right of the estimated overlap, as derived from the median shift and sequence length, where a k-mer matches are still considered valid. Second stage filter only.", DEFAULT_MAX_SHIFT_PERCENT);
 		options.addOption("--num-min-matches", "[int], Minimum # min-mer that must be shared before computing second stage filter. Any sequences below that value are considered non-overlapping.", DEFAULT_NUM_MIN_MATCHES);
@@ -122,6 +157,12 @@ public final class MhapMain
 		options.addOption("--supress-noise", "[int] 0) Does nothing, 1) completely removes any k-mers not specified in the filter file, 2) supresses k-mers not specified in the filter file, similar to repeats. ", 0);
 		options.addOption("--no-tf", "Do not perform the tf weighing, in the tf-idf weighing.", false);
 		options.addOption("--no-rc", "Do not store or do comparison of the reverse compliment strings.", false);
+		options.addOption("--hash-mode", "[string] How k-mers are hashed. \"murmur\") Murmur3 hash of the k-mer string, compatible with dat files and filters from previous versions. \"rolling\") Rolling 2-bit packed k-mer hash (k<=32). All dat files must be generated with the same mode.", DEFAULT_HASH_MODE);
+		options.addOption("--sketch-mode", "[string] The sketch used for the first stage filter. \"minhash\") Weighted MinHash with one hash function per min-mer. \"oph\") Weighted one permutation MinHash with densification, sketching cost is independent of --num-hashes. All dat files must be generated with the same mode.", DEFAULT_SKETCH_MODE);
+		options.addOption("--fast-minhash", "Use the fast weighted MinHash kernel (sort-based k-mer counting and ProbMinHash sampling), whose cost does not grow with the tf-idf weights. Produces different sketches than the default kernel, so all dat files must be generated with the same setting.", false);
+		options.addOption("--output-format", "[string] Format of the overlaps written to standard output. \"text\") One line of text per overlap. \"paf\") One line per overlap in the Pairwise mApping Format, with the error in the dv:f tag and the number of shared min-mers in the cm:i tag. \"bin\") Compact fixed-width little-endian binary records, read with edu.umd.marbl.mhap.impl.MatchResultReader or converted to text with edu.umd.marbl.mhap.main.BinaryToText. Not compatible with --store-full-id.", DEFAULT_OUTPUT_FORMAT);
+		options.addOption("--compress-output", "Compress the overlaps in the BGZF format (block gzip, readable by gzip and indexable by bgzip), using all threads. Shard files get the .gz extension.", false);
+		options.addOption("--shard-output", "[string] Instead of standard output, each thread writes its overlaps to its own file <prefix>.<thread>.<txt/paf/bin>, given the prefix.", "");
 		options.addOption("--settings", "Set all unset parameters for the default settings. Same defaults are applied to Nanopore and Pacbio reads. 0) None, 1) Default, 2) Fast, 3) Sensitive.", 0);
 		
 		if (!options.process(args))
@@ -198,7 +239,24 @@ public final class MhapMain
 		}		
 		
 		
-		if (options.get("-s").getString().isEmpty() && options.get("-p").getString().isEmpty())
+		if (!options.get("--compile-filter").getString().isEmpty() && options.get("-f").getString().isEmpty())
+		{
+			System.out.println("Please set the -f option to the k-mer filter file to compile. See options below:");
+			System.out.println(options.helpMenuString());
+			System.exit(1);
+		}
+		if (!options.get("--count-kmers").getString().isEmpty() && options.get("-s").getString().isEmpty())
+		{
+			System.out.println("Please set the -s option to the sequences to count. See options below:");
+			System.out.println(options.helpMenuString());
+			System.exit(1);
+		}
+		if (options.get("--count-memory").getInteger()<0)
+		{
+			System.out.println("The --count-memory parameter must be >= 0.");
+			System.exit(1);
+		}
+		if (options.get("-s").getString().isEmpty() && options.get("-p").getString().isEmpty() && options.get("--compile-filter").getString().isEmpty())
 		{
 			System.out.println("Please set the -s or the -p options. See options below:");
 			System.out.println(options.helpMenuString());
@@ -289,6 +347,13 @@ public final class MhapMain
 			System.exit(1);
 		}
 
+		//check range
+		if (options.get("--verify-identity").getDouble()<0.0 || options.get("--verify-identity").getDouble()>1.0)
+		{
+			System.out.println("The verification identity must be 0<=identity<=1.0.");
+			System.exit(1);
+		}
+
 		//check range
 		if (options.get("--supress-noise").getInteger()<0 || options.get("--supress-noise").getInteger()>2)
 		{
@@ -296,6 +361,45 @@ public final class MhapMain
 			System.exit(1);
 		}
 
+		//check hash mode
+		try
+		{
+			KmerHashMode.fromString(options.get("--hash-mode").getString());
+		}
+		catch (SketchRuntimeException e)
+		{
+			System.out.println("The --hash-mode parameter must be \"murmur\" or \"rolling\".");
+			System.exit(1);
+		}
+
+		//check sketch mode
+		try
+		{
+			SketchMode.fromString(options.get("--sketch-mode").getString());
+		}
+		catch (SketchRuntimeException e)
+		{
+			System.out.println("The --sketch-mode parameter must be \"minhash\" or \"oph\".");
+			System.exit(1);
+		}
+
+		//check output format
+		OutputFormat outputFormat = null;
+		try
+		{
+			outputFormat = OutputFormat.fromString(options.get("--output-format").getString());
+		}
+		catch (MhapRuntimeException e)
+		{
+			System.out.println("The --output-format parameter must be \"text\", \"paf\" or \"bin\".");
+			System.exit(1);
+		}
+		if (outputFormat==OutputFormat.BIN && options.get("--store-full-id").getBoolean())
+		{
+			System.out.println("The --store-full-id option cannot be used with --output-format bin, since binary records store numeric IDs.");
+			System.exit(1);
+		}
+
 		//check other options
 		//TODO move into the class
 		if (options.get("--store-full-id").getBoolean())
@@ -319,10 +423,19 @@ public final class MhapMain
 	public MhapMain(ParseOptions options) throws IOException 
 	{
 		this.processFile = options.get("-p").getString();
+		this.compileFilter = options.get("--compile-filter").getString();
+		this.countKmers = options.get("--count-kmers").getString();
+		this.countFraction = options.get("--filter-threshold").getDouble();
+		this.countSketch = options.get("--count-sketch").getBoolean();
+		if (options.get("--count-memory").getInteger() > 0)
+			this.countMemory = options.get("--count-memory").getInteger() * (1L << 20);
+		else
+			this.countMemory = Runtime.getRuntime().maxMemory() / 2L;
 		this.inFile = options.get("-s").getString();
 		this.toFile = options.get("-q").getString();
 		this.noSelf = options.get("--no-self").getBoolean();
 		this.numThreads = options.get("--num-threads").getInteger();
+		ParallelDecompressInputStream.setNumThreads(this.numThreads);
 		
 		this.numHashes = options.get("--num-hashes").getInteger();
 		this.kmerSize = options.get("-k").getInteger();
@@ -335,6 +448,13 @@ public final class MhapMain
 		this.orderedKmerSize = options.get("--ordered-kmer-size").getInteger();
 		this.orderedSketchSize = options.get("--ordered-sketch-size").getInteger();
 		this.doReverseCompliment = !options.get("--no-rc").getBoolean();
+		this.hashMode = KmerHashMode.fromString(options.get("--hash-mode").getString());
+		this.fastMinHash = options.get("--fast-minhash").getBoolean();
+		this.sketchMode = SketchMode.fromString(options.get("--sketch-mode").getString());
+		this.verifyIdentity = options.get("--verify-identity").getDouble();
+		this.outputFormat = OutputFormat.fromString(options.get("--output-format").getString());
+		this.compressOutput = options.get("--compress-output").getBoolean();
+		this.shardOutput = options.get("--shard-output").getString();
 		
 		// read in the kmer filter set
 		String filterFile = options.get("-f").getString();
@@ -351,13 +471,26 @@ public final class MhapMain
 				
 				double maxFraction = options.get("--filter-threshold").getDouble();
 				int removeUnique = options.get("--supress-noise").getInteger();
+				
+				// the compiled filter always stores the bloom filter, so it can be used with any --supress-noise
+				if (!this.compileFilter.isEmpty())
+					removeUnique = Math.max(1, removeUnique);
 				boolean noTf = options.get("--no-tf").getBoolean();
 				double range = options.get("--repeat-idf-scale").getDouble();
 			
-				try (BufferedReader bf = Utils.getFile(filterFile, null))
+				// uncompressed files are memory-mapped and parsed in parallel
+				if (filterFile.endsWith("gz") || filterFile.endsWith("bz2"))
 				{
-					this.kmerFilter = new FrequencyCounts(bf, maxFraction, offset, removeUnique, noTf, this.numThreads, range, this.doReverseCompliment);
+					try (BufferedReader bf = Utils.getFile(filterFile, null))
+					{
+						this.kmerFilter = new FrequencyCounts(bf, maxFraction, offset, removeUnique, noTf, this.numThreads, range, this.doReverseCompliment, this.hashMode);
+					}
 				}
+				else
+				if (CompiledFilter.isCompiled(new File(filterFile)))
+					this.kmerFilter = new FrequencyCounts(new CompiledFilter(new File(filterFile)), maxFraction, offset, removeUnique, noTf, range, this.doReverseCompliment, this.hashMode);
+				else
+					this.kmerFilter = new FrequencyCounts(new File(filterFile), maxFraction, offset, removeUnique, noTf, this.numThreads, range, this.doReverseCompliment, this.hashMode);
 			}
 			catch (Exception e)
 			{
@@ -380,6 +513,43 @@ public final class MhapMain
 		long startTime = System.nanoTime();
 		long processTime = System.nanoTime();
 		
+		//if counting the k-mers
+		if (!this.countKmers.isEmpty())
+		{
+			File file = new File(this.inFile);
+			if (!file.exists())
+				throw new MhapRuntimeException("Input file does not exist.");
+			
+			ArrayList<String> files = new ArrayList<>();
+			if (!file.isDirectory())
+				files.add(file.getPath());
+			else
+			{
+				File[] fileList = file.listFiles((dir,name) -> !name.startsWith("."));
+				if (fileList!=null)
+					for (File cf : fileList)
+						files.add(cf.getPath());
+				
+				Collections.sort(files);
+			}
+			
+			System.err.println("Counting k-mers of " + files.size() + " files into " + this.countKmers + "...");
+			KmerCounter counter = new KmerCounter(this.kmerSize, this.doReverseCompliment, this.numThreads, this.countMemory);
+			counter.writeFilter(files, this.countKmers, this.countFraction, this.countSketch);
+			System.err.println("Total time (s): " + (System.nanoTime() - startTotalTime)*1.0e-9);
+			return;
+		}
+		
+		//if compiling the filter
+		if (!this.compileFilter.isEmpty())
+		{
+			System.err.println("Compiling k-mer filter to " + this.compileFilter + "...");
+			this.kmerFilter.writeCompiled(new File(this.compileFilter));
+			System.err.println("Time (s) to compile filter: " + (System.nanoTime() - startTime) * 1.0e-9);
+			System.err.println("Total time (s): " + (System.nanoTime() - startTotalTime)*1.0e-9);
+			return;
+		}
+		
 		//if processing a directory
 		if (this.processFile!=null && !this.processFile.isEmpty())
 		{
@@ -450,6 +620,12 @@ public final class MhapMain
 			return;
 		}
 		
+		//only the overlap search writes to the output
+		if (this.shardOutput.isEmpty())
+			AbstractMatchSearch.setOutputFormat(this.outputFormat, this.compressOutput);
+		else
+			AbstractMatchSearch.setShardOutput(this.shardOutput, this.numThreads, this.outputFormat, this.compressOutput);
+
 		System.err.println("Processing files for storage in reverse index...");
 
 		// read and index the kmers
@@ -541,6 +717,7 @@ public final class MhapMain
 		}
 		
 		//flush output
+		AbstractMatchSearch.closeOutput();
 		System.out.flush();
 		
 		//output time
@@ -554,17 +731,39 @@ public final class MhapMain
 	public MinHashSearch getMatchSearch(SequenceSketchStreamer hashStreamer) throws IOException
 	{
 		return new MinHashSearch(hashStreamer, this.numHashes, this.numMinMatches, this.numThreads, false,
-				this.minStoreLength, this.maxShift, this.acceptScore, this.doReverseCompliment);
+				this.minStoreLength, this.maxShift, this.acceptScore, this.doReverseCompliment, this.verifyIdentity);
 	}
 	
 	public SequenceSketchStreamer getSequenceHashStreamer(String file, int offset) throws IOException
 	{
 		SequenceSketchStreamer seqStreamer;
 		if (file.endsWith(".dat"))
+		{
+			if (this.verifyIdentity > 0.0)
+				throw new MhapRuntimeException("File "+file+" does not store the sequences needed by --verify-identity. Use the FASTA/FASTQ file instead.");
+			
 			seqStreamer = new SequenceSketchStreamer(file, this.minOlapLength, offset);
+			
+			//sketches from different modes cannot be compared
+			if (seqStreamer.getSketchMode()!=this.sketchMode || seqStreamer.getHashMode()!=this.hashMode || seqStreamer.isFastMinHash()!=this.fastMinHash)
+				throw new MhapRuntimeException("File "+file+" was generated with --sketch-mode "+seqStreamer.getSketchMode().name().toLowerCase()
+						+", --hash-mode "+seqStreamer.getHashMode().name().toLowerCase()+(seqStreamer.isFastMinHash() ? ", --fast-minhash" : "")
+						+". Run with the same settings, or regenerate the file.");
+			
+			//only version 2 files store the sizes
+			if (seqStreamer.getKmerSize()>0 && (seqStreamer.getKmerSize()!=this.kmerSize || seqStreamer.getNumHashes()!=this.numHashes
+					|| seqStreamer.getOrderedKmerSize()!=this.orderedKmerSize || seqStreamer.getOrderedSketchSize()!=this.orderedSketchSize))
+				throw new MhapRuntimeException("File "+file+" was generated with -k "+seqStreamer.getKmerSize()+", --num-hashes "+seqStreamer.getNumHashes()
+						+", --ordered-kmer-size "+seqStreamer.getOrderedKmerSize()+", --ordered-sketch-size "+seqStreamer.getOrderedSketchSize()
+						+". Run with the same settings, or regenerate the file.");
+		}
 		else
 			seqStreamer = new SequenceSketchStreamer(file, this.minOlapLength, this.kmerSize, this.numHashes,
-					this.orderedKmerSize, this.orderedSketchSize, this.kmerFilter, this.doReverseCompliment, this.repeatWeight, offset);
+					this.orderedKmerSize, this.orderedSketchSize, this.kmerFilter, this.doReverseCompliment, this.repeatWeight, this.hashMode, this.fastMinHash, this.sketchMode, offset);
+		
+		//sequences are only needed for the verification
+		if (this.verifyIdentity > 0.0 && this.processFile.isEmpty())
+			seqStreamer.setKeepSequences(true);
 
 		return seqStreamer;
 	}
@@ -572,6 +771,11 @@ public final class MhapMain
 	protected void outputFinalStat(MinHashSearch matchSearch)
 	{
 		System.err.println("MinHash search time (s): " + matchSearch.getMinHashSearchTime());
+		if (matchSearch.isVerifying())
+		{
+			System.err.println("Verification time (s): " + matchSearch.getVerifyTime());
+			System.err.println("Overlaps rejected by verification: " + matchSearch.getNumberOverlapsRejected());
+		}
 		//System.err.println("Sort-merge search time (s): " + matchSearch.getSortMergeTime());
 		System.err.println("Total matches found: " + matchSearch.getMatchesProcessed());
 		System.err.println("Average number of matches per lookup: " + (double) matchSearch.getMatchesProcessed()
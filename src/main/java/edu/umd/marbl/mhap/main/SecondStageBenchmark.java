@@ -0,0 +1,111 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.main;
+
+import java.lang.management.ManagementFactory;
+
+import edu.umd.marbl.mhap.impl.OverlapInfo;
+import edu.umd.marbl.mhap.sketch.BottomOverlapSketch;
+import edu.umd.marbl.mhap.sketch.BottomOverlapSketch.MatchData;
+import edu.umd.marbl.mhap.sketch.ZeroNGramsFoundException;
+import edu.umd.marbl.mhap.utils.RandomSequenceGenerator;
+
+/**
+ * Measures the time and the heap allocation per sequence pair of the second stage filter, with a new MatchData per
+ * pair and with reused MatchData.
+ * 
+ * Usage: SecondStageBenchmark [number of pairs] [read length] [iterations]
+ */
+public class SecondStageBenchmark
+{
+	private static final double MAX_SHIFT = 0.2;
+
+	public static void main(String[] args) throws ZeroNGramsFoundException
+	{
+		int numPairs = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int readLength = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		int numIterations = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+		java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if (!(threadBean instanceof com.sun.management.ThreadMXBean) || !((com.sun.management.ThreadMXBean)threadBean).isThreadAllocatedMemorySupported())
+		{
+			System.err.println("Thread allocation counters are not supported by this JVM.");
+			System.exit(1);
+		}
+		com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean)threadBean;
+		allocationBean.setThreadAllocatedMemoryEnabled(true);
+
+		// overlapping pairs of noisy reads from a random genome
+		RandomSequenceGenerator generator = new RandomSequenceGenerator(1);
+		String genome = generator.generateRandomSequence(readLength*4);
+		
+		BottomOverlapSketch[] sketches1 = new BottomOverlapSketch[numPairs];
+		BottomOverlapSketch[] sketches2 = new BottomOverlapSketch[numPairs];
+		for (int iter = 0; iter < numPairs; iter++)
+		{
+			int start1 = (iter*7919) % (readLength*2);
+			int start2 = start1 + readLength/2;
+			
+			sketches1[iter] = new BottomOverlapSketch(generator.addPacBioError(genome.substring(start1, start1+readLength)), 12, 1536, false);
+			sketches2[iter] = new BottomOverlapSketch(generator.addPacBioError(genome.substring(start2, start2+readLength)), 12, 1536, false);
+		}
+		
+		long threadId = Thread.currentThread().getId();
+		MatchData matchData = new MatchData();
+		
+		for (int iteration = 0; iteration < numIterations; iteration++)
+		{
+			double checksum = 0.0;
+			
+			long startBytes = allocationBean.getThreadAllocatedBytes(threadId);
+			long startTime = System.nanoTime();
+			for (int iter = 0; iter < numPairs; iter++)
+			{
+				OverlapInfo result = sketches1[iter].getOverlapInfo(sketches2[iter], MAX_SHIFT);
+				checksum += result.score;
+			}
+			long allocatingTime = System.nanoTime() - startTime;
+			long allocatingBytes = allocationBean.getThreadAllocatedBytes(threadId) - startBytes;
+			
+			startBytes = allocationBean.getThreadAllocatedBytes(threadId);
+			startTime = System.nanoTime();
+			for (int iter = 0; iter < numPairs; iter++)
+			{
+				OverlapInfo result = sketches1[iter].getOverlapInfo(sketches2[iter], MAX_SHIFT, matchData);
+				checksum -= result.score;
+			}
+			long reusedTime = System.nanoTime() - startTime;
+			long reusedBytes = allocationBean.getThreadAllocatedBytes(threadId) - startBytes;
+			
+			System.out.println("Iteration "+(iteration+1)+": new MatchData "+(allocatingBytes/numPairs)+" bytes/pair, "
+					+String.format("%.2f", allocatingTime*1.0e-3/numPairs)+" us/pair; reused MatchData "+(reusedBytes/numPairs)+" bytes/pair, "
+					+String.format("%.2f", reusedTime*1.0e-3/numPairs)+" us/pair (checksum "+checksum+").");
+		}
+	}
+}
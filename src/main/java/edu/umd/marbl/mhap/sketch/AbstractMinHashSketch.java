@@ -0,0 +1,222 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.sketch;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import edu.umd.marbl.mhap.sketch.HashUtils.KmerHashMode;
+
+/**
+ * Common storage and comparison of sketches made of one int per hash slot, where the similarity is the fraction of
+ * equal slots.
+ */
+public abstract class AbstractMinHashSketch<T extends AbstractMinHashSketch<T>> implements Sketch<T>
+{
+	protected final int[] minHashes;
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = -4217815393419524402L;
+
+	protected final static double exponential(long state)
+	{
+		//uniform in (0,1]
+		double u = (double)((splitMix64(state)>>>11)+1L)*0x1.0p-53;
+		
+		return -Math.log(u);
+	}
+
+	/**
+	 * Computes the k-mer hashes that pass the filter, and sorts them so that the k-mer counts are the run lengths.
+	 * 
+	 * @return the number of valid k-mers at the start of kmerHashes.
+	 */
+	protected final static int computeSortedKmerHashes(CharSequence seq, int nGramSize, FrequencyCounts kmerFilter, boolean doReverseCompliment,
+			KmerHashMode hashMode, long[] kmerHashes) throws ZeroNGramsFoundException
+	{
+		final int numberNGrams = seq.length() - nGramSize + 1;
+		
+		if (numberNGrams < 1)
+			throw new ZeroNGramsFoundException("N-gram size bigger than string length.", seq.toString());
+		
+		// get the kmer hashes
+		HashUtils.computeSequenceHashesLong(seq, nGramSize, 0, doReverseCompliment, hashMode, kmerHashes);
+		
+		//do not add unique kmers to the sketch
+		int numberKept = 0;
+		for (int iter=0; iter<numberNGrams; iter++)
+		{
+			long kmer = kmerHashes[iter];
+			if (kmerFilter==null || kmerFilter.keepKmer(kmer))
+				kmerHashes[numberKept++] = kmer;
+		}
+		
+		//make sure don't create a zero value
+		if (numberKept==0)
+			throw new ZeroNGramsFoundException("Found zero unfiltered n-grams in the string.", seq.toString());
+		
+		Arrays.sort(kmerHashes, 0, numberKept);
+		
+		return numberKept;
+	}
+	
+	protected final static int kmerWeight(long key, int count, FrequencyCounts kmerFilter, double repeatWeight)
+	{
+		int weight = count;
+		
+		//original version of MHAP
+		if (repeatWeight<0.0)
+		{
+			weight = 1;
+		
+			if (kmerFilter!=null && kmerFilter.isPopular(key))
+				weight = 0;
+		}	
+		else
+		if (kmerFilter!=null)
+		{
+			if (repeatWeight>=0.0 && repeatWeight<1.0)
+			{
+				//compute the td part
+				double tf = (double)kmerFilter.tfWeight(weight);
+				
+				//compute the idf part, 1-3
+				double idf = kmerFilter.scaledIdf(key);
+				
+				//compute td-idf
+				weight = (int)Math.round(tf*idf);
+				if (weight<1)
+					weight = 1;
+			}
+		}
+		//keep the tf weight otherwise
+		
+		return weight;
+	}
+	
+	protected final static int[] readMinHashArray(DataInputStream input) throws IOException
+	{
+		try
+		{
+			//store the size
+			int hashNum = input.readInt();
+			
+			//store the array
+			int[] minHashes = new int[hashNum];
+			for (int hash=0; hash<hashNum; hash++)
+			{
+				minHashes[hash] = input.readInt();
+			}
+			
+			return minHashes;
+		}
+		catch (EOFException e)
+		{
+			return null;
+		}
+	}
+	
+	/**
+	 * Reads the array written by getAsByteArray() at the current position of the buffer, with a single bulk read.
+	 */
+	protected final static int[] readMinHashArray(ByteBuffer input)
+	{
+		int hashNum = input.getInt();
+		
+		int[] minHashes = new int[hashNum];
+		input.asIntBuffer().get(minHashes);
+		input.position(input.position()+4*hashNum);
+		
+		return minHashes;
+	}
+	
+	protected final static long splitMix64(long z)
+	{
+		z = (z^(z>>>30))*0xbf58476d1ce4e5b9L;
+		z = (z^(z>>>27))*0x94d049bb133111ebL;
+		
+		return z^(z>>>31);
+	}
+	
+	protected AbstractMinHashSketch(int[] minHashes)
+	{
+		this.minHashes = minHashes;
+	}
+
+	public final byte[] getAsByteArray()
+	{
+		ByteBuffer bb = ByteBuffer.allocate(4*(1+this.minHashes.length));
+		
+		//store the size
+		bb.putInt(this.minHashes.length);
+		
+		//store the array
+		for (int hash=0; hash<this.minHashes.length; hash++)
+			bb.putInt(this.minHashes[hash]); 
+    
+		return bb.array();
+	}
+	
+	public final int[] getMinHashArray()
+	{
+		return this.minHashes;
+	}
+
+	public final double jaccard(T h)
+	{
+		int count = 0;
+		int size = this.minHashes.length;
+		
+		if (h.minHashes.length!=size)
+			throw new SketchRuntimeException("MinHashes must be of same length in order to be compared.");
+		
+		for (int iter=0; iter<size; iter++)
+		{
+			if (this.minHashes[iter]==h.minHashes[iter])
+				count++;
+		}
+		
+		return (double)count/(double)size;
+	}
+	
+	public final int numHashes()
+	{
+		return this.minHashes.length;
+	}
+	
+	@Override
+	public double similarity(T sh)
+	{
+		return jaccard(sh);
+	}
+}
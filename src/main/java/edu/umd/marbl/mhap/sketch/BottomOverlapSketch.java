@@ -29,65 +29,63 @@
  */
 package edu.umd.marbl.mhap.sketch;
 
-import it.unimi.dsi.fastutil.ints.IntArrays;
-
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import edu.umd.marbl.mhap.impl.OverlapInfo;
+import edu.umd.marbl.mhap.sketch.HashUtils.KmerHashMode;
 import edu.umd.marbl.mhap.utils.Utils;
 
 public final class BottomOverlapSketch
 {
-	private final static class EdgeData
-	{
-		public final int a1;
-		public final int a2;
-		public final int b1;
-		public final int b2;
-		public final int count;
-		
-		public EdgeData(int a1, int a2, int b1, int b2, int count)
-		{
-			this.a1 = a1;
-			this.a2 = a2;
-			this.b1 = b1;
-			this.b2 = b2;
-			this.count = count;
-		}
-	}
-	
+	/**
+	 * Working memory of the second stage filter. Can be reused for any number of sketch pairs, see
+	 * {@link BottomOverlapSketch#getOverlapInfo(BottomOverlapSketch, double, MatchData)}.
+	 */
 	public final static class MatchData
 	{
 		private int absMaxShiftInOverlap;
 		private int count; 
-		private final double maxShiftPercent;
+		private int edgeA1;
+		private int edgeA2;
+		private int edgeB1;
+		private int edgeB2;
+		private int edgeCount;
+		private double maxShiftPercent;
 		private int medianShift;
 		private boolean needRecompute;
 		public int[] pos1Index;
 		public int[] pos2Index;
 		public int[] posShift;
-		private final int seqLength1;
-		private final int seqLength2;
+		private int seqLength1;
+		private int seqLength2;
+		private int[] shiftScratch;
+
+		public MatchData()
+		{
+			this.posShift = new int[64];
+			this.pos1Index = new int[this.posShift.length];
+			this.pos2Index = new int[this.posShift.length];
+			this.shiftScratch = new int[this.posShift.length];
+			reset();
+		}
 
 		public MatchData(BottomOverlapSketch o1, BottomOverlapSketch o2, double maxShiftPercent)
 		{
-			this.seqLength1 = o1.getSequenceLength();
-			this.seqLength2 = o2.getSequenceLength();
-			
 			this.posShift = new int[Math.max(o1.size(), o2.size())/4+1];
-			this.pos1Index = new int[posShift.length];
-			this.pos2Index = new int[posShift.length];
+			this.pos1Index = new int[this.posShift.length];
+			this.pos2Index = new int[this.posShift.length];
+			this.shiftScratch = new int[this.posShift.length];
 			
-			this.maxShiftPercent = maxShiftPercent;
-			reset();
+			reset(o1, o2, maxShiftPercent);
 		}
 		
-		public EdgeData computeEdges()
+		public boolean computeEdges()
 		{
 			// storage for edge computation
 			int leftEdge1 = Integer.MAX_VALUE;
@@ -123,7 +121,7 @@ public final class BottomOverlapSketch
 			}
 
 			if (validCount < 3)
-				return null;
+				return false;
 
 			// get edge info uniformly minimum variance unbiased (UMVU) estimators
 			// a = (n*a-b)/(n-1)
@@ -133,7 +131,13 @@ public final class BottomOverlapSketch
 			int b1 = Math.max(0, (int) Math.round((double)(validCount * leftEdge2 - rightEdge2) / (double) (validCount - 1)));
 			int b2 = Math.min(this.seqLength2, (int) Math.round((double)(validCount * rightEdge2 - leftEdge2) / (double) (validCount - 1)));
 			
-			return new EdgeData(a1, a2, b1, b2, validCount);
+			this.edgeA1 = a1;
+			this.edgeA2 = a2;
+			this.edgeB1 = b1;
+			this.edgeB2 = b2;
+			this.edgeCount = validCount;
+			
+			return true;
 		}
 		
 		public int getAbsMaxShift()
@@ -194,7 +198,11 @@ public final class BottomOverlapSketch
 			{
 				if (this.count>0)
 				{
-					this.medianShift = Utils.quickSelect(Arrays.copyOf(this.posShift, this.count), this.count / 2, this.count);
+					if (this.shiftScratch.length < this.count)
+						this.shiftScratch = new int[this.posShift.length];
+					System.arraycopy(this.posShift, 0, this.shiftScratch, 0, this.count);
+					
+					this.medianShift = Utils.quickSelect(this.shiftScratch, this.count / 2, this.count);
 					
 					// get the actual overlap size
 					int leftPosition = Math.max(0, -this.medianShift);
@@ -237,6 +245,14 @@ public final class BottomOverlapSketch
 			this.count = 0;
 			this.needRecompute = true;
 		}
+		
+		public void reset(BottomOverlapSketch o1, BottomOverlapSketch o2, double maxShiftPercent)
+		{
+			this.seqLength1 = o1.getSequenceLength();
+			this.seqLength2 = o2.getSequenceLength();
+			this.maxShiftPercent = maxShiftPercent;
+			reset();
+		}
 
 		public int size()
 		{
@@ -297,36 +313,49 @@ public final class BottomOverlapSketch
 		}
 	}
 	
+	private final static class SketchScratch
+	{
+		private int[] hashes = new int[0];
+		private long[] packed = new long[0];
+	}
+	
+	private final static ThreadLocal<SketchScratch> SKETCH_SCRATCH = new ThreadLocal<SketchScratch>()
+	{
+		@Override
+		protected SketchScratch initialValue()
+		{
+			return new SketchScratch();
+		}
+	};
+	
+	private final int[] hashes;
 	private final int kmerSize;
-	private final int[][] orderedHashes;
+	private final int[] positions;
 	private final int seqLength;
 
-	private static double computeKBottomSketchJaccard(int[][] seq1Hashes, int[][] seq2Hashes, int medianShift, int absMaxShiftInOverlap, int a1, int a2, int b1, int b2)
+	private static double computeKBottomSketchJaccard(BottomOverlapSketch seq1, BottomOverlapSketch seq2, int medianShift, int absMaxShiftInOverlap, int a1, int a2, int b1, int b2)
 	{
+		final int[] hashes1 = seq1.hashes;
+		final int[] positions1 = seq1.positions;
+		final int[] hashes2 = seq2.hashes;
+		final int[] positions2 = seq2.positions;
+		
 		//get k for first string
 		int s1 = 0;
-		int[][] array1 = new int[seq1Hashes.length][];
-		for (int i=0; i<seq1Hashes.length; i++)
+		for (int i=0; i<positions1.length; i++)
 		{
-			int pos = seq1Hashes[i][1];
+			int pos = positions1[i];
 			if (pos >= a1 && pos <= a2)
-			{
-				array1[s1] = seq1Hashes[i];
 				s1++;
-			}
 		}
 		
 		//get k for second string
 		int s2 = 0;
-		int[][] array2 = new int[seq2Hashes.length][];
-		for (int j=0; j<seq2Hashes.length; j++)
+		for (int j=0; j<positions2.length; j++)
 		{
-			int pos = seq2Hashes[j][1];
+			int pos = positions2[j];
 			if (pos >= b1 && pos <= b2)
-			{
-				array2[s2] = seq2Hashes[j];
 				s2++;
-			}
 		}
 		
 		//compute k
@@ -336,23 +365,23 @@ public final class BottomOverlapSketch
 		if (k==0)
 			return 0;
 			
-		//perform the k-bottom count
-		int i = 0;
-		int j = 0;
+		//perform the k-bottom count, skipping the hashes outside of the overlap
+		int i = nextInRange(positions1, 0, a1, a2);
+		int j = nextInRange(positions2, 0, b1, b2);
 		int intersectCount = 0;
 		int unionCount = 0;
 		while (unionCount<k)
 		{
-			if (array1[i][0]<array2[j][0])
-				i++;
+			if (hashes1[i]<hashes2[j])
+				i = nextInRange(positions1, i+1, a1, a2);
 			else
-			if (array1[i][0]>array2[j][0])
-				j++;
+			if (hashes1[i]>hashes2[j])
+				j = nextInRange(positions2, j+1, b1, b2);
 			else
 			{
 				intersectCount++;
-				i++;
-				j++;
+				i = nextInRange(positions1, i+1, a1, a2);
+				j = nextInRange(positions2, j+1, b1, b2);
 			}
 			
 			unionCount++;
@@ -371,15 +400,16 @@ public final class BottomOverlapSketch
 			int kmerSize = input.readInt();
 			int hashLength = input.readInt();
 
-			int[][] orderedHashes = new int[hashLength][2];
+			int[] hashes = new int[hashLength];
+			int[] positions = new int[hashLength];
 
 			for (int iter = 0; iter < hashLength; iter++)
 			{
-				orderedHashes[iter][0] = input.readInt();
-				orderedHashes[iter][1] = input.readInt();
+				hashes[iter] = input.readInt();
+				positions[iter] = input.readInt();
 			}
 
-			return new BottomOverlapSketch(seqLength, kmerSize, orderedHashes);
+			return new BottomOverlapSketch(seqLength, kmerSize, hashes, positions);
 
 		}
 		catch (EOFException e)
@@ -388,18 +418,54 @@ public final class BottomOverlapSketch
 		}
 	}
 	
+	public final static BottomOverlapSketch fromByteBuffer(ByteBuffer input)
+	{
+		int seqLength = input.getInt();
+		int kmerSize = input.getInt();
+		int hashLength = input.getInt();
+
+		// pairs are interleaved, read them in bulk and split
+		int[] pairs = new int[2*hashLength];
+		input.asIntBuffer().get(pairs);
+		input.position(input.position()+8*hashLength);
+		
+		int[] hashes = new int[hashLength];
+		int[] positions = new int[hashLength];
+		for (int iter = 0; iter < hashLength; iter++)
+		{
+			hashes[iter] = pairs[2*iter];
+			positions[iter] = pairs[2*iter+1];
+		}
+
+		return new BottomOverlapSketch(seqLength, kmerSize, hashes, positions);
+	}
+	
 	public static double jaccardToIdentity(double score, int kmerSize)
 	{
 		double d = -1.0/(double)kmerSize*Math.log(2.0*score/(1.0+score));
 		return Math.exp(-d);
 	}
 
+	private static int nextInRange(int[] positions, int index, int lower, int upper)
+	{
+		while (index<positions.length && (positions[index]<lower || positions[index]>upper))
+			index++;
+		
+		return index;
+	}
+
 	private static void recordMatchingKmers(
 			MatchData matchData, 
-			int[][] seq1KmerHashes, 
-			int[][] seq2KmerHashes,
+			BottomOverlapSketch seq1, 
+			BottomOverlapSketch seq2,
 			int repeat)
 	{
+		final int[] seq1Hashes = seq1.hashes;
+		final int[] seq1Positions = seq1.positions;
+		final int[] seq2Hashes = seq2.hashes;
+		final int[] seq2Positions = seq2.positions;
+		
+
 		// init the loop storage
 		int hash1;
 		int hash2;
@@ -424,16 +490,16 @@ public final class BottomOverlapSketch
 		// perform merge operation to get the shift and the kmer count
 		while (true)
 		{
-			if (i1>=seq1KmerHashes.length)
+			if (i1>=seq1Hashes.length)
 				break;
-			if (i2>=seq2KmerHashes.length)
+			if (i2>=seq2Hashes.length)
 				break;
 			
 			// get the values in the array
-			hash1 = seq1KmerHashes[i1][0];
-			pos1 = seq1KmerHashes[i1][1];
-			hash2 = seq2KmerHashes[i2][0];
-			pos2 = seq2KmerHashes[i2][1];
+			hash1 = seq1Hashes[i1];
+			pos1 = seq1Positions[i1];
+			hash2 = seq2Hashes[i2];
+			pos2 = seq2Positions[i2];
 
 			if (hash1 < hash2 || pos1 < valid1Lower || pos1 >= valid1Upper)
 				i1++;
@@ -459,47 +525,47 @@ public final class BottomOverlapSketch
 					//move the index to last point of same hash
 					int i1Last = i1;
 					int i1Try = i1+1;
-					if (i1Try<seq1KmerHashes.length)
+					if (i1Try<seq1Hashes.length)
 					{
-						int hash1Try = seq1KmerHashes[i1Try][0];
-						int pos1Try = seq1KmerHashes[i1Try][1];
+						int hash1Try = seq1Hashes[i1Try];
+						int pos1Try = seq1Positions[i1Try];
 						while((hash1Try == hash1 && pos1Try >= valid1Lower && pos1Try < valid1Upper))
 						{
 							i1Last = i1Try;
 
 							i1Try++;
-							if (i1Try>=seq1KmerHashes.length)
+							if (i1Try>=seq1Hashes.length)
 								break;
 							
-							hash1Try = seq1KmerHashes[i1Try][0];
-							pos1Try = seq1KmerHashes[i1Try][1];
+							hash1Try = seq1Hashes[i1Try];
+							pos1Try = seq1Positions[i1Try];
 						}
 					}
 
 					//move the index to last point of same hash
 					int i2Last = i2;
 					int i2Try = i2+1;
-					if (i2Try<seq2KmerHashes.length)
+					if (i2Try<seq2Hashes.length)
 					{
-						int hash2Try = seq2KmerHashes[i2Try][0];
-						int pos2Try = seq2KmerHashes[i2Try][1];
+						int hash2Try = seq2Hashes[i2Try];
+						int pos2Try = seq2Positions[i2Try];
 						while((hash2Try == hash2 && pos2Try >= valid2Lower && pos2Try < valid2Upper))
 						{
 							i2Last = i2Try;
 							i2Try++;
-							if (i2Try>=seq2KmerHashes.length)
+							if (i2Try>=seq2Hashes.length)
 								break;
 
-							hash2Try = seq2KmerHashes[i2Try][0];
-							pos2Try = seq2KmerHashes[i2Try][1];
+							hash2Try = seq2Hashes[i2Try];
+							pos2Try = seq2Positions[i2Try];
 						}
 					}
 
 					//store the match and update the counters
 					if (i1!=i1Last || i2!=i2Last)
 					{		
-						int pos1New =  seq1KmerHashes[i1Last][1];
-						int pos2New =  seq2KmerHashes[i2Last][1];
+						int pos1New =  seq1Positions[i1Last];
+						int pos2New =  seq2Positions[i2Last];
 						matchData.recordMatch(pos1New, pos2New, pos2New-pos1New);
 						i1 = i1Last+1;
 						i2 = i2Last+1;
@@ -515,46 +581,60 @@ public final class BottomOverlapSketch
 		}
 	}
 
-	private BottomOverlapSketch(int seqLength, int kmerSize, int[][] orderedHashes)
+	private BottomOverlapSketch(int seqLength, int kmerSize, int[] hashes, int[] positions)
 	{
 		this.seqLength = seqLength;
-		this.orderedHashes = orderedHashes;
+		this.hashes = hashes;
+		this.positions = positions;
 		this.kmerSize = kmerSize;
 	}
 
-	public BottomOverlapSketch(String seq, int kmerSize, int sketchSize, boolean doReverseCompliment) throws ZeroNGramsFoundException
+	public BottomOverlapSketch(CharSequence seq, int kmerSize, int sketchSize, boolean doReverseCompliment) throws ZeroNGramsFoundException
+	{
+		this(seq, kmerSize, sketchSize, doReverseCompliment, KmerHashMode.MURMUR);
+	}
+
+	public BottomOverlapSketch(CharSequence seq, int kmerSize, int sketchSize, boolean doReverseCompliment, KmerHashMode hashMode) throws ZeroNGramsFoundException
 	{
 		this.kmerSize = kmerSize;
 		this.seqLength = seq.length() - kmerSize + 1;
 		
 		if (this.seqLength<=0)
-			throw new ZeroNGramsFoundException("Sequence length must be greater or equal to n-gram size "+kmerSize+".", seq);
+			throw new ZeroNGramsFoundException("Sequence length must be greater or equal to n-gram size "+kmerSize+".", seq.toString());
+		
+		SketchScratch scratch = SKETCH_SCRATCH.get();
+		if (scratch.hashes.length<this.seqLength)
+		{
+			scratch.hashes = new int[Math.max(this.seqLength, scratch.hashes.length+scratch.hashes.length/2)];
+			scratch.packed = new long[scratch.hashes.length];
+		}
 		
 		// compute just direct hash of sequence
-		int[] hashes = HashUtils.computeSequenceHashes(seq, kmerSize, doReverseCompliment);
-
-		int[] perm = new int[hashes.length];
+		int[] hashes = HashUtils.computeSequenceHashes(seq, kmerSize, doReverseCompliment, hashMode, scratch.hashes);
 
-		//init the array
-		for (int iter = 0; iter < hashes.length; iter++)
-			perm[iter] = iter;
-		
-		//sort the array
-		IntArrays.radixSortIndirect(perm, hashes, true);
+		// pack as (hash, position), so the order is by hash and then by position
+		long[] packed = scratch.packed;
+		for (int iter = 0; iter < this.seqLength; iter++)
+			packed[iter] = ((long)hashes[iter]<<32) | (long)iter;
 		
 		//sketchSize = (int)Math.round(0.25*(double)this.seqLength);
 
 		//find the largest storage value
-		int k = Math.min(sketchSize, hashes.length);
+		int k = Math.min(sketchSize, this.seqLength);
+		
+		//move the k smallest to the front, and sort only those
+		if (k<this.seqLength)
+			Utils.quickSelect(packed, k, this.seqLength);
+		Arrays.sort(packed, 0, k);
 		
 		//allocate the memory
-		this.orderedHashes = new int[k][2];
+		this.hashes = new int[k];
+		this.positions = new int[k];
 
-		for (int iter = 0; iter < this.orderedHashes.length; iter++)
+		for (int iter = 0; iter < k; iter++)
 		{
-			int index = perm[iter];
-			this.orderedHashes[iter][0] = hashes[index];
-			this.orderedHashes[iter][1] = index;
+			this.hashes[iter] = (int)(packed[iter]>>32);
+			this.positions[iter] = (int)packed[iter];
 		}
 	}
 
@@ -569,10 +649,10 @@ public final class BottomOverlapSketch
 			dos.writeInt(this.kmerSize);
 			dos.writeInt(size());
 			
-			for (int iter = 0; iter < this.orderedHashes.length; iter++)
+			for (int iter = 0; iter < this.hashes.length; iter++)
 			{
-				dos.writeInt(this.orderedHashes[iter][0]);
-				dos.writeInt(this.orderedHashes[iter][1]);
+				dos.writeInt(this.hashes[iter]);
+				dos.writeInt(this.positions[iter]);
 			}
 
 			dos.flush();
@@ -586,25 +666,34 @@ public final class BottomOverlapSketch
 	
 	public int getHash(int index)
 	{
-		return this.orderedHashes[index][0];
+		return this.hashes[index];
 	}
 	
 	public OverlapInfo getOverlapInfo(BottomOverlapSketch toSequence, double maxShiftPercent)
+	{
+		//allocate the memory for the search
+		return getOverlapInfo(toSequence, maxShiftPercent, new MatchData(this, toSequence, maxShiftPercent));
+	}
+	
+	/**
+	 * Same as {@link #getOverlapInfo(BottomOverlapSketch, double)}, but uses the given working memory instead of
+	 * allocating it. Only the returned OverlapInfo is allocated, and only when there is an overlap.
+	 */
+	public OverlapInfo getOverlapInfo(BottomOverlapSketch toSequence, double maxShiftPercent, MatchData matchData)
 	{
 		if (this.kmerSize!=toSequence.kmerSize)
 			throw new SketchRuntimeException("Sketch k-mer size does not match between the two sequences.");
 		
-		//allocate the memory for the search
-		MatchData matchData = new MatchData(this, toSequence, maxShiftPercent);
+		matchData.reset(this, toSequence, maxShiftPercent);
 
 		//get the initial matches
-		recordMatchingKmers(matchData, this.orderedHashes, toSequence.orderedHashes, 0);
+		recordMatchingKmers(matchData, this, toSequence, 0);
 		//System.out.println(matchData.matchesToString());
 		if (matchData.isEmpty())
 			return OverlapInfo.EMPTY;
 
 		//get matches again, but now in a better region
-		recordMatchingKmers(matchData, this.orderedHashes, toSequence.orderedHashes, 1);
+		recordMatchingKmers(matchData, this, toSequence, 1);
 
 		if (matchData.isEmpty())
 			return OverlapInfo.EMPTY;
@@ -615,18 +704,16 @@ public final class BottomOverlapSketch
 			return OverlapInfo.EMPTY;
 
 		//get the edge data
-		EdgeData edgeData = matchData.computeEdges();
-		
-		if (edgeData==null)
+		if (!matchData.computeEdges())
 			return OverlapInfo.EMPTY;
 		
 		//compute the jaccard score using bottom-k sketching
-		double score = computeKBottomSketchJaccard(this.orderedHashes, toSequence.orderedHashes, matchData.getMedianShift(), matchData.getAbsMaxShift(), edgeData.a1, edgeData.a2, edgeData.b1, edgeData.b2);
+		double score = computeKBottomSketchJaccard(this, toSequence, matchData.getMedianShift(), matchData.getAbsMaxShift(), matchData.edgeA1, matchData.edgeA2, matchData.edgeB1, matchData.edgeB2);
 		score = jaccardToIdentity(score, this.kmerSize);
 		
-		double rawScore = (double)edgeData.count;
+		double rawScore = (double)matchData.edgeCount;
 		
-		return new OverlapInfo(score, rawScore, edgeData.a1, edgeData.a2, edgeData.b1, edgeData.b2);
+		return new OverlapInfo(score, rawScore, matchData.edgeA1, matchData.edgeA2, matchData.edgeB1, matchData.edgeB2);
 	}
 	
 	public int getSequenceLength()
@@ -636,6 +723,6 @@ public final class BottomOverlapSketch
 
 	public int size()
 	{
-		return this.orderedHashes.length;
+		return this.hashes.length;
 	}
 }
@@ -0,0 +1,371 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.sketch;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Hashing;
+
+import edu.umd.marbl.mhap.impl.MhapRuntimeException;
+import edu.umd.marbl.mhap.sketch.HashUtils.KmerHashMode;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.longs.AbstractLong2DoubleFunction;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+
+/**
+ * Binary k-mer filter, written with --compile-filter from a text filter file, and memory-mapped instead of parsed, so
+ * that it loads in milliseconds and concurrent runs share the page cache. The file has a header, an open-addressed
+ * (linear probing) table of the k-mer hashes, the fractions of the k-mers, quantized to floats, in the same slots, and
+ * the bits of the Guava bloom filter of all the k-mers, which are queried in place.
+ */
+public final class CompiledFilter extends AbstractLong2DoubleFunction
+{
+	/**
+	 * Read-only or writable view of a file that can be larger than a single mapping. Values never cross a segment,
+	 * since all sections are aligned to their value size.
+	 */
+	private final static class MappedFile
+	{
+		private final MappedByteBuffer[] segments;
+
+		private MappedFile(FileChannel channel, FileChannel.MapMode mode, long size) throws IOException
+		{
+			int numSegments = (int) ((size + SEGMENT_SIZE - 1L) >>> SEGMENT_SHIFT);
+			this.segments = new MappedByteBuffer[numSegments];
+			for (int iter = 0; iter < numSegments; iter++)
+			{
+				long start = (long) iter << SEGMENT_SHIFT;
+				this.segments[iter] = channel.map(mode, start, Math.min(SEGMENT_SIZE, size - start));
+			}
+		}
+
+		private float getFloat(long position)
+		{
+			return this.segments[(int) (position >>> SEGMENT_SHIFT)].getFloat((int) (position & SEGMENT_MASK));
+		}
+
+		private long getLong(long position)
+		{
+			return this.segments[(int) (position >>> SEGMENT_SHIFT)].getLong((int) (position & SEGMENT_MASK));
+		}
+
+		private void putFloat(long position, float value)
+		{
+			this.segments[(int) (position >>> SEGMENT_SHIFT)].putFloat((int) (position & SEGMENT_MASK), value);
+		}
+
+		private void putLong(long position, long value)
+		{
+			this.segments[(int) (position >>> SEGMENT_SHIFT)].putLong((int) (position & SEGMENT_MASK), value);
+		}
+	}
+
+	private final static int MAGIC = 0x4d484b46; // "MHKF"
+	private final static int SEGMENT_SHIFT = 30;
+	private final static long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+	private final static long SEGMENT_MASK = SEGMENT_SIZE - 1L;
+	private static final long serialVersionUID = 2606187146089564302L;
+	private final static int VERSION = 1;
+
+	// the ordinal of Guava's BloomFilterStrategies.MURMUR128_MITZ_64, used by BloomFilter.create()
+	private final static int BLOOM_STRATEGY = 1;
+
+	private final long bloomBitSize;
+	private final long bloomOffset;
+	private final int bloomNumHashes;
+	private final boolean doReverseCompliment;
+	private final double filterCutoff;
+	private final KmerHashMode hashMode;
+	private final boolean hasZeroKey;
+	private final long keysOffset;
+	private final IntOpenHashSet kmerSizes;
+	private final transient MappedFile mapped;
+	private final long mask;
+	private final double maxValue;
+	private final long numEntries;
+	private final long valuesOffset;
+	private final float zeroValue;
+
+	private static long slot(long key, long mask)
+	{
+		return HashUtils.fmix64(key) & mask;
+	}
+
+	/**
+	 * @return true if the file starts with the compiled filter magic number.
+	 */
+	public static boolean isCompiled(File file) throws IOException
+	{
+		if (!file.isFile() || file.length() < 4L)
+			return false;
+
+		try (RandomAccessFile input = new RandomAccessFile(file, "r"))
+		{
+			return input.readInt() == MAGIC;
+		}
+	}
+
+	/**
+	 * Writes the compiled filter. The table is filled in a writable mapping of the file, so its size is not limited by
+	 * the heap.
+	 */
+	static void write(File file, Long2DoubleOpenHashMap validMap, BloomFilter<Long> validMers, Collection<Integer> kmerSizes, double filterCutoff,
+			double maxValue, boolean doReverseCompliment, KmerHashMode hashMode) throws IOException
+	{
+		// half full, so that the lookups of missing k-mers, which are most of them, stop quickly
+		long capacity = 2L;
+		while (capacity < 2L * validMap.size())
+			capacity <<= 1;
+		final long mask = capacity - 1L;
+
+		boolean hasZeroKey = validMap.containsKey(0L);
+		float zeroValue = hasZeroKey ? (float) validMap.get(0L) : 0.0f;
+
+		ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+		try (DataOutputStream header = new DataOutputStream(headerBytes))
+		{
+			header.writeInt(MAGIC);
+			header.writeInt(VERSION);
+			header.writeUTF(hashMode.name());
+			header.writeBoolean(doReverseCompliment);
+			header.writeDouble(filterCutoff);
+			header.writeDouble(maxValue);
+			header.writeInt(kmerSizes.size());
+			for (int size : kmerSizes)
+				header.writeInt(size);
+			header.writeLong(validMap.size());
+			header.writeBoolean(hasZeroKey);
+			header.writeFloat(zeroValue);
+			header.writeLong(capacity);
+		}
+
+		final long keysOffset = (headerBytes.size() + 7L) & ~7L;
+		final long valuesOffset = keysOffset + 8L * capacity;
+		final long bloomOffset = valuesOffset + 4L * capacity;
+
+		try (RandomAccessFile output = new RandomAccessFile(file, "rw"))
+		{
+			output.setLength(0L);
+			output.write(headerBytes.toByteArray());
+			output.setLength(bloomOffset);
+
+			FileChannel channel = output.getChannel();
+			MappedFile mapped = new MappedFile(channel, FileChannel.MapMode.READ_WRITE, bloomOffset);
+
+			ObjectIterator<Long2DoubleMap.Entry> iter = validMap.long2DoubleEntrySet().fastIterator();
+			while (iter.hasNext())
+			{
+				Long2DoubleMap.Entry entry = iter.next();
+				long key = entry.getLongKey();
+				if (key == 0L)
+					continue;
+
+				long slot = slot(key, mask);
+				while (mapped.getLong(keysOffset + 8L * slot) != 0L)
+					slot = (slot + 1L) & mask;
+
+				mapped.putLong(keysOffset + 8L * slot, key);
+				mapped.putFloat(valuesOffset + 4L * slot, (float) entry.getDoubleValue());
+			}
+
+			for (MappedByteBuffer segment : mapped.segments)
+				segment.force();
+
+			// two bytes of padding, so the bit array after the 6 byte bloom header is aligned
+			channel.position(bloomOffset);
+			OutputStream bloom = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 20);
+			bloom.write(new byte[2]);
+			validMers.writeTo(bloom);
+			bloom.flush();
+		}
+	}
+
+	public CompiledFilter(File file) throws IOException
+	{
+		final long size;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			size = channel.size();
+			this.mapped = new MappedFile(channel, FileChannel.MapMode.READ_ONLY, size);
+		}
+
+		ByteBuffer header = this.mapped.segments.length > 0 ? this.mapped.segments[0].duplicate() : ByteBuffer.allocate(0);
+		try
+		{
+			if (header.getInt() != MAGIC)
+				throw new MhapRuntimeException("File " + file + " is not a compiled k-mer filter.");
+			int version = header.getInt();
+			if (version != VERSION)
+				throw new MhapRuntimeException("Compiled k-mer filter version " + version + " is not supported, recompile it with --compile-filter.");
+
+			byte[] name = new byte[header.getShort() & 0xffff];
+			header.get(name);
+			this.hashMode = KmerHashMode.fromString(new String(name, StandardCharsets.UTF_8));
+			this.doReverseCompliment = header.get() != 0;
+			this.filterCutoff = header.getDouble();
+			this.maxValue = header.getDouble();
+
+			int numSizes = header.getInt();
+			this.kmerSizes = new IntOpenHashSet(numSizes);
+			for (int iter = 0; iter < numSizes; iter++)
+				this.kmerSizes.add(header.getInt());
+
+			this.numEntries = header.getLong();
+			this.hasZeroKey = header.get() != 0;
+			this.zeroValue = header.getFloat();
+			long capacity = header.getLong();
+			this.mask = capacity - 1L;
+
+			this.keysOffset = (header.position() + 7L) & ~7L;
+			this.valuesOffset = this.keysOffset + 8L * capacity;
+			this.bloomOffset = this.valuesOffset + 4L * capacity;
+
+			ByteBuffer bloomHeader = this.mapped.segments[(int) (this.bloomOffset >>> SEGMENT_SHIFT)].duplicate();
+			bloomHeader.position((int) (this.bloomOffset & SEGMENT_MASK) + 2);
+			int strategy = bloomHeader.get();
+			this.bloomNumHashes = bloomHeader.get() & 0xff;
+			this.bloomBitSize = 64L * bloomHeader.getInt();
+
+			if (strategy != BLOOM_STRATEGY)
+				throw new MhapRuntimeException("Unknown bloom filter strategy " + strategy + " in compiled k-mer filter.");
+			if (size < this.bloomOffset + 8L + this.bloomBitSize / 8L)
+				throw new MhapRuntimeException("Compiled k-mer filter " + file + " is truncated or corrupted.");
+		}
+		catch (RuntimeException e)
+		{
+			if (e instanceof MhapRuntimeException)
+				throw e;
+
+			throw new MhapRuntimeException("Compiled k-mer filter " + file + " is truncated or corrupted.", e);
+		}
+	}
+
+	@Override
+	public boolean containsKey(long key)
+	{
+		if (key == 0L)
+			return this.hasZeroKey;
+
+		for (long slot = slot(key, this.mask);; slot = (slot + 1L) & this.mask)
+		{
+			long current = this.mapped.getLong(this.keysOffset + 8L * slot);
+			if (current == key)
+				return true;
+			if (current == 0L)
+				return false;
+		}
+	}
+
+	@Override
+	public double get(long key)
+	{
+		if (key == 0L)
+			return this.hasZeroKey ? this.zeroValue : this.defRetValue;
+
+		for (long slot = slot(key, this.mask);; slot = (slot + 1L) & this.mask)
+		{
+			long current = this.mapped.getLong(this.keysOffset + 8L * slot);
+			if (current == key)
+				return this.mapped.getFloat(this.valuesOffset + 4L * slot);
+			if (current == 0L)
+				return this.defRetValue;
+		}
+	}
+
+	public double getFilterCutoff()
+	{
+		return this.filterCutoff;
+	}
+
+	public KmerHashMode getHashMode()
+	{
+		return this.hashMode;
+	}
+
+	public IntOpenHashSet getKmerSizes()
+	{
+		return this.kmerSizes;
+	}
+
+	public double getMaxValue()
+	{
+		return this.maxValue;
+	}
+
+	public boolean isReverseCompliment()
+	{
+		return this.doReverseCompliment;
+	}
+
+	/**
+	 * Same result as BloomFilter.mightContain() of the filter that was compiled.
+	 */
+	public boolean mightContain(long key)
+	{
+		ByteBuffer bytes = ByteBuffer.wrap(Hashing.murmur3_128().hashLong(key).asBytes()).order(ByteOrder.LITTLE_ENDIAN);
+		long hash1 = bytes.getLong(0);
+		long hash2 = bytes.getLong(8);
+
+		final long bitsOffset = this.bloomOffset + 8L;
+		long combinedHash = hash1;
+		for (int iter = 0; iter < this.bloomNumHashes; iter++)
+		{
+			long index = (combinedHash & Long.MAX_VALUE) % this.bloomBitSize;
+			if ((this.mapped.getLong(bitsOffset + 8L * (index >>> 6)) & (1L << index)) == 0L)
+				return false;
+
+			combinedHash += hash2;
+		}
+
+		return true;
+	}
+
+	@Override
+	public int size()
+	{
+		return (int) Math.min(Integer.MAX_VALUE, this.numEntries);
+	}
+}
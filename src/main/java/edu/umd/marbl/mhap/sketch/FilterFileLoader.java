@@ -0,0 +1,472 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.sketch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.hash.BloomFilter;
+
+import edu.umd.marbl.mhap.impl.MhapRuntimeException;
+import edu.umd.marbl.mhap.sketch.HashUtils.KmerHashMode;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+
+/**
+ * Reads an uncompressed k-mer filter file by memory-mapping it and splitting it into byte ranges of whole lines, which
+ * are parsed in parallel. The k-mer and fraction columns are parsed directly from the mapped bytes, and each thread
+ * collects its entries in its own primitive map, which is merged into the shared map in batches.
+ */
+final class FilterFileLoader
+{
+	/**
+	 * Mutable view of a k-mer in the mapped file, so it can be hashed without creating a String.
+	 */
+	private final static class KmerView implements CharSequence
+	{
+		private ByteBuffer buffer;
+		private int length;
+		private int start;
+
+		@Override
+		public char charAt(int index)
+		{
+			return (char) (this.buffer.get(this.start + index) & 0xff);
+		}
+
+		@Override
+		public int length()
+		{
+			return this.length;
+		}
+
+		private void set(ByteBuffer buffer, int start, int length)
+		{
+			this.buffer = buffer;
+			this.start = start;
+			this.length = length;
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end)
+		{
+			return toString().subSequence(start, end);
+		}
+
+		@Override
+		public String toString()
+		{
+			byte[] bytes = new byte[this.length];
+			for (int iter = 0; iter < this.length; iter++)
+				bytes[iter] = this.buffer.get(this.start + iter);
+
+			return new String(bytes, StandardCharsets.ISO_8859_1);
+		}
+	}
+
+	private final class Worker
+	{
+		private final long[] bloomBatch = new long[BLOOM_BATCH_SIZE];
+		private int bloomBatchSize = 0;
+		private final long[] hash = new long[1];
+		private char[] kmer = new char[32];
+		private final IntOpenHashSet kmerSizes = new IntOpenHashSet();
+		private final Long2DoubleOpenHashMap localMap = new Long2DoubleOpenHashMap();
+		private double maxValue = Double.NEGATIVE_INFINITY;
+		private long numKmers = 0L;
+		private final KmerView view = new KmerView();
+
+		private void flush()
+		{
+			if (!this.localMap.isEmpty())
+			{
+				synchronized (FilterFileLoader.this.validMap)
+				{
+					ObjectIterator<Long2DoubleMap.Entry> iter = this.localMap.long2DoubleEntrySet().fastIterator();
+					while (iter.hasNext())
+					{
+						Long2DoubleMap.Entry entry = iter.next();
+						FilterFileLoader.this.validMap.put(entry.getLongKey(), entry.getDoubleValue());
+					}
+				}
+				this.localMap.clear();
+			}
+
+			if (this.bloomBatchSize > 0)
+			{
+				synchronized (FilterFileLoader.this.validMers)
+				{
+					for (int iter = 0; iter < this.bloomBatchSize; iter++)
+						FilterFileLoader.this.validMers.put(this.bloomBatch[iter]);
+				}
+				this.bloomBatchSize = 0;
+			}
+		}
+
+		private long hashKmer(ByteBuffer buffer, int start, int length)
+		{
+			this.view.set(buffer, start, length);
+
+			// same hash as HashUtils.computeSequenceHashesLong(kmer, kmer.length(), 0, ...)
+			if (FilterFileLoader.this.hashMode == KmerHashMode.ROLLING && RollingKmerHasher.canPack(length))
+			{
+				RollingKmerHasher.computeHashesLong(this.view, length, 0, FilterFileLoader.this.doReverseCompliment, this.hash);
+				return this.hash[0];
+			}
+
+			if (this.kmer.length < length)
+				this.kmer = new char[length];
+
+			return HashUtils.murmurKmerLong(this.view, 0, length, 0, FilterFileLoader.this.doReverseCompliment, this.kmer);
+		}
+
+		private void parse(ByteBuffer buffer)
+		{
+			final int limit = buffer.limit();
+			int pos = 0;
+			while (pos < limit)
+			{
+				// skip blank lines and leading whitespace
+				if (isWhitespace(buffer.get(pos)))
+				{
+					pos++;
+					continue;
+				}
+
+				int kmerStart = pos;
+				while (pos < limit && !isWhitespace(buffer.get(pos)))
+					pos++;
+				int kmerLength = pos - kmerStart;
+
+				while (pos < limit && isBlank(buffer.get(pos)))
+					pos++;
+
+				int valueStart = pos;
+				while (pos < limit && !isWhitespace(buffer.get(pos)))
+					pos++;
+				int valueLength = pos - valueStart;
+
+				// ignore any other columns
+				while (pos < limit && buffer.get(pos) != '\n')
+					pos++;
+
+				long hash = hashKmer(buffer, kmerStart, kmerLength);
+
+				this.kmerSizes.add(kmerLength);
+				this.numKmers++;
+
+				if (valueLength > 0)
+				{
+					double percent;
+					try
+					{
+						percent = parseDouble(buffer, valueStart, valueLength);
+					}
+					catch (NumberFormatException e)
+					{
+						System.err.println(e);
+						continue;
+					}
+
+					// if greater, add to hashset
+					if (percent >= FilterFileLoader.this.filterCutoff)
+					{
+						this.maxValue = Math.max(this.maxValue, percent);
+						this.localMap.put(hash, percent);
+					}
+				}
+
+				// store in the bloom filter
+				if (FilterFileLoader.this.validMers != null)
+				{
+					this.bloomBatch[this.bloomBatchSize++] = hash;
+					if (this.bloomBatchSize == BLOOM_BATCH_SIZE)
+						flush();
+				}
+			}
+
+			if (this.localMap.size() >= MAP_BATCH_SIZE)
+				flush();
+		}
+	}
+
+	private final static int BLOOM_BATCH_SIZE = 1 << 12;
+	private final static int MAP_BATCH_SIZE = 1 << 20;
+	private final static long MAX_RANGE_SIZE = 1L << 26;
+	private final static long MIN_RANGE_SIZE = 1L << 20;
+
+	private final static double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+			1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	private final boolean doReverseCompliment;
+	private final double filterCutoff;
+	private final KmerHashMode hashMode;
+	private final IntOpenHashSet kmerSizes;
+	private double maxValue;
+	private final Long2DoubleOpenHashMap validMap;
+	private final BloomFilter<Long> validMers;
+
+	private static boolean isBlank(byte c)
+	{
+		return c == ' ' || c == '\t' || c == '\r';
+	}
+
+	private static boolean isWhitespace(byte c)
+	{
+		return c == '\n' || isBlank(c);
+	}
+
+	private static long nextLineStart(FileChannel channel, long position, long size) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+		while (position < size)
+		{
+			buffer.clear();
+			int read = channel.read(buffer, position);
+			if (read <= 0)
+				break;
+
+			for (int iter = 0; iter < read; iter++)
+				if (buffer.get(iter) == '\n')
+					return position + iter + 1;
+
+			position += read;
+		}
+
+		return size;
+	}
+
+	/**
+	 * Same value as Double.parseDouble() of the characters. Plain decimals with up to 15 significant digits and small
+	 * exponents, which is what the filter files contain, are exactly representable as a long times or divided by a
+	 * power of ten, so the result is correctly rounded without creating a String. Anything else goes through
+	 * Double.parseDouble().
+	 */
+	static double parseDouble(ByteBuffer buffer, int start, int length)
+	{
+		int pos = start;
+		final int end = start + length;
+
+		boolean negative = false;
+		if (pos < end && (buffer.get(pos) == '-' || buffer.get(pos) == '+'))
+			negative = buffer.get(pos++) == '-';
+
+		long mantissa = 0L;
+		int exponent = 0;
+		int numDigits = 0;
+		boolean fraction = false;
+		boolean exact = true;
+		for (; pos < end; pos++)
+		{
+			byte c = buffer.get(pos);
+			if (c >= '0' && c <= '9')
+			{
+				numDigits++;
+				if (mantissa >= (1L << 53) / 10L)
+				{
+					exact = false;
+					break;
+				}
+
+				mantissa = mantissa * 10L + (c - '0');
+				if (fraction)
+					exponent--;
+			}
+			else
+			if (c == '.' && !fraction)
+				fraction = true;
+			else
+				break;
+		}
+
+		if (exact && numDigits > 0 && pos < end && (buffer.get(pos) == 'e' || buffer.get(pos) == 'E'))
+		{
+			pos++;
+			boolean negativeExponent = false;
+			if (pos < end && (buffer.get(pos) == '-' || buffer.get(pos) == '+'))
+				negativeExponent = buffer.get(pos++) == '-';
+
+			int value = 0;
+			int expDigits = 0;
+			for (; pos < end && buffer.get(pos) >= '0' && buffer.get(pos) <= '9' && value < 1000; pos++, expDigits++)
+				value = value * 10 + (buffer.get(pos) - '0');
+
+			if (expDigits == 0)
+				exact = false;
+
+			exponent += negativeExponent ? -value : value;
+		}
+
+		if (exact && numDigits > 0 && pos == end && exponent >= -22 && exponent <= 22)
+		{
+			double value = exponent >= 0 ? (double) mantissa * POWERS_OF_TEN[exponent] : (double) mantissa / POWERS_OF_TEN[-exponent];
+			return negative ? -value : value;
+		}
+
+		byte[] bytes = new byte[length];
+		for (int iter = 0; iter < length; iter++)
+			bytes[iter] = buffer.get(start + iter);
+
+		return Double.parseDouble(new String(bytes, StandardCharsets.ISO_8859_1));
+	}
+
+	FilterFileLoader(File file, double filterCutoff, int removeUnique, int numThreads, boolean doReverseCompliment, KmerHashMode hashMode) throws IOException
+	{
+		if (removeUnique<0 || removeUnique>2)
+			throw new MhapRuntimeException("Unknown removeUnique option "+removeUnique+".");
+
+		this.filterCutoff = filterCutoff;
+		this.doReverseCompliment = doReverseCompliment;
+		this.hashMode = hashMode;
+		this.kmerSizes = new IntOpenHashSet();
+		this.maxValue = Double.NEGATIVE_INFINITY;
+
+		long startTime = System.nanoTime();
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			final long size = channel.size();
+
+			// the first line has the sizes of the bloom filter and the filter set
+			final long headerEnd = nextLineStart(channel, 0L, size);
+			String header = null;
+			if (headerEnd > 0L)
+			{
+				ByteBuffer bytes = ByteBuffer.allocate((int) headerEnd);
+				while (bytes.hasRemaining() && channel.read(bytes, bytes.position()) > 0)
+					;
+				header = new String(bytes.array(), StandardCharsets.ISO_8859_1);
+			}
+
+			long[] sizes = FrequencyCounts.parseHeader(header);
+			this.validMap = FrequencyCounts.allocateMap(sizes[1]);
+
+			// if no nothing, no need to store the while list
+			if (removeUnique>0)
+				this.validMers = BloomFilter.create((value, sink) -> sink.putLong(value), sizes[0], 1.0e-5);
+			else
+				this.validMers = null;
+
+			// split into ranges of whole lines, several per thread so that they balance
+			final long rangeSize = Math.max(MIN_RANGE_SIZE, Math.min(MAX_RANGE_SIZE, (size - headerEnd) / (4L * numThreads)));
+			final List<long[]> ranges = new ArrayList<>();
+			for (long rangeStart = headerEnd; rangeStart < size;)
+			{
+				long rangeEnd = nextLineStart(channel, Math.min(size, rangeStart + rangeSize) - 1L, size);
+				if (rangeEnd - rangeStart > Integer.MAX_VALUE)
+					throw new MhapRuntimeException("K-mer filter file has a line longer than "+Integer.MAX_VALUE+" bytes.");
+
+				ranges.add(new long[] { rangeStart, rangeEnd });
+				rangeStart = rangeEnd;
+			}
+
+			final AtomicInteger nextRange = new AtomicInteger(0);
+			final ExecutorService execSvc = Executors.newFixedThreadPool(numThreads);
+			final List<Future<Worker>> futures = new ArrayList<>(numThreads);
+			try
+			{
+				for (int thread = 0; thread < numThreads; thread++)
+					futures.add(execSvc.submit(() ->
+					{
+						Worker worker = new Worker();
+						for (int index = nextRange.getAndIncrement(); index < ranges.size(); index = nextRange.getAndIncrement())
+						{
+							long[] range = ranges.get(index);
+							MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, range[0], range[1] - range[0]);
+							worker.parse(buffer);
+						}
+						worker.flush();
+
+						return worker;
+					}));
+
+				long numKmers = 0L;
+				for (Future<Worker> future : futures)
+				{
+					Worker worker = future.get();
+					this.kmerSizes.addAll(worker.kmerSizes);
+					this.maxValue = Math.max(this.maxValue, worker.maxValue);
+					numKmers += worker.numKmers;
+				}
+
+				double seconds = (System.nanoTime() - startTime) * 1.0e-9;
+				System.err.println("Parsed " + numKmers + " k-mers from " + ranges.size() + " ranges of the filter file in " + seconds + " s (" + (long) (numKmers / seconds) + " k-mers/s).");
+			}
+			catch (ExecutionException e)
+			{
+				throw new MhapRuntimeException("Could not parse k-mer filter file.", e.getCause());
+			}
+			catch (InterruptedException e)
+			{
+				throw new MhapRuntimeException("Unable to finish all tasks.", e);
+			}
+			finally
+			{
+				execSvc.shutdownNow();
+			}
+		}
+
+		// trim the hashtable to the right size
+		this.validMap.trim();
+	}
+
+	IntOpenHashSet getKmerSizes()
+	{
+		return this.kmerSizes;
+	}
+
+	double getMaxValue()
+	{
+		return this.maxValue;
+	}
+
+	Long2DoubleOpenHashMap getValidMap()
+	{
+		return this.validMap;
+	}
+
+	BloomFilter<Long> getValidMers()
+	{
+		return this.validMers;
+	}
+}
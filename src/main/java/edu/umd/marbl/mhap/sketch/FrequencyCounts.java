@@ -29,10 +29,10 @@
 package edu.umd.marbl.mhap.sketch;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -42,13 +42,18 @@ import java.util.concurrent.atomic.AtomicReference;
 import com.google.common.hash.BloomFilter;
 
 import edu.umd.marbl.mhap.impl.MhapRuntimeException;
+import edu.umd.marbl.mhap.sketch.HashUtils.KmerHashMode;
 import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.longs.Long2DoubleFunction;
 import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
 
 public final class FrequencyCounts
 {
+	private final CompiledFilter compiled;
+	private final boolean doReverseCompliment;
 	private final double filterCutoff;
-	private final Map<Long,Double> fractionCounts;
+	private final Long2DoubleFunction fractionCounts;
+	private final KmerHashMode hashMode;
 	private final Set<Integer> kmerSizes;
 	private final double maxIdfValue;
 	private final double maxValue;
@@ -61,6 +66,11 @@ public final class FrequencyCounts
 	private final BloomFilter<Long> validMers;
 	
 	public FrequencyCounts(BufferedReader bf, double filterCutoff, double offset, int removeUnique, boolean noTf, int numThreads, double range, boolean doReverseCompliment) throws IOException
+	{
+		this(bf, filterCutoff, offset, removeUnique, noTf, numThreads, range, doReverseCompliment, KmerHashMode.MURMUR);
+	}
+
+	public FrequencyCounts(BufferedReader bf, double filterCutoff, double offset, int removeUnique, boolean noTf, int numThreads, double range, boolean doReverseCompliment, KmerHashMode hashMode) throws IOException
 	{
 		//removeUnique = 0: do nothing extra to k-mers not specified in the file
 		//removeUnique = 1: remove k-mers not specified in the file from the sketch
@@ -87,61 +97,14 @@ public final class FrequencyCounts
 
 		//read in the first line to generate the bloom filter
 		String line = bf.readLine();
-		try
-		{
-			long sizeBloom;
-			long sizeRepeat;
-			if (line==null)
-			{
-				System.err.println("Warning, k-mer filter file is empty. Assuming zero entries.");
-				sizeBloom = sizeRepeat = 1L;
-			}
-			else
-			{
-				// we assume the line has two entries, the first is the size of the bloom filter, the second is the size of the filter set
-				String[] splitLine = line.trim().split("\\s+");
-				sizeBloom = Long.parseLong(splitLine[0]);
-				sizeRepeat = Long.parseLong(splitLine[1]);
-				System.err.println("Read in values for repeat " + sizeRepeat + " and " + sizeBloom);
-			
-				if (sizeBloom<0L || sizeRepeat <0L)
-					throw new MhapRuntimeException("K-mer filter file size line must have positive long value.");
-				else
-				if (sizeBloom==0L)
-				{
-					System.err.println("Warning, k-mer filter file has zero elements.");
-					sizeBloom = 1L;
-				}
-			}
-			
-			System.err.println("Initializing");
-			Long2DoubleOpenHashMap tempMap = null;
-			for (long i = sizeRepeat; i > 0; i /= 2) {
-				try {	
-					System.err.print("Trying size " + i);
-					tempMap = new Long2DoubleOpenHashMap((int)(i));
-					System.err.println(" and it was successfull");
-					break;
-				} catch (IllegalArgumentException e) {
-					System.err.println(" and it was too big, trying smaller");
-				}
-			}
-			if (tempMap == null)
-				validMap = new Long2DoubleOpenHashMap();
-			else
-				validMap = tempMap;
-			System.err.println("Initialized");
+		long[] sizes = parseHeader(line);
+		validMap = allocateMap(sizes[1]);
 
-			//if no nothing, no need to store the while list
-			if (removeUnique>0)
-				validMers = BloomFilter.create((value, sink) -> sink.putLong(value), sizeBloom, 1.0e-5);
-			else
-				validMers = null;
-		}
-		catch (Exception e)
-		{
-			throw new MhapRuntimeException("K-mer filter file first line must contain estimated number of k-mers in the file (long).");
-		}
+		//if no nothing, no need to store the while list
+		if (removeUnique>0)
+			validMers = BloomFilter.create((value, sink) -> sink.putLong(value), sizes[0], 1.0e-5);
+		else
+			validMers = null;
 		
 		final ThreadPoolExecutor executor = new ThreadPoolExecutor(numThreads, numThreads, 100L, TimeUnit.MILLISECONDS,
 				new LinkedBlockingQueue<Runnable>(10000), new ThreadPoolExecutor.CallerRunsPolicy());
@@ -166,7 +129,7 @@ public final class FrequencyCounts
 						this.kmerSizes.add(str[0].length());
 					}					
 					
-					long[] hash = HashUtils.computeSequenceHashesLong(str[0], str[0].length(), 0, doReverseCompliment);
+					long[] hash = HashUtils.computeSequenceHashesLong(str[0], str[0].length(), 0, doReverseCompliment, hashMode, new long[1]);
 					
 					if (str.length >= 2)
 					{
@@ -216,7 +179,11 @@ public final class FrequencyCounts
 		
 		//trim the hashtable to the right size
 		validMap.trim();
+		validMap.defaultReturnValue(Double.NaN);
 	
+		this.compiled = null;
+		this.doReverseCompliment = doReverseCompliment;
+		this.hashMode = hashMode;
 		this.validMers = validMers;
 		this.fractionCounts = validMap;
 		this.filterCutoff = filterCutoff;
@@ -228,10 +195,130 @@ public final class FrequencyCounts
 		this.maxIdfValue = idf(this.minValue);
 	}
 	
+	/**
+	 * Same as the reader constructor, but the uncompressed file is memory-mapped and parsed in parallel, see
+	 * FilterFileLoader.
+	 */
+	public FrequencyCounts(File file, double filterCutoff, double offset, int removeUnique, boolean noTf, int numThreads, double range, boolean doReverseCompliment, KmerHashMode hashMode) throws IOException
+	{
+		this(new FilterFileLoader(file, filterCutoff, removeUnique, numThreads, doReverseCompliment, hashMode), filterCutoff, offset, removeUnique, noTf, range, doReverseCompliment, hashMode);
+	}
+	
+	private FrequencyCounts(FilterFileLoader loader, double filterCutoff, double offset, int removeUnique, boolean noTf, double range, boolean doReverseCompliment, KmerHashMode hashMode)
+	{
+		this(loader.getValidMap(), loader.getValidMers(), null, loader.getKmerSizes(), loader.getMaxValue(), filterCutoff, offset, removeUnique, noTf, range, doReverseCompliment, hashMode);
+	}
+	
+	/**
+	 * Uses a filter compiled with writeCompiled(), which must have been compiled with the same filter cutoff, hash
+	 * mode and reverse compliment setting.
+	 */
+	public FrequencyCounts(CompiledFilter compiled, double filterCutoff, double offset, int removeUnique, boolean noTf, double range, boolean doReverseCompliment, KmerHashMode hashMode)
+	{
+		this(compiled, null, compiled, compiled.getKmerSizes(), compiled.getMaxValue(), filterCutoff, offset, removeUnique, noTf, range, doReverseCompliment, hashMode);
+		
+		if (compiled.getFilterCutoff()!=filterCutoff)
+			throw new MhapRuntimeException("Compiled k-mer filter was compiled with filter threshold "+compiled.getFilterCutoff()+", not "+filterCutoff+".");
+		if (compiled.getHashMode()!=hashMode)
+			throw new MhapRuntimeException("Compiled k-mer filter was compiled with hash mode "+compiled.getHashMode()+", not "+hashMode+".");
+		if (compiled.isReverseCompliment()!=doReverseCompliment)
+			throw new MhapRuntimeException("Compiled k-mer filter was compiled with a different reverse compliment (--no-rc) setting.");
+	}
+	
+	private FrequencyCounts(Long2DoubleFunction fractionCounts, BloomFilter<Long> validMers, CompiledFilter compiled, Set<Integer> kmerSizes, double maxValue,
+			double filterCutoff, double offset, int removeUnique, boolean noTf, double range, boolean doReverseCompliment, KmerHashMode hashMode)
+	{
+		if (removeUnique<0 || removeUnique>2)
+			throw new MhapRuntimeException("Unknown removeUnique option "+removeUnique+".");
+		if (offset<0.0 || offset>=1.0)
+			throw new MhapRuntimeException("Offset can only be between 0 and 1.0.");
+
+		fractionCounts.defaultReturnValue(Double.NaN);
+
+		this.compiled = compiled;
+		this.doReverseCompliment = doReverseCompliment;
+		this.hashMode = hashMode;
+		this.range = range;
+		this.removeUnique = removeUnique;
+		this.noTf = noTf;
+		this.kmerSizes = kmerSizes;
+		this.validMers = validMers;
+		this.fractionCounts = fractionCounts;
+		this.filterCutoff = filterCutoff;
+		this.offset = offset;
+		this.maxValue = maxValue;
+		this.minValue = this.filterCutoff;
+		
+		this.minIdfValue = idf(this.maxValue);
+		this.maxIdfValue = idf(this.minValue);
+	}
+	
+	static Long2DoubleOpenHashMap allocateMap(long sizeRepeat)
+	{
+		System.err.println("Initializing");
+		Long2DoubleOpenHashMap tempMap = null;
+		for (long i = sizeRepeat; i > 0; i /= 2) {
+			try {	
+				System.err.print("Trying size " + i);
+				tempMap = new Long2DoubleOpenHashMap((int)(i));
+				System.err.println(" and it was successfull");
+				break;
+			} catch (IllegalArgumentException e) {
+				System.err.println(" and it was too big, trying smaller");
+			}
+		}
+		System.err.println("Initialized");
+
+		if (tempMap == null)
+			return new Long2DoubleOpenHashMap();
+		
+		return tempMap;
+	}
+	
+	/**
+	 * @return the size of the bloom filter and the size of the filter set, from the first line of the filter file.
+	 */
+	static long[] parseHeader(String line)
+	{
+		try
+		{
+			long sizeBloom;
+			long sizeRepeat;
+			if (line==null)
+			{
+				System.err.println("Warning, k-mer filter file is empty. Assuming zero entries.");
+				sizeBloom = sizeRepeat = 1L;
+			}
+			else
+			{
+				// we assume the line has two entries, the first is the size of the bloom filter, the second is the size of the filter set
+				String[] splitLine = line.trim().split("\\s+");
+				sizeBloom = Long.parseLong(splitLine[0]);
+				sizeRepeat = Long.parseLong(splitLine[1]);
+				System.err.println("Read in values for repeat " + sizeRepeat + " and " + sizeBloom);
+			
+				if (sizeBloom<0L || sizeRepeat <0L)
+					throw new MhapRuntimeException("K-mer filter file size line must have positive long value.");
+				else
+				if (sizeBloom==0L)
+				{
+					System.err.println("Warning, k-mer filter file has zero elements.");
+					sizeBloom = 1L;
+				}
+			}
+			
+			return new long[] {sizeBloom, sizeRepeat};
+		}
+		catch (Exception e)
+		{
+			throw new MhapRuntimeException("K-mer filter file first line must contain estimated number of k-mers in the file (long).");
+		}
+	}
+	
 	public double documentFrequencyRatio(long hash)
 	{
-		Double val = this.fractionCounts.get(hash);
-		if (val == null)
+		double val = this.fractionCounts.get(hash);
+		if (Double.isNaN(val))
 			val = this.minValue;
 		
 		return val;
@@ -272,11 +359,21 @@ public final class FrequencyCounts
 	public boolean keepKmer(long hash)
 	{
 		if (this.removeUnique==1)
-			return this.validMers.mightContain(hash);
+			return isValid(hash);
 			
 		return true;
 	}
 	
+	private boolean isValid(long hash)
+	{
+		if (this.compiled!=null)
+			return this.compiled.mightContain(hash);
+		if (this.validMers!=null)
+			return this.validMers.mightContain(hash);
+		
+		return true;
+	}
+	
 	public double maxIdf()
 	{
 		return this.maxIdfValue;
@@ -294,11 +391,11 @@ public final class FrequencyCounts
 	
 	public double scaledIdf(long hash, double maxValue)
 	{
-		if (this.removeUnique==2 && this.validMers!=null && !this.validMers.mightContain(hash))
+		if (this.removeUnique==2 && !isValid(hash))
 			return 1.0;			
 		
-		Double val = this.fractionCounts.get(hash);
-		if (val == null)
+		double val = this.fractionCounts.get(hash);
+		if (Double.isNaN(val))
 			return maxValue;
 		
 		//get the true value
@@ -310,6 +407,18 @@ public final class FrequencyCounts
 		return 1.0+(idf-minIdf())/scale;
 	}
 
+	/**
+	 * Writes the filter in the binary format of CompiledFilter, which can be memory-mapped by later runs. Only a filter
+	 * read from a text file with the bloom filter (removeUnique>0) can be compiled.
+	 */
+	public void writeCompiled(File file) throws IOException
+	{
+		if (this.compiled!=null || this.validMers==null)
+			throw new MhapRuntimeException("Only a k-mer filter read from a text file with --supress-noise > 0 can be compiled.");
+		
+		CompiledFilter.write(file, (Long2DoubleOpenHashMap)this.fractionCounts, this.validMers, this.kmerSizes, this.filterCutoff, this.maxValue, this.doReverseCompliment, this.hashMode);
+	}
+
 	public double tfWeight(int weight)
 	{
 		if (this.noTf)
@@ -41,6 +41,28 @@ import edu.umd.marbl.mhap.utils.Utils;
 
 public class HashUtils
 {
+	public enum KmerHashMode
+	{
+		/**
+		 * Murmur3 hash of the k-mer characters, same values as previous versions of MHAP.
+		 */
+		MURMUR,
+		
+		/**
+		 * Rolling 2-bit packed k-mer, updated in O(1) per position. Only valid for k<=32, otherwise MURMUR is used.
+		 */
+		ROLLING;
+		
+		public static KmerHashMode fromString(String name)
+		{
+			for (KmerHashMode mode : values())
+				if (mode.name().equalsIgnoreCase(name.trim()))
+					return mode;
+			
+			throw new SketchRuntimeException("Unknown k-mer hash mode \""+name+"\".");
+		}
+	}
+	
 	public static long[] computeHashes(String item, int numWords, int seed)
 	{
 		long[] hashes = new long[numWords];
@@ -210,51 +232,199 @@ public class HashUtils
 		return hashes;
 	}
 
-	public final static int[] computeSequenceHashes(final String seq, final int nGramSize, boolean doReverseCompliment)
+	public final static int[] computeSequenceHashes(final CharSequence seq, final int nGramSize, boolean doReverseCompliment)
 	{
-		HashFunction hf = Hashing.murmur3_32(0);
-	
-		int[] hashes = new int[seq.length() - nGramSize + 1];
-		for (int iter = 0; iter < hashes.length; iter++)
+		return computeSequenceHashes(seq, nGramSize, doReverseCompliment, KmerHashMode.MURMUR, new int[Math.max(0, seq.length() - nGramSize + 1)]);
+	}
+
+	public final static int[] computeSequenceHashes(final CharSequence seq, final int nGramSize, final boolean doReverseCompliment, final KmerHashMode mode, final int[] hashes)
+	{
+		final int numberNGrams = seq.length() - nGramSize + 1;
+		if (hashes.length < numberNGrams)
+			throw new SketchRuntimeException("Hash storage array is smaller than the number of n-grams.");
+
+		if (mode == KmerHashMode.ROLLING && RollingKmerHasher.canPack(nGramSize))
 		{
-			String str = seq.substring(iter, iter + nGramSize);
-			
-			String strReverse = null;
-			if (doReverseCompliment)
-			{
-				strReverse  = Utils.rc(str);
-				if (strReverse.compareTo(str)<0)
-					str = strReverse;
-			}
+			RollingKmerHasher.computeHashesInt(seq, nGramSize, doReverseCompliment, hashes);
+			return hashes;
+		}
+	
+		final char[] kmer = new char[nGramSize];
+		for (int iter = 0; iter < numberNGrams; iter++)
+			hashes[iter] = murmurKmerInt(seq, iter, nGramSize, doReverseCompliment, kmer);
+	
+		return hashes;
+	}
 
-			HashCode hc = hf.newHasher().putUnencodedChars(str).hash();
-			hashes[iter] = hc.asInt();
+	public final static long[] computeSequenceHashesLong(final CharSequence seq, final int nGramSize, final int seed, final boolean doReverseCompliment)
+	{
+		return computeSequenceHashesLong(seq, nGramSize, seed, doReverseCompliment, KmerHashMode.MURMUR, new long[Math.max(0, seq.length() - nGramSize + 1)]);
+	}
+	
+	public final static long[] computeSequenceHashesLong(final CharSequence seq, final int nGramSize, final int seed, final boolean doReverseCompliment, final KmerHashMode mode, final long[] hashes)
+	{
+		final int numberNGrams = seq.length() - nGramSize + 1;
+		if (hashes.length < numberNGrams)
+			throw new SketchRuntimeException("Hash storage array is smaller than the number of n-grams.");
+
+		if (mode == KmerHashMode.ROLLING && RollingKmerHasher.canPack(nGramSize))
+		{
+			RollingKmerHasher.computeHashesLong(seq, nGramSize, seed, doReverseCompliment, hashes);
+			return hashes;
 		}
+
+		final char[] kmer = new char[nGramSize];
+		for (int iter = 0; iter < numberNGrams; iter++)
+			hashes[iter] = murmurKmerLong(seq, iter, nGramSize, seed, doReverseCompliment, kmer);
 	
 		return hashes;
 	}
+	
+	/**
+	 * Copies the k-mer starting at start into kmer, replacing it with its reverse compliment if that one is
+	 * lexicographically smaller. Matches the ordering of Utils.rc(str).compareTo(str).
+	 */
+	private final static void copyKmer(final CharSequence seq, final int start, final int kmerSize, final boolean doReverseCompliment, final char[] kmer)
+	{
+		final int end = start + kmerSize - 1;
+		boolean useReverse = false;
+		if (doReverseCompliment)
+		{
+			for (int iter = 0; iter < kmerSize; iter++)
+			{
+				char fwd = seq.charAt(start + iter);
+				char rev = Utils.compliment(seq.charAt(end - iter));
+				if (rev != fwd)
+				{
+					useReverse = rev < fwd;
+					break;
+				}
+			}
+		}
+		
+		if (useReverse)
+			for (int iter = 0; iter < kmerSize; iter++)
+				kmer[iter] = Utils.compliment(seq.charAt(end - iter));
+		else
+			for (int iter = 0; iter < kmerSize; iter++)
+				kmer[iter] = seq.charAt(start + iter);
+	}
 
-	public final static long[] computeSequenceHashesLong(final String seq, final int nGramSize, final int seed, final boolean doReverseCompliment)
+	private final static int fmix32(int h)
 	{
-		HashFunction hf = Hashing.murmur3_128(seed);
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		
+		return h;
+	}
 	
-		long[] hashes = new long[seq.length() - nGramSize + 1];
-		for (int iter = 0; iter < hashes.length; iter++)
+	final static long fmix64(long k)
+	{
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		
+		return k;
+	}
+
+	/**
+	 * Same value as Hashing.murmur3_32(0).newHasher().putUnencodedChars(kmer).hash().asInt(), where kmer is the
+	 * (optionally canonical) k-mer at position start, but without creating any intermediate objects.
+	 */
+	final static int murmurKmerInt(final CharSequence seq, final int start, final int kmerSize, final boolean doReverseCompliment, final char[] kmer)
+	{
+		copyKmer(seq, start, kmerSize, doReverseCompliment, kmer);
+		
+		final int c1 = 0xcc9e2d51;
+		final int c2 = 0x1b873593;
+
+		int h1 = 0;
+		int iter = 0;
+		for (; iter + 1 < kmerSize; iter += 2)
+		{
+			int k1 = kmer[iter] | (kmer[iter + 1] << 16);
+			k1 *= c1;
+			k1 = Integer.rotateLeft(k1, 15);
+			k1 *= c2;
+			
+			h1 ^= k1;
+			h1 = Integer.rotateLeft(h1, 13);
+			h1 = h1 * 5 + 0xe6546b64;
+		}
+		
+		if (iter < kmerSize)
 		{
-			String str = seq.substring(iter, iter + nGramSize);
-			String strReverse = null;
-			if (doReverseCompliment)
+			int k1 = kmer[iter];
+			k1 *= c1;
+			k1 = Integer.rotateLeft(k1, 15);
+			k1 *= c2;
+			h1 ^= k1;
+		}
+		
+		return fmix32(h1 ^ (2 * kmerSize));
+	}
+
+	/**
+	 * Same value as Hashing.murmur3_128(seed).newHasher().putUnencodedChars(kmer).hash().asLong(), where kmer is the
+	 * (optionally canonical) k-mer at position start, but without creating any intermediate objects.
+	 */
+	final static long murmurKmerLong(final CharSequence seq, final int start, final int kmerSize, final int seed, final boolean doReverseCompliment, final char[] kmer)
+	{
+		copyKmer(seq, start, kmerSize, doReverseCompliment, kmer);
+		
+		final long c1 = 0x87c37b91114253d5L;
+		final long c2 = 0x4cf5ad432745937fL;
+		
+		long h1 = seed;
+		long h2 = seed;
+		
+		int iter = 0;
+		for (; iter + 8 <= kmerSize; iter += 8)
+		{
+			long k1 = kmer[iter] | ((long) kmer[iter + 1] << 16) | ((long) kmer[iter + 2] << 32) | ((long) kmer[iter + 3] << 48);
+			long k2 = kmer[iter + 4] | ((long) kmer[iter + 5] << 16) | ((long) kmer[iter + 6] << 32) | ((long) kmer[iter + 7] << 48);
+			
+			h1 ^= Long.rotateLeft(k1 * c1, 31) * c2;
+			h1 = Long.rotateLeft(h1, 27);
+			h1 += h2;
+			h1 = h1 * 5 + 0x52dce729;
+
+			h2 ^= Long.rotateLeft(k2 * c2, 33) * c1;
+			h2 = Long.rotateLeft(h2, 31);
+			h2 += h1;
+			h2 = h2 * 5 + 0x38495ab5;
+		}
+		
+		if (iter < kmerSize)
+		{
+			long k1 = 0L;
+			long k2 = 0L;
+			for (int shift = 0; iter < kmerSize; iter++, shift += 16)
 			{
-				strReverse  = Utils.rc(str);
-				if (strReverse.compareTo(str)<0)
-					str = strReverse;
+				if (shift < 64)
+					k1 |= (long) kmer[iter] << shift;
+				else
+					k2 |= (long) kmer[iter] << (shift - 64);
 			}
 			
-			HashCode hc = hf.newHasher().putUnencodedChars(str).hash();
-			hashes[iter] = hc.asLong();
+			h1 ^= Long.rotateLeft(k1 * c1, 31) * c2;
+			h2 ^= Long.rotateLeft(k2 * c2, 33) * c1;
 		}
-	
-		return hashes;
+		
+		h1 ^= 2 * kmerSize;
+		h2 ^= 2 * kmerSize;
+		h1 += h2;
+		h2 += h1;
+		h1 = fmix64(h1);
+		h2 = fmix64(h2);
+		h1 += h2;
+	
+		return h1;
 	}
 	
 	public static double[] randomGuassianVector(int n, int seed)
@@ -0,0 +1,267 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.sketch;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * CountMin sketch of long keys, with conservative update. The counters of all rows are in one flat array of ints,
+ * which saturate at Integer.MAX_VALUE, and are updated lock-free with compare-and-set, so one sketch can be filled by
+ * many threads. The rows are derived from a single 128-bit Murmur3 hash of the key. Sketches with the same dimensions
+ * and seed, for example built from different files, can be merged.
+ */
+public final class LongCountMin implements Counter<Long>
+{
+	private final AtomicIntegerArray counts;
+	private final int depth;
+	private final int seed;
+	private final LongAdder totalAdded;
+	private final int width;
+
+	public static LongCountMin readFrom(DataInput input) throws IOException
+	{
+		int depth = input.readInt();
+		int width = input.readInt();
+		int seed = input.readInt();
+
+		LongCountMin sketch = new LongCountMin(depth, width, seed);
+		sketch.totalAdded.add(input.readLong());
+		for (int iter = 0; iter < sketch.counts.length(); iter++)
+			sketch.counts.set(iter, input.readInt());
+
+		return sketch;
+	}
+
+	public LongCountMin(double eps, double confidence, int seed)
+	{
+		// 2/w = eps ; w = 2/eps
+		// 1/2^depth <= 1-confidence ; depth >= -log2 (1-confidence)
+		this((int) Math.ceil(-Math.log(1.0 - confidence) / Math.log(2)), (int) Math.ceil((double) 2 / eps), seed);
+	}
+
+	public LongCountMin(int depth, int width, int seed)
+	{
+		if (depth < 1 || width < 1 || (long) depth * (long) width > Integer.MAX_VALUE)
+			throw new SketchRuntimeException("CountMin dimensions " + depth + "x" + width + " are out of range.");
+
+		this.depth = depth;
+		this.width = width;
+		this.seed = seed;
+		this.counts = new AtomicIntegerArray(depth * width);
+		this.totalAdded = new LongAdder();
+	}
+
+	@Override
+	public void add(Long obj)
+	{
+		add(obj.longValue(), 1L);
+	}
+
+	@Override
+	public void add(Long obj, long increment)
+	{
+		add(obj.longValue(), increment);
+	}
+
+	public void add(long key)
+	{
+		add(key, 1L);
+	}
+
+	/**
+	 * Conservative update: only the counters below the new estimate are raised to it. To keep the estimate an upper
+	 * bound when the same key is added concurrently, the other rows are raised first, and the update is committed by
+	 * a compare-and-set of the minimum counter, which is retried if another thread changed it.
+	 */
+	public void add(long key, long increment)
+	{
+		if (increment <= 0)
+			throw new SketchRuntimeException("Positive value expected for increment.");
+
+		// the two halves of Murmur3 x64 128
+		final long mix1 = murmurFinal1(key, this.seed);
+		final long mix2 = murmurFinal2(key, this.seed);
+		final long hash1 = mix1 + mix2;
+		final long hash2 = hash1 + mix2;
+
+		while (true)
+		{
+			int minIndex = -1;
+			int minCount = Integer.MAX_VALUE;
+			for (int row = 0; row < this.depth; row++)
+			{
+				int index = index(hash1, hash2, row);
+				int count = this.counts.get(index);
+				if (count < minCount || minIndex < 0)
+				{
+					minCount = count;
+					minIndex = index;
+				}
+			}
+
+			// saturated
+			if (minCount == Integer.MAX_VALUE)
+				break;
+
+			final int target = (int) Math.min(Integer.MAX_VALUE, minCount + increment);
+			for (int row = 0; row < this.depth; row++)
+			{
+				int index = index(hash1, hash2, row);
+				if (index == minIndex)
+					continue;
+
+				int count = this.counts.get(index);
+				while (count < target && !this.counts.compareAndSet(index, count, target))
+					count = this.counts.get(index);
+			}
+
+			if (this.counts.compareAndSet(minIndex, minCount, target))
+				break;
+		}
+
+		this.totalAdded.add(increment);
+	}
+
+	@Override
+	public long getCount(Long obj)
+	{
+		return getCount(obj.longValue());
+	}
+
+	public long getCount(long key)
+	{
+		// the two halves of Murmur3 x64 128
+		final long mix1 = murmurFinal1(key, this.seed);
+		final long mix2 = murmurFinal2(key, this.seed);
+		final long hash1 = mix1 + mix2;
+		final long hash2 = hash1 + mix2;
+
+		int minCount = Integer.MAX_VALUE;
+		for (int row = 0; row < this.depth; row++)
+			minCount = Math.min(minCount, this.counts.get(index(hash1, hash2, row)));
+
+		return minCount;
+	}
+
+	public int getDepth()
+	{
+		return this.depth;
+	}
+
+	public int getSeed()
+	{
+		return this.seed;
+	}
+
+	public int getWidth()
+	{
+		return this.width;
+	}
+
+	/**
+	 * Kirsch-Mitzenmacher combination of the two hash halves, mapped to the row by multiply-shift.
+	 */
+	private int index(long hash1, long hash2, int row)
+	{
+		long combined = hash1 + row * hash2;
+		return row * this.width + (int) (((combined >>> 32) * this.width) >>> 32);
+	}
+
+	@Override
+	public long maxCount()
+	{
+		int max = 0;
+		for (int iter = 0; iter < this.counts.length(); iter++)
+			max = Math.max(max, this.counts.get(iter));
+
+		return max;
+	}
+
+	/**
+	 * Adds the counts of the other sketch, which must have the same dimensions and seed. The sum of conservative
+	 * update sketches is still an upper bound of the counts.
+	 */
+	public void merge(LongCountMin other)
+	{
+		if (other.depth != this.depth || other.width != this.width || other.seed != this.seed)
+			throw new SketchRuntimeException("Only CountMin sketches with the same dimensions and seed can be merged.");
+
+		for (int iter = 0; iter < this.counts.length(); iter++)
+		{
+			int add = other.counts.get(iter);
+			if (add == 0)
+				continue;
+
+			int count = this.counts.get(iter);
+			while (!this.counts.compareAndSet(iter, count, (int) Math.min(Integer.MAX_VALUE, (long) count + add)))
+				count = this.counts.get(iter);
+		}
+
+		this.totalAdded.add(other.totalAdded());
+	}
+
+	/**
+	 * Murmur3 x64 128 of the key as a single 8 byte block, up to the final additions, same as
+	 * Hashing.murmur3_128(seed).hashLong(key).
+	 */
+	private static long murmurFinal1(long key, int seed)
+	{
+		long h1 = (long) seed ^ Long.rotateLeft(key * 0x87c37b91114253d5L, 31) * 0x4cf5ad432745937fL ^ 8L;
+		long h2 = (long) seed ^ 8L;
+
+		return HashUtils.fmix64(h1 + h2);
+	}
+
+	private static long murmurFinal2(long key, int seed)
+	{
+		long h1 = (long) seed ^ Long.rotateLeft(key * 0x87c37b91114253d5L, 31) * 0x4cf5ad432745937fL ^ 8L;
+		long h2 = (long) seed ^ 8L;
+
+		return HashUtils.fmix64(h1 + h2 + h2);
+	}
+
+	public long totalAdded()
+	{
+		return this.totalAdded.sum();
+	}
+
+	public void writeTo(DataOutput output) throws IOException
+	{
+		output.writeInt(this.depth);
+		output.writeInt(this.width);
+		output.writeInt(this.seed);
+		output.writeLong(totalAdded());
+		for (int iter = 0; iter < this.counts.length(); iter++)
+			output.writeInt(this.counts.get(iter));
+	}
+}
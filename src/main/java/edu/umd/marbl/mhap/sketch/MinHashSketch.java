@@ -32,35 +32,187 @@ package edu.umd.marbl.mhap.sketch;
 import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
 
 import java.io.DataInputStream;
-import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Map.Entry;
 
+import edu.umd.marbl.mhap.sketch.HashUtils.KmerHashMode;
 import edu.umd.marbl.mhap.utils.HitCounter;
 
-public final class MinHashSketch implements Sketch<MinHashSketch>
+public final class MinHashSketch extends AbstractMinHashSketch<MinHashSketch>
 {
-	private final int[] minHashes;
 	/**
 	 * 
 	 */
 	private static final long serialVersionUID = 8846482698636860862L;
 	
-	private final static int[] computeNgramMinHashesWeighted(String seq, final int nGramSize, final int numHashes,
-			FrequencyCounts kmerFilter, boolean doReverseCompliment, double repeatWeight) throws ZeroNGramsFoundException
+	/**
+	 * Per-thread working memory of the fast kernel, so that sketching a read does not allocate anything except the
+	 * returned array.
+	 */
+	private final static class KernelScratch
+	{
+		private long[] kmers = new long[0];
+		private int numHashes = -1;
+		private int[] perm;
+		private int[] swaps;
+		private double[] values;
+		private double[] maxTree;
+		
+		private long[] kmerStorage(int size)
+		{
+			if (this.kmers.length<size)
+				this.kmers = new long[Math.max(size, this.kmers.length+this.kmers.length/2)];
+			
+			return this.kmers;
+		}
+		
+		private void reset(int numHashes)
+		{
+			if (this.numHashes!=numHashes)
+			{
+				this.numHashes = numHashes;
+				this.perm = new int[numHashes];
+				this.swaps = new int[numHashes];
+				this.values = new double[numHashes];
+				this.maxTree = new double[2*numHashes];
+				for (int iter=0; iter<numHashes; iter++)
+					this.perm[iter] = iter;
+			}
+			
+			Arrays.fill(this.values, Double.POSITIVE_INFINITY);
+			Arrays.fill(this.maxTree, Double.POSITIVE_INFINITY);
+		}
+		
+		/**
+		 * Offers a k-mer with the given weight to all the hash slots. Each slot sees an exponential variable with rate
+		 * proportional to the weight, so the k-mer wins a slot with probability weight/sum(weights). The values are
+		 * generated in increasing order and assigned to slots through a lazy random permutation (ProbMinHash), so
+		 * the loop stops as soon as the next value can no longer improve any slot. The cost does not depend on the
+		 * weight, and after the first few k-mers is typically a single step.
+		 */
+		private void offer(long key, int weight, int[] hashes)
+		{
+			final int m = this.numHashes;
+			final double invWeight = 1.0/(double)weight;
+			
+			long state = key;
+			state += 0x9e3779b97f4a7c15L;
+			double h = invWeight*exponential(state);
+			
+			int count = 0;
+			while (h<this.maxTree[1])
+			{
+				//draw the next slot of the permutation
+				state += 0x9e3779b97f4a7c15L;
+				int swap = count+(int)(((splitMix64(state)>>>32)*(long)(m-count))>>>32);
+				int slot = this.perm[swap];
+				this.perm[swap] = this.perm[count];
+				this.perm[count] = slot;
+				this.swaps[count] = swap;
+				
+				if (h<this.values[slot])
+				{
+					this.values[slot] = h;
+					if (slot%2==0)
+						hashes[slot] = (int)key;
+					else
+						hashes[slot] = (int)(key>>>32);
+					
+					updateMax(slot, h);
+				}
+				
+				count++;
+				if (count>=m)
+					break;
+				
+				state += 0x9e3779b97f4a7c15L;
+				h += invWeight*exponential(state)*(double)m/(double)(m-count);
+			}
+			
+			//restore the identity permutation for the next k-mer
+			for (int iter=count-1; iter>=0; iter--)
+			{
+				int swap = this.swaps[iter];
+				int slot = this.perm[iter];
+				this.perm[iter] = this.perm[swap];
+				this.perm[swap] = slot;
+			}
+		}
+		
+		private void updateMax(int slot, double value)
+		{
+			int node = this.numHashes+slot;
+			this.maxTree[node] = value;
+			
+			for (node = node>>>1; node>=1; node = node>>>1)
+				this.maxTree[node] = Math.max(this.maxTree[2*node], this.maxTree[2*node+1]);
+		}
+	}
+	
+	private final static ThreadLocal<KernelScratch> KERNEL_SCRATCH = new ThreadLocal<KernelScratch>()
+	{
+		@Override
+		protected KernelScratch initialValue()
+		{
+			return new KernelScratch();
+		}
+	};
+	
+	private final static int[] computeNgramMinHashesWeightedFast(CharSequence seq, final int nGramSize, final int numHashes,
+			FrequencyCounts kmerFilter, boolean doReverseCompliment, double repeatWeight, KmerHashMode hashMode) throws ZeroNGramsFoundException
+	{
+		KernelScratch scratch = KERNEL_SCRATCH.get();
+		
+		final long[] kmerHashes = scratch.kmerStorage(Math.max(0, seq.length()-nGramSize+1));
+		final int numberKept = computeSortedKmerHashes(seq, nGramSize, kmerFilter, doReverseCompliment, hashMode, kmerHashes);
+
+		int[] hashes = new int[Math.max(1,numHashes)];
+		if (numHashes>0)
+			scratch.reset(numHashes);
+		
+		int numberValid = 0;
+		int start = 0;
+		while (start<numberKept)
+		{
+			long key = kmerHashes[start];
+			int end = start+1;
+			while (end<numberKept && kmerHashes[end]==key)
+				end++;
+			
+			int weight = kmerWeight(key, end-start, kmerFilter, repeatWeight);
+			start = end;
+			
+			if (weight<=0)
+				continue;
+			
+			//increment valid counter
+			numberValid++;
+			
+			if (numHashes>0)
+				scratch.offer(key, weight, hashes);
+		}
+		
+		if (numberValid<=0)
+			throw new ZeroNGramsFoundException("Found zero unfiltered n-grams in the string.", seq.toString());
+		
+		return hashes;
+	}
+
+	private final static int[] computeNgramMinHashesWeighted(CharSequence seq, final int nGramSize, final int numHashes,
+			FrequencyCounts kmerFilter, boolean doReverseCompliment, double repeatWeight, KmerHashMode hashMode) throws ZeroNGramsFoundException
 	{
 		final int numberNGrams = seq.length() - nGramSize + 1;
 	
 		if (numberNGrams < 1)
-			throw new ZeroNGramsFoundException("N-gram size bigger than string length.", seq);
+			throw new ZeroNGramsFoundException("N-gram size bigger than string length.", seq.toString());
 	
 		//if (repeatWeight>=1.0)
 		//	throw new SketchRuntimeException("repeatWeight cannot be >=1.");
 
 		// get the kmer hashes
-		final long[] kmerHashes = HashUtils.computeSequenceHashesLong(seq, nGramSize, 0, doReverseCompliment);
+		final long[] kmerHashes = HashUtils.computeSequenceHashesLong(seq, nGramSize, 0, doReverseCompliment, hashMode, new long[numberNGrams]);
 		
 		//now compute the counts of occurance
 		Long2ObjectLinkedOpenHashMap<HitCounter> hitMap = new Long2ObjectLinkedOpenHashMap<HitCounter>(kmerHashes.length);
@@ -82,7 +234,7 @@ public final class MinHashSketch implements Sketch<MinHashSketch>
 		
 		//make sure don't create a zero value
 		if (hitMap.isEmpty())
-			throw new ZeroNGramsFoundException("Found zero unfiltered n-grams in the string.", seq);
+			throw new ZeroNGramsFoundException("Found zero unfiltered n-grams in the string.", seq.toString());
 	
 		//allocate the space
 		int[] hashes = new int[Math.max(1,numHashes)];		
@@ -95,34 +247,7 @@ public final class MinHashSketch implements Sketch<MinHashSketch>
 		for (Entry<Long, HitCounter> kmer : hitMap.entrySet())
 		{
 			long key = kmer.getKey();
-			int weight = kmer.getValue().count;
-			
-			//original version of MHAP
-			if (repeatWeight<0.0)
-			{
-				weight = 1;
-			
-				if (kmerFilter!=null && kmerFilter.isPopular(key))
-					weight = 0;
-			}	
-			else
-			if (kmerFilter!=null)
-			{
-				if (repeatWeight>=0.0 && repeatWeight<1.0)
-				{
-					//compute the td part
-					double tf = (double)kmerFilter.tfWeight(weight);
-					
-					//compute the idf part, 1-3
-					double idf = kmerFilter.scaledIdf(key);
-					
-					//compute td-idf
-					weight = (int)Math.round(tf*idf);
-					if (weight<1)
-						weight = 1;
-				}
-			}
-			//keep the tf weight otherwise			
+			int weight = kmerWeight(key, kmer.getValue().count, kmerFilter, repeatWeight);
 						
 			if (weight<=0)
 				continue;
@@ -154,7 +279,7 @@ public final class MinHashSketch implements Sketch<MinHashSketch>
 		}
 		
 		if (numberValid<=0)
-			throw new ZeroNGramsFoundException("Found zero unfiltered n-grams in the string.", seq);
+			throw new ZeroNGramsFoundException("Found zero unfiltered n-grams in the string.", seq.toString());
 
 		//now combine into super shingles
 		/*
@@ -180,86 +305,42 @@ public final class MinHashSketch implements Sketch<MinHashSketch>
 
 	public static MinHashSketch fromByteStream(DataInputStream input) throws IOException
 	{
-		try
-		{
-			//store the size
-			int hashNum = input.readInt();
-			
-			//store the array
-			int[] minHashes = new int[hashNum];
-			for (int hash=0; hash<hashNum; hash++)
-			{
-				minHashes[hash] = input.readInt();
-			}
-			
-			return new MinHashSketch(minHashes);
-		}
-		catch (EOFException e)
-		{
+		int[] minHashes = readMinHashArray(input);
+		if (minHashes==null)
 			return null;
-		}
+		
+		return new MinHashSketch(minHashes);
 	}
 	
-	private MinHashSketch(int[] minHashes)
+	public static MinHashSketch fromByteBuffer(ByteBuffer input)
 	{
-		this.minHashes = minHashes;
+		return new MinHashSketch(readMinHashArray(input));
 	}
 	
-	public MinHashSketch(String str, int nGramSize, int numHashes, boolean doReverseCompliment) throws ZeroNGramsFoundException
+	private MinHashSketch(int[] minHashes)
 	{
-		this.minHashes = MinHashSketch.computeNgramMinHashesWeighted(str, nGramSize, numHashes, null, doReverseCompliment, -1.0);
+		super(minHashes);
 	}
 	
-	public MinHashSketch(String seq, int nGramSize, int numHashes, FrequencyCounts freqFilter, boolean doReverseCompliment, double repeatWeight) throws ZeroNGramsFoundException
-	{
-		this.minHashes = MinHashSketch.computeNgramMinHashesWeighted(seq, nGramSize, numHashes, freqFilter, doReverseCompliment, repeatWeight);
-	}
-
-	public byte[] getAsByteArray()
+	public MinHashSketch(CharSequence str, int nGramSize, int numHashes, boolean doReverseCompliment) throws ZeroNGramsFoundException
 	{
-		ByteBuffer bb = ByteBuffer.allocate(4*(1+this.minHashes.length));
-		
-		//store the size
-		bb.putInt(this.minHashes.length);
-		
-		//store the array
-		for (int hash=0; hash<this.minHashes.length; hash++)
-			bb.putInt(this.minHashes[hash]); 
-    
-		return bb.array();
+		super(MinHashSketch.computeNgramMinHashesWeighted(str, nGramSize, numHashes, null, doReverseCompliment, -1.0, KmerHashMode.MURMUR));
 	}
 	
-	public final int[] getMinHashArray()
+	public MinHashSketch(CharSequence seq, int nGramSize, int numHashes, FrequencyCounts freqFilter, boolean doReverseCompliment, double repeatWeight) throws ZeroNGramsFoundException
 	{
-		return this.minHashes;
+		this(seq, nGramSize, numHashes, freqFilter, doReverseCompliment, repeatWeight, KmerHashMode.MURMUR);
 	}
 
-	public final double jaccard(MinHashSketch h)
+	public MinHashSketch(CharSequence seq, int nGramSize, int numHashes, FrequencyCounts freqFilter, boolean doReverseCompliment, double repeatWeight, KmerHashMode hashMode) throws ZeroNGramsFoundException
 	{
-		int count = 0;
-		int size = this.minHashes.length;
-		
-		if (h.minHashes.length!=size)
-			throw new SketchRuntimeException("MinHashes must be of same length in order to be compared.");
-		
-		for (int iter=0; iter<size; iter++)
-		{
-			if (this.minHashes[iter]==h.minHashes[iter])
-				count++;
-		}
-		
-		return (double)count/(double)size;
+		this(seq, nGramSize, numHashes, freqFilter, doReverseCompliment, repeatWeight, hashMode, false);
 	}
-	
-	public final int numHashes()
-	{
-		return this.minHashes.length;
-	}
-	
-	@Override
-	public double similarity(MinHashSketch sh)
+
+	public MinHashSketch(CharSequence seq, int nGramSize, int numHashes, FrequencyCounts freqFilter, boolean doReverseCompliment, double repeatWeight, KmerHashMode hashMode, boolean fastKernel) throws ZeroNGramsFoundException
 	{
-		return jaccard(sh);
+		super(fastKernel ? MinHashSketch.computeNgramMinHashesWeightedFast(seq, nGramSize, numHashes, freqFilter, doReverseCompliment, repeatWeight, hashMode)
+				: MinHashSketch.computeNgramMinHashesWeighted(seq, nGramSize, numHashes, freqFilter, doReverseCompliment, repeatWeight, hashMode));
 	}
 
 	/* (non-Javadoc)
@@ -0,0 +1,181 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.sketch;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import edu.umd.marbl.mhap.sketch.HashUtils.KmerHashMode;
+
+/**
+ * Weighted one permutation MinHash with optimal densification (Shrivastava 2017). Every k-mer is hashed once into one
+ * of the numHashes bins, and each bin keeps the k-mer with the smallest weighted value. Empty bins borrow the value of
+ * a non-empty bin picked by a bin specific random probe sequence, so the sketch is comparable slot by slot with the same
+ * estimator as MinHashSketch. The k-mers are sorted to get their counts for the tf weights, so the cost is
+ * O(L log L + numHashes) instead of the O(L * numHashes) of MinHashSketch, and it does not grow with numHashes.
+ */
+public final class OnePermutationSketch extends AbstractMinHashSketch<OnePermutationSketch>
+{
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = -1837401947296582816L;
+	
+	private final static long BIN_SEED = 0x9e3779b97f4a7c15L;
+	private final static long VALUE_SEED = 0x3c6ef372fe94f82aL;
+	private final static long DENSIFY_SEED = 0xdaa66d2c7ddf743fL;
+	
+	private final static class BinScratch
+	{
+		private long[] kmers = new long[0];
+		private double[] values = new double[0];
+	}
+	
+	private final static ThreadLocal<BinScratch> BIN_SCRATCH = new ThreadLocal<BinScratch>()
+	{
+		@Override
+		protected BinScratch initialValue()
+		{
+			return new BinScratch();
+		}
+	};
+	
+	private final static int[] computeOnePermutationHashes(CharSequence seq, final int nGramSize, final int numHashes,
+			FrequencyCounts kmerFilter, boolean doReverseCompliment, double repeatWeight, KmerHashMode hashMode) throws ZeroNGramsFoundException
+	{
+		BinScratch scratch = BIN_SCRATCH.get();
+		
+		final int numberNGrams = Math.max(0, seq.length()-nGramSize+1);
+		if (scratch.kmers.length<numberNGrams)
+			scratch.kmers = new long[Math.max(numberNGrams, scratch.kmers.length+scratch.kmers.length/2)];
+		if (scratch.values.length<numHashes)
+			scratch.values = new double[numHashes];
+		
+		final long[] kmerHashes = scratch.kmers;
+		final double[] values = scratch.values;
+		final int numberKept = computeSortedKmerHashes(seq, nGramSize, kmerFilter, doReverseCompliment, hashMode, kmerHashes);
+
+		int[] hashes = new int[Math.max(1,numHashes)];
+		Arrays.fill(values, 0, numHashes, Double.POSITIVE_INFINITY);
+		
+		int numberValid = 0;
+		int start = 0;
+		while (start<numberKept)
+		{
+			long key = kmerHashes[start];
+			int end = start+1;
+			while (end<numberKept && kmerHashes[end]==key)
+				end++;
+			
+			int weight = kmerWeight(key, end-start, kmerFilter, repeatWeight);
+			start = end;
+			
+			if (weight<=0)
+				continue;
+			
+			//increment valid counter
+			numberValid++;
+			
+			if (numHashes<=0)
+				continue;
+			
+			//the bin, and an exponential value with rate equal to the weight
+			int bin = (int)(((splitMix64(key+BIN_SEED)>>>32)*(long)numHashes)>>>32);
+			double value = exponential(key+VALUE_SEED)/(double)weight;
+			
+			if (value<values[bin])
+			{
+				values[bin] = value;
+				if (bin%2==0)
+					hashes[bin] = (int)key;
+				else
+					hashes[bin] = (int)(key>>>32);
+			}
+		}
+		
+		if (numberValid<=0)
+			throw new ZeroNGramsFoundException("Found zero unfiltered n-grams in the string.", seq.toString());
+		
+		//fill the empty bins from the originally non-empty ones
+		for (int bin=0; bin<numHashes; bin++)
+		{
+			if (values[bin]!=Double.POSITIVE_INFINITY)
+				continue;
+			
+			for (long attempt=0; ; attempt++)
+			{
+				long probe = splitMix64(DENSIFY_SEED+((long)bin<<32)+attempt);
+				int source = (int)(((probe>>>32)*(long)numHashes)>>>32);
+				
+				if (values[source]!=Double.POSITIVE_INFINITY)
+				{
+					hashes[bin] = hashes[source];
+					break;
+				}
+			}
+		}
+		
+		return hashes;
+	}
+	
+	public static OnePermutationSketch fromByteStream(DataInputStream input) throws IOException
+	{
+		int[] minHashes = readMinHashArray(input);
+		if (minHashes==null)
+			return null;
+		
+		return new OnePermutationSketch(minHashes);
+	}
+	
+	public static OnePermutationSketch fromByteBuffer(ByteBuffer input)
+	{
+		return new OnePermutationSketch(readMinHashArray(input));
+	}
+	
+	private OnePermutationSketch(int[] minHashes)
+	{
+		super(minHashes);
+	}
+	
+	public OnePermutationSketch(CharSequence seq, int nGramSize, int numHashes, FrequencyCounts freqFilter, boolean doReverseCompliment, double repeatWeight, KmerHashMode hashMode) throws ZeroNGramsFoundException
+	{
+		super(OnePermutationSketch.computeOnePermutationHashes(seq, nGramSize, numHashes, freqFilter, doReverseCompliment, repeatWeight, hashMode));
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString()
+	{
+		return "OnePermutationMinHash "+Arrays.toString(this.minHashes) + "";
+	}
+}
@@ -0,0 +1,210 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.sketch;
+
+import edu.umd.marbl.mhap.utils.PackedSequence;
+
+/**
+ * Rolling k-mer hashing over 2-bit packed bases. The forward and reverse compliment words are updated in O(1) per
+ * position, so no substring or hasher objects are created per k-mer. Windows that contain a base other than A, C, G or
+ * T fall back to the Murmur hash of the k-mer characters.
+ */
+public final class RollingKmerHasher
+{
+	private final static byte[] BASE_CODES = createBaseCodes();
+
+	public final static int MAX_KMER_SIZE = 32;
+
+	private final static long SEED_MULTIPLIER = 0x9e3779b97f4a7c15L;
+	
+	private final static byte[] createBaseCodes()
+	{
+		byte[] codes = new byte[128];
+		for (int iter = 0; iter < codes.length; iter++)
+			codes[iter] = -1;
+		
+		codes['A'] = 0;
+		codes['C'] = 1;
+		codes['G'] = 2;
+		codes['T'] = 3;
+		codes['a'] = 0;
+		codes['c'] = 1;
+		codes['g'] = 2;
+		codes['t'] = 3;
+		
+		return codes;
+	}
+	
+	public final static int baseCode(char c)
+	{
+		if (c < BASE_CODES.length)
+			return BASE_CODES[c];
+		
+		return -1;
+	}
+
+	public final static boolean canPack(int kmerSize)
+	{
+		return kmerSize > 0 && kmerSize <= MAX_KMER_SIZE;
+	}
+	
+	public final static void computeHashesInt(final CharSequence seq, final int kmerSize, final boolean doReverseCompliment, final int[] hashes)
+	{
+		final int numberKmers = seq.length() - kmerSize + 1;
+		if (numberKmers < 1)
+			return;
+
+		final long mask = kmerSize == 32 ? -1L : (1L << (2 * kmerSize)) - 1L;
+		final int topShift = 2 * (kmerSize - 1);
+		
+		//packed sequences are read directly, without decoding the characters
+		final PackedSequence packed = seq instanceof PackedSequence ? (PackedSequence) seq : null;
+		int nextException = packed != null ? packed.nextException(0) : -1;
+		
+		long fwd = 0L;
+		long rev = 0L;
+		int lastAmbiguous = -1;
+		char[] kmer = null;
+		
+		for (int pos = 0; pos < seq.length(); pos++)
+		{
+			int code;
+			if (packed != null)
+			{
+				code = packed.baseCode(pos);
+				if (pos == nextException)
+				{
+					lastAmbiguous = pos;
+					nextException = packed.nextException(pos + 1);
+				}
+			}
+			else
+			{
+				code = baseCode(seq.charAt(pos));
+				if (code < 0)
+				{
+					lastAmbiguous = pos;
+					code = 0;
+				}
+			}
+			
+			fwd = ((fwd << 2) | code) & mask;
+			rev = (rev >>> 2) | ((long) (3 - code) << topShift);
+			
+			final int start = pos - kmerSize + 1;
+			if (start < 0)
+				continue;
+			
+			if (lastAmbiguous >= start)
+			{
+				if (kmer == null)
+					kmer = new char[kmerSize];
+				hashes[start] = HashUtils.murmurKmerInt(seq, start, kmerSize, doReverseCompliment, kmer);
+			}
+			else
+			{
+				long word = doReverseCompliment && Long.compareUnsigned(rev, fwd) < 0 ? rev : fwd;
+				hashes[start] = (int) hashWord(word, kmerSize, 0);
+			}
+		}
+	}
+	
+	public final static void computeHashesLong(final CharSequence seq, final int kmerSize, final int seed, final boolean doReverseCompliment, final long[] hashes)
+	{
+		final int numberKmers = seq.length() - kmerSize + 1;
+		if (numberKmers < 1)
+			return;
+
+		final long mask = kmerSize == 32 ? -1L : (1L << (2 * kmerSize)) - 1L;
+		final int topShift = 2 * (kmerSize - 1);
+		
+		//packed sequences are read directly, without decoding the characters
+		final PackedSequence packed = seq instanceof PackedSequence ? (PackedSequence) seq : null;
+		int nextException = packed != null ? packed.nextException(0) : -1;
+		
+		long fwd = 0L;
+		long rev = 0L;
+		int lastAmbiguous = -1;
+		char[] kmer = null;
+		
+		for (int pos = 0; pos < seq.length(); pos++)
+		{
+			int code;
+			if (packed != null)
+			{
+				code = packed.baseCode(pos);
+				if (pos == nextException)
+				{
+					lastAmbiguous = pos;
+					nextException = packed.nextException(pos + 1);
+				}
+			}
+			else
+			{
+				code = baseCode(seq.charAt(pos));
+				if (code < 0)
+				{
+					lastAmbiguous = pos;
+					code = 0;
+				}
+			}
+			
+			fwd = ((fwd << 2) | code) & mask;
+			rev = (rev >>> 2) | ((long) (3 - code) << topShift);
+			
+			final int start = pos - kmerSize + 1;
+			if (start < 0)
+				continue;
+			
+			if (lastAmbiguous >= start)
+			{
+				if (kmer == null)
+					kmer = new char[kmerSize];
+				hashes[start] = HashUtils.murmurKmerLong(seq, start, kmerSize, seed, doReverseCompliment, kmer);
+			}
+			else
+			{
+				long word = doReverseCompliment && Long.compareUnsigned(rev, fwd) < 0 ? rev : fwd;
+				hashes[start] = hashWord(word, kmerSize, seed);
+			}
+		}
+	}
+	
+	/**
+	 * Hash of a packed k-mer word. The k-mer size is mixed in so that words of different sizes do not collide.
+	 */
+	public final static long hashWord(long word, int kmerSize, int seed)
+	{
+		return HashUtils.fmix64(word ^ ((long) seed * SEED_MULTIPLIER) ^ ((long) kmerSize << 58));
+	}
+	
+	private RollingKmerHasher()
+	{
+	}
+}
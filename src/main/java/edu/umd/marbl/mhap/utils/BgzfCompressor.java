@@ -0,0 +1,147 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses data into BGZF blocks, gzip members of at most 64KB with the block size in an extra header field. The
+ * blocks are independent, so they can be compressed by different threads and concatenated in any order, and the result
+ * can be read by gzip and by tools that use the BGZF index.
+ */
+public final class BgzfCompressor
+{
+	public final static int MAX_BLOCK_SIZE = 1 << 16;
+	public final static int MAX_INPUT_SIZE = 0xff00;
+	public final static int HEADER_SIZE = 18;
+	public final static int FOOTER_SIZE = 8;
+
+	/**
+	 * Empty block that marks the end of a BGZF file.
+	 */
+	public final static byte[] EOF_BLOCK = new byte[] { 0x1f, (byte) 0x8b, 0x08, 0x04, 0x00, 0x00, 0x00, 0x00, 0x00,
+			(byte) 0xff, 0x06, 0x00, 0x42, 0x43, 0x02, 0x00, 0x1b, 0x00, 0x03, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
+			0x00, 0x00 };
+
+	private final static class DeflateScratch
+	{
+		private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		private final CRC32 crc = new CRC32();
+		private final byte[] block = new byte[MAX_BLOCK_SIZE];
+	}
+
+	private final static ThreadLocal<DeflateScratch> DEFLATE_SCRATCH = new ThreadLocal<DeflateScratch>()
+	{
+		@Override
+		protected DeflateScratch initialValue()
+		{
+			return new DeflateScratch();
+		}
+	};
+
+	/**
+	 * @return an upper bound on the compressed size of length bytes.
+	 */
+	public static int maxCompressedLength(int length)
+	{
+		int numBlocks = length / MAX_INPUT_SIZE + 1;
+		return length + numBlocks * (HEADER_SIZE + FOOTER_SIZE + 64);
+	}
+
+	/**
+	 * Compresses the data into as many blocks as needed, and puts them into the buffer, which must have
+	 * maxCompressedLength(length) bytes remaining.
+	 */
+	public static void compress(byte[] data, int offset, int length, ByteBuffer out)
+	{
+		DeflateScratch scratch = DEFLATE_SCRATCH.get();
+		
+		int end = offset + length;
+		while (offset < end)
+		{
+			int inputLength = Math.min(MAX_INPUT_SIZE, end - offset);
+			
+			// incompressible data may not fit in a block, then less of it is put in the block
+			int compressedLength;
+			while (true)
+			{
+				scratch.deflater.reset();
+				scratch.deflater.setInput(data, offset, inputLength);
+				scratch.deflater.finish();
+				compressedLength = scratch.deflater.deflate(scratch.block, HEADER_SIZE, MAX_BLOCK_SIZE - HEADER_SIZE - FOOTER_SIZE);
+				if (scratch.deflater.finished())
+					break;
+				
+				inputLength /= 2;
+			}
+			
+			scratch.crc.reset();
+			scratch.crc.update(data, offset, inputLength);
+			
+			int blockSize = HEADER_SIZE + compressedLength + FOOTER_SIZE;
+			putBlock(out, scratch.block, compressedLength, blockSize, (int) scratch.crc.getValue(), inputLength);
+			
+			offset += inputLength;
+		}
+	}
+	
+	private static void putBlock(ByteBuffer out, byte[] block, int compressedLength, int blockSize, int crc, int inputLength)
+	{
+		ByteOrder order = out.order();
+		out.order(ByteOrder.LITTLE_ENDIAN);
+		
+		// gzip header with the BC extra field
+		out.put((byte) 0x1f);
+		out.put((byte) 0x8b);
+		out.put((byte) 0x08);
+		out.put((byte) 0x04);
+		out.putInt(0);
+		out.put((byte) 0x00);
+		out.put((byte) 0xff);
+		out.putShort((short) 6);
+		out.put((byte) 'B');
+		out.put((byte) 'C');
+		out.putShort((short) 2);
+		out.putShort((short) (blockSize - 1));
+		
+		out.put(block, HEADER_SIZE, compressedLength);
+		
+		out.putInt(crc);
+		out.putInt(inputLength);
+		
+		out.order(order);
+	}
+
+	private BgzfCompressor()
+	{
+	}
+}
@@ -0,0 +1,327 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.utils;
+
+import java.util.Arrays;
+
+/**
+ * Nucleotide sequence packed at 2 bits per base, 32 bases per long, with the first base in the highest bits of a word.
+ * Characters other than A, C, G and T are kept in a sorted side list, and their packed code is 0. Bases are stored in
+ * upper case.
+ */
+public final class PackedSequence implements CharSequence
+{
+	public final static class Builder
+	{
+		private char[] exceptionChars;
+		private int[] exceptionPositions;
+		private int length;
+		private int numExceptions;
+		private long[] words;
+		
+		public Builder()
+		{
+			this(1024);
+		}
+		
+		public Builder(int capacity)
+		{
+			this.words = new long[Math.max(1, (capacity+BASES_PER_WORD-1)/BASES_PER_WORD)];
+			this.exceptionPositions = new int[4];
+			this.exceptionChars = new char[4];
+			this.length = 0;
+			this.numExceptions = 0;
+		}
+		
+		public Builder append(byte[] bytes, int offset, int length)
+		{
+			ensureCapacity(this.length+length);
+			for (int iter = offset; iter < offset+length; iter++)
+				appendChar((char)(bytes[iter] & 0xff));
+			
+			return this;
+		}
+		
+		public Builder append(char c)
+		{
+			ensureCapacity(this.length+1);
+			appendChar(c);
+			
+			return this;
+		}
+		
+		public Builder append(CharSequence seq)
+		{
+			ensureCapacity(this.length+seq.length());
+			for (int iter = 0; iter < seq.length(); iter++)
+				appendChar(seq.charAt(iter));
+			
+			return this;
+		}
+		
+		private void appendChar(char c)
+		{
+			int code = c < BASE_CODES.length ? BASE_CODES[c] : -1;
+			if (code < 0)
+			{
+				if (this.numExceptions >= this.exceptionPositions.length)
+				{
+					this.exceptionPositions = Arrays.copyOf(this.exceptionPositions, this.exceptionPositions.length*2);
+					this.exceptionChars = Arrays.copyOf(this.exceptionChars, this.exceptionChars.length*2);
+				}
+				
+				this.exceptionPositions[this.numExceptions] = this.length;
+				this.exceptionChars[this.numExceptions] = c < 128 ? UPPER_CASE[c] : Character.toUpperCase(c);
+				this.numExceptions++;
+				code = 0;
+			}
+			
+			this.words[this.length>>>5] |= (long)code << shift(this.length);
+			this.length++;
+		}
+		
+		public PackedSequence build()
+		{
+			return new PackedSequence(Arrays.copyOf(this.words, (this.length+BASES_PER_WORD-1)/BASES_PER_WORD), this.length,
+					Arrays.copyOf(this.exceptionPositions, this.numExceptions), Arrays.copyOf(this.exceptionChars, this.numExceptions));
+		}
+		
+		private void ensureCapacity(int length)
+		{
+			int numWords = (length+BASES_PER_WORD-1)/BASES_PER_WORD;
+			if (numWords > this.words.length)
+				this.words = Arrays.copyOf(this.words, Math.max(numWords, this.words.length*2));
+		}
+		
+		public int length()
+		{
+			return this.length;
+		}
+		
+		public Builder reset()
+		{
+			Arrays.fill(this.words, 0, Math.min(this.words.length, (this.length+BASES_PER_WORD-1)/BASES_PER_WORD), 0L);
+			this.length = 0;
+			this.numExceptions = 0;
+			
+			return this;
+		}
+	}
+
+	private final static byte[] BASE_CODES = createBaseCodes();
+	private final static char[] BASES = new char[] {'A', 'C', 'G', 'T'};
+	private final static int BASES_PER_WORD = 32;
+	private final static char[] UPPER_CASE = createUpperCase();
+	
+	private final char[] exceptionChars;
+	private final int[] exceptionPositions;
+	private final int length;
+	private final long[] words;
+	
+	private final static byte[] createBaseCodes()
+	{
+		byte[] codes = new byte[128];
+		Arrays.fill(codes, (byte)-1);
+		
+		codes['A'] = 0;
+		codes['C'] = 1;
+		codes['G'] = 2;
+		codes['T'] = 3;
+		codes['a'] = 0;
+		codes['c'] = 1;
+		codes['g'] = 2;
+		codes['t'] = 3;
+		
+		return codes;
+	}
+	
+	private final static char[] createUpperCase()
+	{
+		char[] table = new char[128];
+		for (char c = 0; c < table.length; c++)
+			table[c] = Character.toUpperCase(c);
+		
+		return table;
+	}
+	
+	public final static PackedSequence fromString(CharSequence seq)
+	{
+		return new Builder(seq.length()).append(seq).build();
+	}
+	
+	/**
+	 * Reverses the order of the 32 2-bit bases in a word.
+	 */
+	private final static long reverseBases(long word)
+	{
+		word = ((word >>> 2) & 0x3333333333333333L) | ((word & 0x3333333333333333L) << 2);
+		word = ((word >>> 4) & 0x0f0f0f0f0f0f0f0fL) | ((word & 0x0f0f0f0f0f0f0f0fL) << 4);
+		
+		return Long.reverseBytes(word);
+	}
+	
+	private final static int shift(int index)
+	{
+		return 62-((index & 31)<<1);
+	}
+
+	private PackedSequence(long[] words, int length, int[] exceptionPositions, char[] exceptionChars)
+	{
+		this.words = words;
+		this.length = length;
+		this.exceptionPositions = exceptionPositions;
+		this.exceptionChars = exceptionChars;
+	}
+	
+	/**
+	 * @return the 2-bit code (A=0, C=1, G=2, T=3) of the base, 0 for the positions that hold other characters.
+	 */
+	public int baseCode(int index)
+	{
+		return (int)(this.words[index>>>5] >>> shift(index)) & 3;
+	}
+
+	@Override
+	public char charAt(int index)
+	{
+		if (index < 0 || index >= this.length)
+			throw new IndexOutOfBoundsException("Index "+index+" out of range [0, "+this.length+").");
+		
+		if (this.exceptionPositions.length > 0)
+		{
+			int exception = Arrays.binarySearch(this.exceptionPositions, index);
+			if (exception >= 0)
+				return this.exceptionChars[exception];
+		}
+		
+		return BASES[baseCode(index)];
+	}
+	
+	/**
+	 * @return the packed k-mer starting at index, with its first base in the highest of the 2*kmerSize bits.
+	 */
+	public long getKmerWord(int index, int kmerSize)
+	{
+		int word = index>>>5;
+		int offset = (index & 31)<<1;
+		
+		long bits = this.words[word] << offset;
+		if (offset > 0 && word+1 < this.words.length)
+			bits |= this.words[word+1] >>> (64-offset);
+		
+		return bits >>> (64-2*kmerSize);
+	}
+
+	public boolean hasExceptions()
+	{
+		return this.exceptionPositions.length > 0;
+	}
+
+	@Override
+	public int length()
+	{
+		return this.length;
+	}
+	
+	/**
+	 * @return the first position at or after index that holds a character other than A, C, G or T, or length() if
+	 *         there are none.
+	 */
+	public int nextException(int index)
+	{
+		if (this.exceptionPositions.length == 0)
+			return this.length;
+		
+		int exception = Arrays.binarySearch(this.exceptionPositions, index);
+		if (exception < 0)
+			exception = -exception-1;
+		
+		if (exception >= this.exceptionPositions.length)
+			return this.length;
+		
+		return this.exceptionPositions[exception];
+	}
+	
+	/**
+	 * Reverse compliment computed word by word. Other characters are complimented as in {@link Utils#rc(String)}.
+	 */
+	public PackedSequence reverseCompliment()
+	{
+		final int numWords = this.words.length;
+		final int padding = numWords*BASES_PER_WORD-this.length;
+		
+		//reverse the padded sequence, then shift the padding out of the front
+		long[] reversed = new long[numWords];
+		for (int iter = 0; iter < numWords; iter++)
+			reversed[iter] = ~reverseBases(this.words[numWords-1-iter]);
+		
+		if (padding > 0)
+		{
+			final int bitShift = padding<<1;
+			for (int iter = 0; iter < numWords; iter++)
+			{
+				long next = iter+1 < numWords ? reversed[iter+1] >>> (64-bitShift) : 0L;
+				reversed[iter] = (reversed[iter] << bitShift) | next;
+			}
+		}
+		
+		int numExceptions = this.exceptionPositions.length;
+		int[] positions = new int[numExceptions];
+		char[] chars = new char[numExceptions];
+		for (int iter = 0; iter < numExceptions; iter++)
+		{
+			int position = this.length-1-this.exceptionPositions[numExceptions-1-iter];
+			positions[iter] = position;
+			chars[iter] = Utils.compliment(this.exceptionChars[numExceptions-1-iter]);
+			
+			//keep the code of other characters at 0
+			reversed[position>>>5] &= ~(3L << shift(position));
+		}
+		
+		return new PackedSequence(reversed, this.length, positions, chars);
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end)
+	{
+		return toString().substring(start, end);
+	}
+
+	@Override
+	public String toString()
+	{
+		char[] chars = new char[this.length];
+		for (int iter = 0; iter < this.length; iter++)
+			chars[iter] = BASES[baseCode(iter)];
+		for (int iter = 0; iter < this.exceptionPositions.length; iter++)
+			chars[this.exceptionPositions[iter]] = this.exceptionChars[iter];
+		
+		return new String(chars);
+	}
+}
@@ -0,0 +1,527 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+
+/**
+ * Decompresses gzip and bzip2 files ahead of the reader. A reader thread splits the file into independent pieces, the
+ * BGZF blocks of block gzip files, or the streams of multi-stream bzip2 files (such as written by pbzip2), which are
+ * decompressed in parallel and returned in file order. Other files are decompressed by the reader thread alone, into a
+ * queue of chunks, so decompression still runs at the same time as parsing.
+ */
+public final class ParallelDecompressInputStream extends InputStream
+{
+	private enum Format
+	{
+		BGZF,
+		GZIP,
+		BZIP2
+	}
+
+	private final static class Chunk
+	{
+		private final byte[] data;
+		private final int length;
+
+		private Chunk(byte[] data, int length)
+		{
+			this.data = data;
+			this.length = length;
+		}
+	}
+
+	private final InputStream file;
+	private final ArrayBlockingQueue<Future<Chunk>> chunks;
+	private final ArrayBlockingQueue<byte[]> free;
+	private final Thread reader;
+	private Chunk current;
+	private int position;
+	private boolean finished;
+	private volatile boolean closed;
+
+	private final static int CHUNK_SIZE = 1 << 20;
+	private final static int BGZF_BLOCKS_PER_TASK = 16;
+	private final static int BZIP2_DETECT_SIZE = 1 << 24;
+	private final static Future<Chunk> END_OF_FILE = CompletableFuture.completedFuture(null);
+
+	private final static ThreadPoolExecutor DECOMPRESS_SERVICE = (ThreadPoolExecutor) Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r, "mhap-decompress");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * Sets the number of threads that decompress in parallel, by default the number of processors. The read-ahead of
+	 * the files opened afterwards is sized from it.
+	 */
+	public static void setNumThreads(int numThreads)
+	{
+		if (numThreads < 1)
+			throw new IllegalArgumentException("The number of decompression threads must be positive.");
+
+		synchronized (DECOMPRESS_SERVICE)
+		{
+			// the core size can never exceed the maximum size
+			if (numThreads > DECOMPRESS_SERVICE.getMaximumPoolSize())
+			{
+				DECOMPRESS_SERVICE.setMaximumPoolSize(numThreads);
+				DECOMPRESS_SERVICE.setCorePoolSize(numThreads);
+			}
+			else
+			{
+				DECOMPRESS_SERVICE.setCorePoolSize(numThreads);
+				DECOMPRESS_SERVICE.setMaximumPoolSize(numThreads);
+			}
+		}
+	}
+
+	/**
+	 * Opens a .gz or .bz2 file, the format is given by the extension.
+	 */
+	public static InputStream open(String fileName) throws IOException
+	{
+		BufferedInputStream file = new BufferedInputStream(new FileInputStream(fileName), CHUNK_SIZE);
+		
+		if (fileName.endsWith("bz2"))
+			return new ParallelDecompressInputStream(file, Format.BZIP2);
+		
+		return new ParallelDecompressInputStream(file, isBgzf(file) ? Format.BGZF : Format.GZIP);
+	}
+
+	private static boolean isBgzf(BufferedInputStream file) throws IOException
+	{
+		byte[] header = new byte[BgzfCompressor.HEADER_SIZE];
+		file.mark(header.length);
+		int length = 0;
+		while (length < header.length)
+		{
+			int numRead = file.read(header, length, header.length - length);
+			if (numRead < 0)
+				break;
+			length += numRead;
+		}
+		file.reset();
+		
+		return length == header.length && isBgzfHeader(header);
+	}
+	
+	private static boolean isBgzfHeader(byte[] header)
+	{
+		return header[0] == (byte) 0x1f && header[1] == (byte) 0x8b && header[2] == 8 && (header[3] & 4) != 0
+				&& header[10] == 6 && header[11] == 0 && header[12] == 'B' && header[13] == 'C' && header[14] == 2
+				&& header[15] == 0;
+	}
+
+	private ParallelDecompressInputStream(InputStream file, final Format format)
+	{
+		this.file = file;
+		int readAheadChunks = Math.max(32, 4 * DECOMPRESS_SERVICE.getMaximumPoolSize());
+		this.chunks = new ArrayBlockingQueue<>(readAheadChunks);
+		this.free = new ArrayBlockingQueue<>(readAheadChunks);
+		this.current = null;
+		this.position = 0;
+		this.finished = false;
+		this.closed = false;
+		
+		this.reader = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				readFile(format);
+			}
+		}, "mhap-decompress-reader");
+		this.reader.setDaemon(true);
+		this.reader.start();
+	}
+
+	private void readFile(Format format)
+	{
+		try
+		{
+			switch (format)
+			{
+				case BGZF:
+					readBgzf();
+					break;
+				case BZIP2:
+					readBzip2();
+					break;
+				default:
+					readSerial(new GzipCompressorInputStream(this.file, true));
+			}
+			
+			this.chunks.put(END_OF_FILE);
+		}
+		catch (InterruptedException e)
+		{
+			// closed by the reader
+		}
+		catch (Exception e)
+		{
+			if (this.closed)
+				return;
+			
+			CompletableFuture<Chunk> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			try
+			{
+				this.chunks.put(failed);
+			}
+			catch (InterruptedException e2)
+			{
+			}
+		}
+	}
+
+	private void readBgzf() throws IOException, InterruptedException
+	{
+		DataInputStream in = new DataInputStream(this.file);
+		ArrayList<byte[]> blocks = new ArrayList<>(BGZF_BLOCKS_PER_TASK);
+		
+		while (true)
+		{
+			byte[] header = new byte[BgzfCompressor.HEADER_SIZE];
+			int first = in.read();
+			if (first >= 0)
+			{
+				header[0] = (byte) first;
+				in.readFully(header, 1, header.length - 1);
+				if (!isBgzfHeader(header))
+					throw new IOException("Invalid BGZF block header.");
+				
+				int blockSize = ((header[16] & 0xff) | ((header[17] & 0xff) << 8)) + 1;
+				if (blockSize < BgzfCompressor.HEADER_SIZE + BgzfCompressor.FOOTER_SIZE)
+					throw new IOException("Invalid BGZF block size "+blockSize+".");
+				
+				byte[] block = Arrays.copyOf(header, blockSize);
+				in.readFully(block, header.length, blockSize - header.length);
+				blocks.add(block);
+			}
+			
+			if (!blocks.isEmpty() && (first < 0 || blocks.size() >= BGZF_BLOCKS_PER_TASK))
+			{
+				final byte[][] taskBlocks = blocks.toArray(new byte[blocks.size()][]);
+				this.chunks.put(DECOMPRESS_SERVICE.submit(new Callable<Chunk>()
+				{
+					@Override
+					public Chunk call() throws IOException
+					{
+						return inflateBlocks(taskBlocks);
+					}
+				}));
+				blocks.clear();
+			}
+			
+			if (first < 0)
+				return;
+		}
+	}
+
+	private static Chunk inflateBlocks(byte[][] blocks) throws IOException
+	{
+		int length = 0;
+		for (byte[] block : blocks)
+			length += readIntLE(block, block.length - 4);
+		
+		byte[] data = new byte[length];
+		int offset = 0;
+		Inflater inflater = new Inflater(true);
+		CRC32 crc = new CRC32();
+		try
+		{
+			for (byte[] block : blocks)
+			{
+				int blockLength = readIntLE(block, block.length - 4);
+				
+				inflater.reset();
+				inflater.setInput(block, BgzfCompressor.HEADER_SIZE, block.length - BgzfCompressor.HEADER_SIZE - BgzfCompressor.FOOTER_SIZE);
+				int numInflated = 0;
+				while (numInflated < blockLength && !inflater.finished())
+				{
+					int numRead = inflater.inflate(data, offset + numInflated, blockLength - numInflated);
+					if (numRead == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+						break;
+					numInflated += numRead;
+				}
+				
+				crc.reset();
+				crc.update(data, offset, numInflated);
+				if (numInflated != blockLength || (int) crc.getValue() != readIntLE(block, block.length - 8))
+					throw new IOException("Corrupt BGZF block.");
+				
+				offset += blockLength;
+			}
+		}
+		catch (DataFormatException e)
+		{
+			throw new IOException("Corrupt BGZF block.", e);
+		}
+		finally
+		{
+			inflater.end();
+		}
+		
+		return new Chunk(data, length);
+	}
+
+	private static int readIntLE(byte[] data, int offset)
+	{
+		return (data[offset] & 0xff) | ((data[offset + 1] & 0xff) << 8) | ((data[offset + 2] & 0xff) << 16)
+				| ((data[offset + 3] & 0xff) << 24);
+	}
+
+	/**
+	 * Streams are split at the next stream header, a "BZh" with the block size digit followed by the magic of a block or
+	 * of the end of the stream. If the first part of the file has only one stream, it is decompressed serially.
+	 */
+	private void readBzip2() throws IOException, InterruptedException
+	{
+		byte[] buffer = new byte[CHUNK_SIZE];
+		int length = 0;
+		int start = 0;
+		int scanFrom = 1;
+		boolean multiStream = false;
+		
+		while (true)
+		{
+			int next = findBzip2Stream(buffer, scanFrom, length);
+			if (next >= 0)
+			{
+				submitBzip2Stream(Arrays.copyOfRange(buffer, start, next));
+				start = next;
+				scanFrom = next + 1;
+				multiStream = true;
+				continue;
+			}
+			
+			if (!multiStream && length >= BZIP2_DETECT_SIZE)
+			{
+				// a single large stream, its blocks are not byte aligned so it is read serially
+				readSerial(new BZip2CompressorInputStream(new SequenceInputStream(new ByteArrayInputStream(buffer, start, length - start), this.file), true));
+				return;
+			}
+			
+			// keep the unfinished stream at the front of the buffer
+			if (start > 0)
+			{
+				System.arraycopy(buffer, start, buffer, 0, length - start);
+				length -= start;
+				scanFrom -= start;
+				start = 0;
+			}
+			if (length == buffer.length)
+				buffer = Arrays.copyOf(buffer, buffer.length * 2);
+			
+			int numRead = this.file.read(buffer, length, buffer.length - length);
+			if (numRead < 0)
+			{
+				if (length > start)
+					submitBzip2Stream(Arrays.copyOfRange(buffer, start, length));
+				return;
+			}
+			
+			scanFrom = Math.max(start + 1, length - 9);
+			length += numRead;
+		}
+	}
+
+	private static int findBzip2Stream(byte[] buffer, int from, int length)
+	{
+		for (int iter = from; iter + 10 <= length; iter++)
+		{
+			if (buffer[iter] != 'B' || buffer[iter + 1] != 'Z' || buffer[iter + 2] != 'h' || buffer[iter + 3] < '1' || buffer[iter + 3] > '9')
+				continue;
+			
+			if ((buffer[iter + 4] == 0x31 && buffer[iter + 5] == 0x41 && buffer[iter + 6] == 0x59
+					&& buffer[iter + 7] == 0x26 && buffer[iter + 8] == 0x53 && buffer[iter + 9] == 0x59)
+					|| (buffer[iter + 4] == 0x17 && buffer[iter + 5] == 0x72 && buffer[iter + 6] == 0x45
+					&& buffer[iter + 7] == 0x38 && buffer[iter + 8] == 0x50 && buffer[iter + 9] == (byte) 0x90))
+				return iter;
+		}
+		
+		return -1;
+	}
+
+	private void submitBzip2Stream(final byte[] stream) throws InterruptedException
+	{
+		this.chunks.put(DECOMPRESS_SERVICE.submit(new Callable<Chunk>()
+		{
+			@Override
+			public Chunk call() throws IOException
+			{
+				try (BZip2CompressorInputStream in = new BZip2CompressorInputStream(new ByteArrayInputStream(stream), false))
+				{
+					byte[] data = new byte[Math.max(CHUNK_SIZE, stream.length * 8)];
+					int length = 0;
+					while (true)
+					{
+						if (length == data.length)
+							data = Arrays.copyOf(data, data.length * 2);
+						
+						int numRead = in.read(data, length, data.length - length);
+						if (numRead < 0)
+							return new Chunk(data, length);
+						length += numRead;
+					}
+				}
+			}
+		}));
+	}
+
+	private void readSerial(InputStream in) throws IOException, InterruptedException
+	{
+		while (true)
+		{
+			byte[] data = this.free.poll();
+			if (data == null)
+				data = new byte[CHUNK_SIZE];
+			
+			int length = 0;
+			while (length < data.length)
+			{
+				int numRead = in.read(data, length, data.length - length);
+				if (numRead < 0)
+					break;
+				length += numRead;
+			}
+			
+			if (length > 0)
+				this.chunks.put(CompletableFuture.completedFuture(new Chunk(data, length)));
+			if (length < data.length)
+				return;
+		}
+	}
+
+	private boolean nextChunk() throws IOException
+	{
+		if (this.finished)
+			return false;
+		
+		if (this.current != null && this.current.data.length == CHUNK_SIZE)
+			this.free.offer(this.current.data);
+		
+		try
+		{
+			this.current = this.chunks.take().get();
+		}
+		catch (InterruptedException e)
+		{
+			throw new InterruptedIOException();
+		}
+		catch (ExecutionException e)
+		{
+			this.finished = true;
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			
+			throw new IOException(e.getCause());
+		}
+		
+		this.position = 0;
+		if (this.current == null)
+			this.finished = true;
+		
+		return !this.finished;
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		while (this.current == null || this.position >= this.current.length)
+			if (!nextChunk())
+				return -1;
+		
+		return this.current.data[this.position++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if (len == 0)
+			return 0;
+		
+		while (this.current == null || this.position >= this.current.length)
+			if (!nextChunk())
+				return -1;
+		
+		int numRead = Math.min(len, this.current.length - this.position);
+		System.arraycopy(this.current.data, this.position, b, off, numRead);
+		this.position += numRead;
+		
+		return numRead;
+	}
+
+	@Override
+	public int available()
+	{
+		if (this.current == null)
+			return 0;
+		
+		return this.current.length - this.position;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		this.closed = true;
+		this.reader.interrupt();
+		this.file.close();
+		this.chunks.clear();
+	}
+}
@@ -39,12 +39,10 @@ import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.FileReader;
 
-import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
-import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
-
 import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
 
 public final class Utils
@@ -116,12 +114,23 @@ public final class Utils
 		//A("T"), B("V"), C("G"), D("H"), G("C"), H("D"), K("M"), M("K"), N("N"), R("Y"), S("S"), T("A"), V("B"), W("W"), Y("R");
 	}
 
+	private static final char[] COMPLIMENT_TABLE = createComplimentTable();
+
 	public static final int BUFFER_BYTE_SIZE = 8388608; // 8MB
 	public static final NumberFormat DECIMAL_FORMAT = new DecimalFormat("############.########");
 	public static final int FASTA_LINE_LENGTH = 60;
 
 	public static final int MBYTES = 1048576;
 
+	private final static char[] createComplimentTable()
+	{
+		char[] table = new char[128];
+		for (char c = 0; c < table.length; c++)
+			table[c] = Translate.getTranslation(Character.toString(c).toUpperCase()).charAt(0);
+		
+		return table;
+	}
+
 	public static int checkForEnd(String line, int brackets)
 	{
 		if (line.startsWith("{"))
@@ -229,8 +238,7 @@ public final class Utils
 	{
 		if (fileName.endsWith("bz2"))
 		{
-			BZip2CompressorInputStream bzIn = new BZip2CompressorInputStream(new BufferedInputStream(new FileInputStream(fileName), BUFFER_BYTE_SIZE));
-			return new BufferedReader(new InputStreamReader(bzIn));
+			return new BufferedReader(new InputStreamReader(ParallelDecompressInputStream.open(fileName)));
 			
 			// open file as a pipe
 			//System.err.println("Running command " + "bzip2 -dc " + new File(fileName).getAbsolutePath() + " |");
@@ -240,8 +248,7 @@ public final class Utils
 		}
 		else if (fileName.endsWith("gz"))
 		{
-			GzipCompressorInputStream bzIn = new GzipCompressorInputStream(new BufferedInputStream(new FileInputStream(fileName), BUFFER_BYTE_SIZE));
-			return new BufferedReader(new InputStreamReader(bzIn));
+			return new BufferedReader(new InputStreamReader(ParallelDecompressInputStream.open(fileName)));
 			
 			// open file as a pipe
 			//System.err.println("Runnning comand " + "gzip -dc " + new File(fileName).getAbsolutePath() + " |");
@@ -265,6 +272,39 @@ public final class Utils
 		}
 	}
 
+	/**
+	 * Compliment of an upper or lower case nucleotide character, in upper case. Same as the characters of rc(String).
+	 */
+	public final static char compliment(char c)
+	{
+		if (c < COMPLIMENT_TABLE.length)
+			return COMPLIMENT_TABLE[c];
+		
+		return Translate.getTranslation(Character.toString(c).toUpperCase()).charAt(0);
+	}
+
+	/**
+	 * Same as getFile(), but returns the decompressed bytes instead of decoded lines.
+	 */
+	public final static InputStream getInputStream(String fileName, String[] postfix) throws IOException
+	{
+		if (fileName.endsWith("bz2") || fileName.endsWith("gz"))
+			return ParallelDecompressInputStream.open(fileName);
+		else
+		{
+			if (postfix==null)
+				return new BufferedInputStream(new FileInputStream(fileName), BUFFER_BYTE_SIZE);
+				
+			for (int i = 0; i < postfix.length; i++)
+			{
+				if (fileName.endsWith(postfix[i]))
+					return new BufferedInputStream(new FileInputStream(fileName), BUFFER_BYTE_SIZE);
+			}
+			
+			throw new IOException("Unknown file format of file " + fileName+".");
+		}
+	}
+
 	public final static String getID(String line)
 	{
 		String ids[] = line.split(":");
@@ -493,15 +533,68 @@ public final class Utils
 		return array[k];
 	}
 
+	public final static long quickSelect(long[] array, int k, int length)
+	{
+		if (array == null || length <= k)
+			return Long.MAX_VALUE;
+
+		int from = 0;
+		int to = length - 1;
+
+		// if from == to we reached the kth element
+		while (from < to)
+		{
+			int r = from;
+			int w = to;
+			long mid = array[(r + w) / 2];
+
+			// stop if the reader and writer meets
+			while (r < w)
+			{
+				if (array[r] >= mid)
+				{
+					// put the large values at the end
+					long tmp = array[w];
+					array[w] = array[r];
+					array[r] = tmp;
+					w--;
+				}
+				else
+				{
+					// the value is smaller than the pivot, skip
+					r++;
+				}
+			}
+
+			// if we stepped up (r++) we need to step one down
+			if (array[r] > mid)
+				r--;
+
+			// the r pointer is on the end of the first k elements
+			if (k <= r)
+			{
+				to = r;
+			}
+			else
+			{
+				from = r + 1;
+			}
+		}
+
+		return array[k];
+	}
+
 	public final static String rc(String supplied)
 	{
-		StringBuilder st = new StringBuilder();
+		StringBuilder st = new StringBuilder(supplied.length());
 		for (int i = supplied.length() - 1; i >= 0; i--)
 		{
 			char theChar = supplied.charAt(i);
 			
-			String c = Translate.getTranslation((Character.toString(theChar).toUpperCase()));
-			st.append(c);
+			if (theChar < COMPLIMENT_TABLE.length)
+				st.append(COMPLIMENT_TABLE[theChar]);
+			else
+				st.append(Translate.getTranslation((Character.toString(theChar).toUpperCase())));
 		}
 		return st.toString();
 	}
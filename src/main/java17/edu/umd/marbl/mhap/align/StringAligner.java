@@ -0,0 +1,55 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.align;
+
+/**
+ * Entry point of the specialized nucleotide string aligner on Java 17 and newer. Uses the vector API when the
+ * jdk.incubator.vector module is added to the JVM (--add-modules jdk.incubator.vector), and the scalar code otherwise.
+ */
+final class StringAligner
+{
+	private final static boolean VECTORIZED = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent() && VectorStringAligner.isSupported();
+	
+	static boolean isVectorized()
+	{
+		return VECTORIZED;
+	}
+	
+	static void forward(char[] a, char[] b, float match, float mismatch, float gapOpen, float gapExtend, float scoreOffset, Aligner.ForwardResult result)
+	{
+		if (VECTORIZED)
+			VectorStringAligner.forward(a, b, match, mismatch, gapOpen, gapExtend, scoreOffset, result);
+		else
+			ScalarStringAligner.forward(a, b, match, mismatch, gapOpen, gapExtend, scoreOffset, result);
+	}
+	
+	private StringAligner()
+	{
+	}
+}
@@ -0,0 +1,191 @@
+/* 
+ * MHAP package
+ * 
+ * This  software is distributed "as is", without any warranty, including 
+ * any implied warranty of merchantability or fitness for a particular
+ * use. The authors assume no responsibility for, and shall not be liable
+ * for, any special, indirect, or consequential damages, or any damages
+ * whatsoever, arising out of or in connection with the use of this
+ * software.
+ * 
+ * Copyright (c) 2015 by Konstantin Berlin and Sergey Koren
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package edu.umd.marbl.mhap.align;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Forward pass of the local Gotoh alignment of two character strings, computed one anti-diagonal at a time, so all of
+ * the cells of a vector are independent. The arrays of each diagonal are indexed by the position i in a, and b is
+ * reversed so that both sequences are read with contiguous loads. Gives the same score, end and origin as
+ * ScalarStringAligner, since every cell does the same float operations, and the best cell of each row is kept to
+ * break ties in the row-major order of the scalar code.
+ */
+final class VectorStringAligner
+{
+	private final static VectorSpecies<Float> FLOAT_SPECIES = FloatVector.SPECIES_PREFERRED;
+	private final static VectorSpecies<Integer> INT_SPECIES = IntVector.SPECIES_PREFERRED;
+	
+	static boolean isSupported()
+	{
+		return FLOAT_SPECIES.length()>1 && FLOAT_SPECIES.length()==INT_SPECIES.length();
+	}
+	
+	static void forward(char[] a, char[] b, float match, float mismatch, float gapOpen, float gapExtend, float scoreOffset, Aligner.ForwardResult result)
+	{
+		final int n = a.length;
+		final int m = b.length;
+		if (n==0 || m==0)
+			return;
+		
+		final int lanes = FLOAT_SPECIES.length();
+		final int size = n+1+lanes;
+		
+		int[] aCodes = new int[n+lanes];
+		for (int i=0; i<n; i++)
+			aCodes[i] = a[i];
+		int[] bReverse = new int[m+lanes];
+		for (int j=0; j<m; j++)
+			bReverse[m-1-j] = b[j];
+		
+		// diagonals k-2, k-1 and k
+		float[] D2 = new float[size];
+		float[] D1 = new float[size];
+		float[] D0 = new float[size];
+		int[] O2 = new int[size];
+		int[] O1 = new int[size];
+		int[] O0 = new int[size];
+		float[] P1 = new float[size];
+		float[] P0 = new float[size];
+		float[] Q1 = new float[size];
+		float[] Q0 = new float[size];
+		
+		// best cell of each row, kept as its diagonal
+		float[] rowBest = new float[size];
+		int[] rowBestDiagonal = new int[size];
+		int[] rowBestOrigin = new int[size];
+		
+		// diagonal 1, (0,1) and (1,0)
+		setBoundary(D1, P1, Q1, O1, 0, -1);
+		setBoundary(D1, P1, Q1, O1, 1, 1);
+		
+		final FloatVector openVector = FloatVector.broadcast(FLOAT_SPECIES, gapOpen);
+		final FloatVector extendVector = FloatVector.broadcast(FLOAT_SPECIES, gapExtend);
+		final FloatVector offsetVector = FloatVector.broadcast(FLOAT_SPECIES, scoreOffset);
+		final FloatVector matchVector = FloatVector.broadcast(FLOAT_SPECIES, match);
+		final FloatVector mismatchVector = FloatVector.broadcast(FLOAT_SPECIES, mismatch);
+		
+		for (int k=2; k<=n+m; k++)
+		{
+			if (k<=m)
+				setBoundary(D0, P0, Q0, O0, 0, -k);
+			
+			final int iLow = Math.max(1, k-m);
+			final int iHigh = Math.min(n, k-1);
+			for (int i=iLow; i<=iHigh; i+=lanes)
+			{
+				FloatVector up = FloatVector.fromArray(FLOAT_SPECIES, D1, i-1);
+				FloatVector left = FloatVector.fromArray(FLOAT_SPECIES, D1, i);
+				FloatVector diagonal = FloatVector.fromArray(FLOAT_SPECIES, D2, i-1);
+				
+				FloatVector p = up.add(openVector).max(FloatVector.fromArray(FLOAT_SPECIES, P1, i-1).add(extendVector));
+				FloatVector q = left.add(openVector).max(FloatVector.fromArray(FLOAT_SPECIES, Q1, i).add(extendVector));
+				
+				VectorMask<Integer> same = IntVector.fromArray(INT_SPECIES, aCodes, i-1).compare(VectorOperators.EQ, IntVector.fromArray(INT_SPECIES, bReverse, m-k+i));
+				FloatVector similarity = mismatchVector.blend(matchVector, same.cast(FLOAT_SPECIES));
+				FloatVector value = diagonal.add(similarity).add(offsetVector).max(p.max(q));
+				
+				// same order as the traceback
+				VectorMask<Float> fromLeft = q.compare(VectorOperators.EQ, value);
+				VectorMask<Float> fromUp = p.compare(VectorOperators.GE, q).and(p.compare(VectorOperators.EQ, value));
+				IntVector origin = IntVector.fromArray(INT_SPECIES, O2, i-1)
+						.blend(IntVector.fromArray(INT_SPECIES, O1, i), fromLeft.cast(INT_SPECIES))
+						.blend(IntVector.fromArray(INT_SPECIES, O1, i-1), fromUp.cast(INT_SPECIES));
+				
+				value.intoArray(D0, i);
+				p.intoArray(P0, i);
+				q.intoArray(Q0, i);
+				origin.intoArray(O0, i);
+				
+				FloatVector best = FloatVector.fromArray(FLOAT_SPECIES, rowBest, i);
+				VectorMask<Float> better = value.compare(VectorOperators.GT, best);
+				if (i+lanes>iHigh+1)
+					better = better.and(FLOAT_SPECIES.indexInRange(i, iHigh+1));
+				
+				if (better.anyTrue())
+				{
+					VectorMask<Integer> betterInt = better.cast(INT_SPECIES);
+					best.blend(value, better).intoArray(rowBest, i);
+					IntVector.fromArray(INT_SPECIES, rowBestDiagonal, i).blend(k, betterInt).intoArray(rowBestDiagonal, i);
+					IntVector.fromArray(INT_SPECIES, rowBestOrigin, i).blend(origin, betterInt).intoArray(rowBestOrigin, i);
+				}
+			}
+			
+			// after the loop, since the last vector can write past the end of the diagonal
+			if (k<=n)
+				setBoundary(D0, P0, Q0, O0, k, k);
+			
+			float[] temp = D2;
+			D2 = D1;
+			D1 = D0;
+			D0 = temp;
+			
+			int[] tempOrigin = O2;
+			O2 = O1;
+			O1 = O0;
+			O0 = tempOrigin;
+			
+			temp = P1;
+			P1 = P0;
+			P0 = temp;
+			
+			temp = Q1;
+			Q1 = Q0;
+			Q0 = temp;
+		}
+		
+		// first of the best cells in row-major order
+		for (int i=1; i<=n; i++)
+		{
+			if (rowBest[i] > result.maxValue)
+			{
+				result.maxValue = rowBest[i];
+				result.maxI = i;
+				result.maxJ = rowBestDiagonal[i]-i;
+				result.origin = rowBestOrigin[i];
+			}
+		}
+	}
+	
+	private static void setBoundary(float[] D, float[] P, float[] Q, int[] origin, int i, int cellOrigin)
+	{
+		D[i] = 0.0f;
+		P[i] = Float.NEGATIVE_INFINITY;
+		Q[i] = Float.NEGATIVE_INFINITY;
+		origin[i] = cellOrigin;
+	}
+	
+	private VectorStringAligner()
+	{
+	}
+}